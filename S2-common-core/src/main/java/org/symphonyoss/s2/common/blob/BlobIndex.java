@@ -0,0 +1,397 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.blob;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+/**
+ * A memory mapped, open addressing hash table from blob hash to record location.
+ * 
+ * The file is a 32 byte header followed by a power of 2 number of 16 byte slots.
+ * Each slot contains the 64 bit fingerprint of a hash followed by the segment ID
+ * and offset of the record. A fingerprint of zero indicates an empty slot and a
+ * segment ID of -1 indicates a deleted entry.
+ * 
+ * Fingerprints are not unique so callers supply a Matcher which checks the actual
+ * hash stored in the record.
+ * 
+ * The header contains a clean flag which is cleared when the index is opened and
+ * set when it is closed, if an index is found not to be clean when opened the
+ * caller is expected to rebuild it from the segment files.
+ * 
+ * THIS CLASS IS NOT THREAD SAFE, the BlobStore controls concurrent access.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@NotThreadSafe
+/* package */ class BlobIndex
+{
+  /* package */ static final String FILE_NAME        = "index.idx";
+  
+  private static final long         MAGIC            = 0x5332424C4F424958L; // "S2BLOBIX"
+  private static final int          HEADER           = 32;
+  private static final int          SLOT             = 16;
+  private static final int          CLEAN_OFFSET     = 8;
+  private static final int          CAPACITY_OFFSET  = 12;
+  private static final int          USED_OFFSET      = 16;
+  private static final int          LIVE_OFFSET      = 20;
+  private static final int          MIN_CAPACITY     = 1024;
+  private static final int          MAX_CAPACITY     = 1 << 26;
+  private static final int          DELETED          = -1;
+
+  /**
+   * A check that the record at a given location has the hash being searched for.
+   */
+  /* package */ interface Matcher
+  {
+    boolean matches(int segmentId, int offset) throws IOException;
+  }
+
+  /**
+   * A callback for each live entry.
+   */
+  /* package */ interface Visitor
+  {
+    void visit(long fingerprint, int segmentId, int offset) throws IOException;
+  }
+  
+  private final Path       path_;
+  private FileChannel      channel_;
+  private MappedByteBuffer buffer_;
+  private int              capacity_;
+  private int              mask_;
+  private int              used_;
+  private int              live_;
+  private boolean          wasClean_;
+
+  private BlobIndex(Path path, FileChannel channel, MappedByteBuffer buffer)
+  {
+    path_ = path;
+    channel_ = channel;
+    buffer_ = buffer;
+    capacity_ = buffer.getInt(CAPACITY_OFFSET);
+    mask_ = capacity_ - 1;
+    used_ = buffer.getInt(USED_OFFSET);
+    live_ = buffer.getInt(LIVE_OFFSET);
+  }
+  
+  /**
+   * Open the index in the given directory, creating an empty index if necessary.
+   * 
+   * @param directory The store directory.
+   * 
+   * @return The index.
+   * 
+   * @throws IOException If the index cannot be opened.
+   */
+  /* package */ static BlobIndex open(Path directory) throws IOException
+  {
+    Path path = directory.resolve(FILE_NAME);
+    
+    if(Files.exists(path))
+    {
+      FileChannel      channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      MappedByteBuffer buffer  = channel.size() < HEADER ? null : channel.map(MapMode.READ_WRITE, 0, channel.size());
+      
+      if(buffer != null && buffer.getLong(0) == MAGIC)
+      {
+        int capacity = buffer.getInt(CAPACITY_OFFSET);
+        
+        if(Integer.bitCount(capacity) == 1 && HEADER + (long) capacity * SLOT == channel.size())
+        {
+          BlobIndex index = new BlobIndex(path, channel, buffer);
+          
+          index.wasClean_ = buffer.get(CLEAN_OFFSET) == 1;
+          index.setClean(false);
+          
+          return index;
+        }
+      }
+      
+      channel.close();
+    }
+    
+    BlobIndex index = create(path, MIN_CAPACITY);
+    
+    index.setClean(false);
+    
+    return index;
+  }
+  
+  private static BlobIndex create(Path path, int capacity) throws IOException
+  {
+    FileChannel      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    MappedByteBuffer buffer  = channel.map(MapMode.READ_WRITE, 0, HEADER + (long) capacity * SLOT);
+    
+    buffer.putLong(0, MAGIC);
+    buffer.putInt(CAPACITY_OFFSET, capacity);
+    
+    return new BlobIndex(path, channel, buffer);
+  }
+
+  /**
+   * 
+   * @return true if the index was closed cleanly when it was last used, if not it should be rebuilt.
+   */
+  /* package */ boolean wasClean()
+  {
+    return wasClean_;
+  }
+  
+  private void setClean(boolean clean) throws IOException
+  {
+    buffer_.put(CLEAN_OFFSET, (byte) (clean ? 1 : 0));
+    buffer_.force();
+  }
+
+  /* package */ int size()
+  {
+    return live_;
+  }
+
+  /**
+   * Return the 64 bit fingerprint of the given hash, which is never zero.
+   * 
+   * The leading bytes of a Hash are the digest so they are evenly distributed.
+   * 
+   * @param hashBytes The encoded Hash.
+   * 
+   * @return The fingerprint of the given hash.
+   */
+  /* package */ static long fingerprint(ImmutableByteArray hashBytes)
+  {
+    long fp = 0;
+    int  len = Math.min(8, hashBytes.length());
+    
+    for(int i=0 ; i<len ; i++)
+      fp = (fp << 8) | (hashBytes.byteAt(i) & 0xFF);
+    
+    return fp == 0 ? 1 : fp;
+  }
+  
+  private int slotFor(long fingerprint)
+  {
+    long h = fingerprint * 0x9E3779B97F4A7C15L;
+    
+    return (int) (h >>> 32) & mask_;
+  }
+  
+  private static int position(int slot)
+  {
+    return HEADER + slot * SLOT;
+  }
+
+  /**
+   * Find the slot containing the live entry matching the given fingerprint and matcher.
+   * 
+   * @param fingerprint The fingerprint of the required hash.
+   * @param matcher     A check of the actual hash of candidate records.
+   * 
+   * @return The slot number, or -1 if there is no such entry.
+   * 
+   * @throws IOException If the matcher fails.
+   */
+  /* package */ int find(long fingerprint, Matcher matcher) throws IOException
+  {
+    int slot = slotFor(fingerprint);
+    
+    while(true)
+    {
+      int  pos = position(slot);
+      long fp  = buffer_.getLong(pos);
+      
+      if(fp == 0)
+        return -1;
+      
+      if(fp == fingerprint)
+      {
+        int segmentId = buffer_.getInt(pos + 8);
+        
+        if(segmentId != DELETED && matcher.matches(segmentId, buffer_.getInt(pos + 12)))
+          return slot;
+      }
+      
+      slot = (slot + 1) & mask_;
+    }
+  }
+  
+  /* package */ int segmentAt(int slot)
+  {
+    return buffer_.getInt(position(slot) + 8);
+  }
+  
+  /* package */ int offsetAt(int slot)
+  {
+    return buffer_.getInt(position(slot) + 12);
+  }
+  
+  /**
+   * Update the location of an existing entry.
+   * 
+   * @param slot      A slot number returned from find().
+   * @param segmentId The new segment ID.
+   * @param offset    The new offset.
+   */
+  /* package */ void update(int slot, int segmentId, int offset)
+  {
+    int pos = position(slot);
+    
+    buffer_.putInt(pos + 12, offset);
+    buffer_.putInt(pos + 8, segmentId);
+  }
+  
+  /**
+   * Mark an existing entry as deleted.
+   * 
+   * @param slot A slot number returned from find().
+   */
+  /* package */ void delete(int slot)
+  {
+    buffer_.putInt(position(slot) + 8, DELETED);
+    buffer_.putInt(LIVE_OFFSET, --live_);
+  }
+
+  /**
+   * Insert a new entry, the caller must have checked that no live entry for the same hash exists.
+   * 
+   * @param fingerprint The fingerprint of the hash.
+   * @param segmentId   The segment ID of the record.
+   * @param offset      The offset of the record.
+   * 
+   * @throws IOException If the index needs to grow and that fails.
+   */
+  /* package */ void insert(long fingerprint, int segmentId, int offset) throws IOException
+  {
+    if((used_ + 1) * 2L > capacity_)
+      rehash(live_ * 4L > capacity_ ? capacity_ * 2 : capacity_);
+    
+    int slot = slotFor(fingerprint);
+    
+    while(buffer_.getLong(position(slot)) != 0)
+      slot = (slot + 1) & mask_;
+    
+    int pos = position(slot);
+    
+    buffer_.putInt(pos + 8, segmentId);
+    buffer_.putInt(pos + 12, offset);
+    buffer_.putLong(pos, fingerprint);
+    
+    buffer_.putInt(USED_OFFSET, ++used_);
+    buffer_.putInt(LIVE_OFFSET, ++live_);
+  }
+  
+  /**
+   * Call the given visitor for each live entry.
+   * 
+   * @param visitor A visitor.
+   * 
+   * @throws IOException If the visitor does.
+   */
+  /* package */ void forEach(Visitor visitor) throws IOException
+  {
+    for(int slot=0 ; slot<capacity_ ; slot++)
+    {
+      int  pos = position(slot);
+      long fp  = buffer_.getLong(pos);
+      
+      if(fp != 0)
+      {
+        int segmentId = buffer_.getInt(pos + 8);
+        
+        if(segmentId != DELETED)
+          visitor.visit(fp, segmentId, buffer_.getInt(pos + 12));
+      }
+    }
+  }
+  
+  /*
+   * Copy all live entries to a new file, dropping deleted entries, and replace the current file with it.
+   */
+  private void rehash(int capacity) throws IOException
+  {
+    if(capacity > MAX_CAPACITY)
+      throw new IOException("Index is full");
+    
+    Path      tmp   = path_.resolveSibling(FILE_NAME + ".tmp");
+    BlobIndex index = create(tmp, capacity);
+    
+    forEach((fp, segmentId, offset) -> index.insert(fp, segmentId, offset));
+    
+    index.buffer_.force();
+    index.channel_.close();
+    channel_.close();
+    
+    Files.move(tmp, path_, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    
+    channel_ = FileChannel.open(path_, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    buffer_ = channel_.map(MapMode.READ_WRITE, 0, channel_.size());
+    capacity_ = capacity;
+    mask_ = capacity - 1;
+    used_ = live_;
+    buffer_.put(CLEAN_OFFSET, (byte) 0);
+  }
+  
+  /**
+   * Discard all entries.
+   * 
+   * @throws IOException If the index file cannot be rewritten.
+   */
+  /* package */ void clear() throws IOException
+  {
+    channel_.close();
+    
+    BlobIndex index = create(path_, MIN_CAPACITY);
+    
+    channel_ = index.channel_;
+    buffer_ = index.buffer_;
+    capacity_ = index.capacity_;
+    mask_ = index.mask_;
+    used_ = 0;
+    live_ = 0;
+  }
+
+  /* package */ void force()
+  {
+    buffer_.force();
+  }
+  
+  /* package */ void close() throws IOException
+  {
+    setClean(true);
+    channel_.close();
+  }
+}
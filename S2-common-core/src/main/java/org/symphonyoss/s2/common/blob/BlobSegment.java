@@ -0,0 +1,372 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.blob;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.annotation.Nullable;
+
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+/**
+ * An append only segment file of a BlobStore.
+ * 
+ * The file starts with an 8 byte magic number, followed by a sequence of records.
+ * Each record is a 1 byte record type, a 1 byte hash length, a 4 byte (big endian)
+ * data length, the hash bytes and finally the data bytes.
+ * 
+ * Reads are made through a read only mapping of the file, which is extended
+ * as the file grows, see region(). Buffers returned from earlier mappings remain valid.
+ * 
+ * Appends are made by a single thread at a time, under the control of the
+ * BlobStore.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+/* package */ class BlobSegment
+{
+  /* package */ static final long   MAGIC         = 0x5332424C4F423031L; // "S2BLOB01"
+  /* package */ static final int    FILE_HEADER   = 8;
+  /* package */ static final int    RECORD_HEADER = 6;
+  /* package */ static final byte   TYPE_PUT      = 1;
+  /* package */ static final byte   TYPE_DELETE   = 2;
+  /* package */ static final String SUFFIX        = ".seg";
+
+  private final int               id_;
+  private final Path              path_;
+  private final FileChannel       channel_;
+  private volatile long           size_;
+  private volatile MappedByteBuffer mapping_;
+
+  private BlobSegment(int id, Path path, FileChannel channel, long size)
+  {
+    id_ = id;
+    path_ = path;
+    channel_ = channel;
+    size_ = size;
+  }
+
+  /* package */ static Path pathOf(Path directory, int id)
+  {
+    return directory.resolve(String.format("%08d%s", id, SUFFIX));
+  }
+  
+  /* package */ static BlobSegment create(Path directory, int id) throws IOException
+  {
+    Path        path    = pathOf(directory, id);
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    ByteBuffer  header  = ByteBuffer.allocate(FILE_HEADER);
+    
+    header.putLong(MAGIC).flip();
+    
+    while(header.hasRemaining())
+      channel.write(header, FILE_HEADER - header.remaining());
+    
+    return new BlobSegment(id, path, channel, FILE_HEADER);
+  }
+  
+  /* package */ static BlobSegment open(Path directory, int id, boolean writable) throws IOException
+  {
+    Path        path    = pathOf(directory, id);
+    FileChannel channel = writable ?
+        FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE) :
+        FileChannel.open(path, StandardOpenOption.READ);
+    long        size    = channel.size();
+    ByteBuffer  header  = ByteBuffer.allocate(FILE_HEADER);
+    
+    while(header.hasRemaining() && channel.read(header, header.position()) > 0)
+    {}
+    
+    header.flip();
+    
+    if(size < FILE_HEADER || header.getLong() != MAGIC)
+    {
+      channel.close();
+      throw new IOException("Invalid segment file " + path);
+    }
+    
+    return new BlobSegment(id, path, channel, size);
+  }
+
+  /* package */ int getId()
+  {
+    return id_;
+  }
+
+  /* package */ long size()
+  {
+    return size_;
+  }
+
+  /**
+   * Append a record.
+   * 
+   * @param type      The record type.
+   * @param hashBytes The hash of the data.
+   * @param data      The data, or null for a delete record.
+   * 
+   * @return The offset of the new record.
+   * 
+   * @throws IOException If the write fails.
+   */
+  /* package */ int append(byte type, ImmutableByteArray hashBytes, @Nullable ImmutableByteArray data) throws IOException
+  {
+    int        offset     = (int) size_;
+    int        dataLength = data == null ? 0 : data.length();
+    ByteBuffer header     = ByteBuffer.allocate(RECORD_HEADER + hashBytes.length());
+    
+    header.put(type);
+    header.put((byte) hashBytes.length());
+    header.putInt(dataLength);
+    
+    for(byte b : hashBytes)
+      header.put(b);
+    
+    header.flip();
+    
+    channel_.position(offset);
+    
+    while(header.hasRemaining())
+      channel_.write(header);
+    
+    if(data != null)
+      data.write(Channels.newOutputStream(channel_));
+    
+    size_ = offset + recordLength(hashBytes.length(), dataLength);
+    
+    return offset;
+  }
+
+  /**
+   * Discard any partial record at the end of the file.
+   * 
+   * @param size The length of the valid part of the file.
+   * 
+   * @throws IOException If the truncate fails.
+   */
+  /* package */ void truncate(long size) throws IOException
+  {
+    channel_.truncate(size);
+    size_ = size;
+    mapping_ = null;
+  }
+  
+  /* package */ static long recordLength(int hashLength, int dataLength)
+  {
+    return (long) RECORD_HEADER + hashLength + dataLength;
+  }
+
+  /**
+   * Return a buffer containing the given region of the file, whose index 0 is the given offset.
+   * 
+   * Regions within the current mapping are slices of it. The file is only remapped when it
+   * has grown to at least twice the size of the current mapping, so that a segment which is
+   * being appended to has at most a few mappings, each of which remains until the buffers
+   * which refer to it have been garbage collected. Regions written since the last mapping
+   * are read into a heap buffer.
+   * 
+   * @param offset The offset of the start of the region.
+   * @param length The length of the region.
+   * 
+   * @return A buffer containing the given region of the file.
+   * 
+   * @throws IOException If the region is not within the file or the read fails.
+   */
+  /* package */ ByteBuffer region(long offset, int length) throws IOException
+  {
+    long             end     = offset + length;
+    MappedByteBuffer mapping = mapping_;
+    
+    if(mapping == null || mapping.capacity() < end)
+    {
+      long size = size_;
+      
+      if(end > size)
+        throw new IOException("Read beyond the end of segment " + path_);
+      
+      if(mapping == null || size >= 2L * mapping.capacity())
+      {
+        synchronized(this)
+        {
+          mapping = mapping_;
+          
+          if(mapping == null || (mapping.capacity() < end && size >= 2L * mapping.capacity()))
+            mapping_ = mapping = channel_.map(MapMode.READ_ONLY, 0, size);
+        }
+      }
+      
+      if(mapping.capacity() < end)
+      {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        
+        while(buffer.hasRemaining())
+        {
+          if(channel_.read(buffer, offset + buffer.position()) == -1)
+            throw new IOException("Read beyond the end of segment " + path_);
+        }
+        
+        buffer.flip();
+        
+        return buffer;
+      }
+    }
+    
+    ByteBuffer buffer = mapping.duplicate();
+    
+    buffer.limit((int) end);
+    buffer.position((int) offset);
+    
+    return buffer.slice();
+  }
+  
+  /* package */ byte typeAt(int offset) throws IOException
+  {
+    return region(offset, RECORD_HEADER).get(0);
+  }
+  
+  /* package */ int hashLengthAt(int offset) throws IOException
+  {
+    return region(offset, RECORD_HEADER).get(1) & 0xFF;
+  }
+  
+  /* package */ int dataLengthAt(int offset) throws IOException
+  {
+    return region(offset, RECORD_HEADER).getInt(2);
+  }
+  
+  /**
+   * Return true if the hash of the record at the given offset is equal to the given value.
+   * 
+   * @param offset    The offset of a record.
+   * @param hashBytes A hash value.
+   * 
+   * @return true if the hash of the record at the given offset is equal to the given value.
+   * 
+   * @throws IOException If the read fails.
+   */
+  /* package */ boolean hashEquals(int offset, ImmutableByteArray hashBytes) throws IOException
+  {
+    ByteBuffer record = region(offset, RECORD_HEADER + hashBytes.length());
+    int        length = record.get(1) & 0xFF;
+    
+    if(length != hashBytes.length())
+      return false;
+    
+    for(int i=0 ; i<length ; i++)
+    {
+      if(record.get(RECORD_HEADER + i) != hashBytes.byteAt(i))
+        return false;
+    }
+    
+    return true;
+  }
+  
+  /* package */ ImmutableByteArray hashAt(int offset) throws IOException
+  {
+    int        length = hashLengthAt(offset);
+    ByteBuffer hash   = region(offset + RECORD_HEADER, length);
+    byte[]     bytes  = new byte[length];
+    
+    hash.get(bytes);
+    
+    return ImmutableByteArray.newInstance(bytes);
+  }
+
+  /**
+   * Return the data of the record at the given offset.
+   * 
+   * The returned buffer is normally a slice of the mapped file, with no data copied.
+   * 
+   * @param offset The offset of a record.
+   * 
+   * @return The data of the record at the given offset.
+   * 
+   * @throws IOException If the read fails.
+   */
+  /* package */ ByteBuffer dataAt(int offset) throws IOException
+  {
+    ByteBuffer header = region(offset, RECORD_HEADER);
+    int        start  = offset + RECORD_HEADER + (header.get(1) & 0xFF);
+    
+    return region(start, header.getInt(2));
+  }
+  
+  /**
+   * Return the offset of the record following the one at the given offset,
+   * or -1 if the record at the given offset is incomplete.
+   * 
+   * @param offset The offset of a record.
+   * 
+   * @return The offset of the following record or -1.
+   * 
+   * @throws IOException If the read fails.
+   */
+  /* package */ long nextRecord(int offset) throws IOException
+  {
+    long size = size_;
+    
+    if(offset + RECORD_HEADER > size)
+      return -1;
+    
+    long next = offset + recordLength(hashLengthAt(offset), dataLengthAt(offset));
+    
+    if(next > size || next < offset)
+      return -1;
+    
+    return next;
+  }
+
+  /* package */ void force() throws IOException
+  {
+    channel_.force(false);
+  }
+  
+  /* package */ void close() throws IOException
+  {
+    channel_.close();
+  }
+
+  /**
+   * Close and delete the file.
+   * 
+   * Buffers previously returned from this segment remain valid since the
+   * mapping persists until they are garbage collected.
+   * 
+   * @throws IOException If the delete fails.
+   */
+  /* package */ void delete() throws IOException
+  {
+    channel_.close();
+    Files.deleteIfExists(path_);
+  }
+}
@@ -0,0 +1,831 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.blob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.symphonyoss.s2.common.exception.StorageException;
+import org.symphonyoss.s2.common.fault.FaultAccumulator;
+import org.symphonyoss.s2.common.fault.TransactionFault;
+import org.symphonyoss.s2.common.fluent.BaseAbstractBuilder;
+import org.symphonyoss.s2.common.hash.Hash;
+import org.symphonyoss.s2.common.hash.HashProvider;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+/**
+ * A content addressed store of blobs in a local directory.
+ * 
+ * Blobs are appended to segment files and located through a memory mapped
+ * index keyed by their Hash. Reads return an ImmutableByteArray which is a
+ * view of the mapped segment file, no data is copied onto the heap.
+ * 
+ * When sync is enabled (the default) put() and delete() return once the
+ * write has been forced to disk, concurrent writers share a single force
+ * (group commit). By default the content of each blob is checked against
+ * its Hash when it is read, this can be skipped for trusted storage.
+ * 
+ * Deleted blobs remain in their segment until compact() is called, which
+ * copies the live content of mostly dead segments to the current segment
+ * and deletes the old files. Compaction can run concurrently with readers,
+ * and values which have already been read remain valid after their
+ * segment is deleted.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@ThreadSafe
+public class BlobStore implements Closeable
+{
+  /** The default maximum size of a segment file. */
+  public static final int DEFAULT_MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+  
+  private final Path                                       directory_;
+  private final int                                        maxSegmentSize_;
+  private final boolean                                    sync_;
+  private final boolean                                    verify_;
+  private final int                                        hashType_;
+
+  private final ConcurrentSkipListMap<Integer, BlobSegment> segments_    = new ConcurrentSkipListMap<>();
+  private final ReentrantReadWriteLock                     indexLock_   = new ReentrantReadWriteLock();
+  private final ReentrantLock                              appendLock_  = new ReentrantLock();
+  private final ReentrantLock                              compactLock_ = new ReentrantLock();
+  private final Object                                     syncLock_    = new Object();
+  private final BlobIndex                                  index_;
+  private BlobSegment                                      active_;
+  private long                                             writtenSeq_;
+  private long                                             syncedSeq_;
+  private volatile boolean                                 closed_;
+
+  private BlobStore(Builder builder) throws IOException, StorageException
+  {
+    directory_      = builder.directory_;
+    maxSegmentSize_ = builder.maxSegmentSize_;
+    sync_           = builder.sync_;
+    verify_         = builder.verify_;
+    hashType_       = builder.hashType_;
+    
+    Files.createDirectories(directory_);
+    
+    List<Integer> ids = new ArrayList<>();
+    
+    try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory_, "*" + BlobSegment.SUFFIX))
+    {
+      for(Path path : stream)
+      {
+        String name = path.getFileName().toString();
+        
+        try
+        {
+          ids.add(Integer.parseInt(name.substring(0, name.length() - BlobSegment.SUFFIX.length())));
+        }
+        catch(NumberFormatException e)
+        {
+          // not one of ours
+        }
+      }
+    }
+    
+    Collections.sort(ids);
+    
+    for(int i=0 ; i<ids.size() ; i++)
+    {
+      int id = ids.get(i);
+      
+      segments_.put(id, BlobSegment.open(directory_, id, i == ids.size() - 1));
+    }
+    
+    if(segments_.isEmpty())
+      segments_.put(0, BlobSegment.create(directory_, 0));
+    
+    active_ = segments_.lastEntry().getValue();
+    index_  = BlobIndex.open(directory_);
+    
+    if(!index_.wasClean())
+      rebuildIndex();
+  }
+  
+  /**
+   * Builder for BlobStore.
+   * 
+   * @author Bruce Skingle
+   *
+   */
+  public static class Builder extends BaseAbstractBuilder<Builder, BlobStore>
+  {
+    private Path    directory_;
+    private int     maxSegmentSize_ = DEFAULT_MAX_SEGMENT_SIZE;
+    private boolean sync_           = true;
+    private boolean verify_         = true;
+    private int     hashType_       = Hash.getDefaultHashTypeId();
+    
+    /**
+     * Constructor.
+     */
+    public Builder()
+    {
+      super(Builder.class);
+    }
+    
+    /**
+     * Set the directory in which the store is held, which is created if necessary.
+     * 
+     * @param directory The directory in which the store is held.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withDirectory(Path directory)
+    {
+      directory_ = directory;
+      
+      return self();
+    }
+    
+    /**
+     * Set the size at which a new segment file is started.
+     * 
+     * @param maxSegmentSize The maximum size of a segment file in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withMaxSegmentSize(int maxSegmentSize)
+    {
+      maxSegmentSize_ = maxSegmentSize;
+      
+      return self();
+    }
+    
+    /**
+     * Set whether writes are forced to disk before put() and delete() return.
+     * 
+     * If false then writes are only forced by flush() and close().
+     * 
+     * @param sync true if writes should be forced to disk before returning.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withSync(boolean sync)
+    {
+      sync_ = sync;
+      
+      return self();
+    }
+    
+    /**
+     * Set whether the content of blobs is checked against their Hash by get(Hash).
+     * 
+     * @param verify true if content should be verified on read.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withVerify(boolean verify)
+    {
+      verify_ = verify;
+      
+      return self();
+    }
+    
+    /**
+     * Set the type of Hash used as the key for new blobs.
+     * 
+     * @param hashType A hash type ID.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withHashType(int hashType)
+    {
+      hashType_ = hashType;
+      
+      return self();
+    }
+
+    @Override
+    protected void validate(FaultAccumulator faultAccumulator)
+    {
+      super.validate(faultAccumulator);
+      
+      faultAccumulator.checkNotNull(directory_, "directory");
+      
+      if(maxSegmentSize_ < 1024)
+        faultAccumulator.error("maxSegmentSize must be at least 1024.");
+    }
+
+    /**
+     * @throws TransactionFault If the store cannot be opened.
+     */
+    @Override
+    protected BlobStore construct()
+    {
+      try
+      {
+        return new BlobStore(this);
+      }
+      catch (IOException | StorageException e)
+      {
+        throw new TransactionFault("Unable to open blob store in " + directory_, e);
+      }
+    }
+  }
+  
+  /*
+   * Reconstruct the index by reading every segment in order, later records supersede earlier ones.
+   */
+  private void rebuildIndex() throws IOException, StorageException
+  {
+    index_.clear();
+    
+    for(BlobSegment segment : segments_.values())
+    {
+      long offset = BlobSegment.FILE_HEADER;
+      
+      while(offset < segment.size())
+      {
+        long next = segment.nextRecord((int) offset);
+        
+        if(next == -1)
+        {
+          // A partially written record is only possible at the end of the active segment after a crash.
+          if(segment != active_)
+            throw new StorageException("Invalid record at offset " + offset + " of segment " + segment.getId() + " in " + directory_);
+          
+          segment.truncate(offset);
+          break;
+        }
+        
+        int                recordOffset = (int) offset;
+        ImmutableByteArray hashBytes    = segment.hashAt(recordOffset);
+        int                slot         = index_.find(BlobIndex.fingerprint(hashBytes), matcher(hashBytes));
+        
+        if(segment.typeAt(recordOffset) == BlobSegment.TYPE_PUT)
+        {
+          if(slot == -1)
+            index_.insert(BlobIndex.fingerprint(hashBytes), segment.getId(), recordOffset);
+          else
+            index_.update(slot, segment.getId(), recordOffset);
+        }
+        else if(slot != -1)
+        {
+          index_.delete(slot);
+        }
+        
+        offset = next;
+      }
+    }
+    
+    index_.force();
+  }
+  
+  private BlobIndex.Matcher matcher(ImmutableByteArray hashBytes)
+  {
+    return (segmentId, offset) ->
+    {
+      BlobSegment segment = segments_.get(segmentId);
+      
+      return segment != null && segment.hashEquals(offset, hashBytes);
+    };
+  }
+  
+  private void checkOpen()
+  {
+    if(closed_)
+      throw new IllegalStateException("BlobStore is closed");
+  }
+  
+  /**
+   * Store the given blob.
+   * 
+   * If the store already contains this content then nothing is written.
+   * 
+   * @param data The content to be stored.
+   * 
+   * @return The Hash of the content, by which it can be retrieved.
+   * 
+   * @throws StorageException If the write fails.
+   */
+  public Hash put(ImmutableByteArray data) throws StorageException
+  {
+    checkOpen();
+    
+    Hash               hash      = HashProvider.getHashOf(hashType_, data);
+    ImmutableByteArray hashBytes = hash.toImmutableByteArray();
+    long               fp        = BlobIndex.fingerprint(hashBytes);
+    long               seq;
+    
+    appendLock_.lock();
+    try
+    {
+      // Index mutations are made holding appendLock_ so we can read it here without the index lock
+      if(index_.find(fp, matcher(hashBytes)) != -1)
+        return hash;
+      
+      BlobSegment segment = segmentFor(BlobSegment.recordLength(hashBytes.length(), data.length()));
+      int         offset  = segment.append(BlobSegment.TYPE_PUT, hashBytes, data);
+      
+      indexLock_.writeLock().lock();
+      try
+      {
+        index_.insert(fp, segment.getId(), offset);
+      }
+      finally
+      {
+        indexLock_.writeLock().unlock();
+      }
+      
+      seq = ++writtenSeq_;
+    }
+    catch(IOException e)
+    {
+      throw new StorageException("Failed to write blob " + hash, e);
+    }
+    finally
+    {
+      appendLock_.unlock();
+    }
+    
+    if(sync_)
+      sync(seq);
+    
+    return hash;
+  }
+  
+  /**
+   * Delete the blob with the given Hash.
+   * 
+   * The space used by the blob is reclaimed by compact().
+   * 
+   * @param hash The Hash of the blob to be deleted.
+   * 
+   * @return true if the blob was present.
+   * 
+   * @throws StorageException If the write fails.
+   */
+  public boolean delete(Hash hash) throws StorageException
+  {
+    checkOpen();
+    
+    ImmutableByteArray hashBytes = hash.toImmutableByteArray();
+    long               seq;
+    
+    appendLock_.lock();
+    try
+    {
+      int slot = index_.find(BlobIndex.fingerprint(hashBytes), matcher(hashBytes));
+      
+      if(slot == -1)
+        return false;
+      
+      BlobSegment segment = segmentFor(BlobSegment.recordLength(hashBytes.length(), 0));
+      
+      segment.append(BlobSegment.TYPE_DELETE, hashBytes, null);
+      
+      indexLock_.writeLock().lock();
+      try
+      {
+        index_.delete(slot);
+      }
+      finally
+      {
+        indexLock_.writeLock().unlock();
+      }
+      
+      seq = ++writtenSeq_;
+    }
+    catch(IOException e)
+    {
+      throw new StorageException("Failed to delete blob " + hash, e);
+    }
+    finally
+    {
+      appendLock_.unlock();
+    }
+    
+    if(sync_)
+      sync(seq);
+    
+    return true;
+  }
+  
+  /*
+   * Return the segment to which a record of the given length should be appended, called holding appendLock_.
+   */
+  private BlobSegment segmentFor(long recordLength) throws IOException
+  {
+    if(active_.size() + recordLength > maxSegmentSize_ && active_.size() > BlobSegment.FILE_HEADER)
+    {
+      // Make sure everything in the old segment is durable before we move on,
+      // sync() only forces the active segment.
+      active_.force();
+      
+      BlobSegment segment = BlobSegment.create(directory_, active_.getId() + 1);
+      
+      segments_.put(segment.getId(), segment);
+      active_ = segment;
+    }
+    
+    if(active_.size() + recordLength > Integer.MAX_VALUE)
+      throw new IOException("Blob too large");
+    
+    return active_;
+  }
+  
+  /*
+   * Group commit, wait until all writes up to the given sequence number are forced to disk.
+   * The first waiting thread forces everything written so far, others which were waiting
+   * behind it find their writes already forced.
+   */
+  private void sync(long seq) throws StorageException
+  {
+    synchronized(syncLock_)
+    {
+      if(syncedSeq_ >= seq)
+        return;
+      
+      long        target;
+      BlobSegment segment;
+      
+      appendLock_.lock();
+      try
+      {
+        target = writtenSeq_;
+        segment = active_;
+      }
+      finally
+      {
+        appendLock_.unlock();
+      }
+      
+      try
+      {
+        segment.force();
+      }
+      catch(IOException e)
+      {
+        throw new StorageException("Failed to sync blob store", e);
+      }
+      
+      syncedSeq_ = target;
+    }
+  }
+  
+  /**
+   * Force all writes to disk.
+   * 
+   * @throws StorageException If the force fails.
+   */
+  public void flush() throws StorageException
+  {
+    long seq;
+    
+    appendLock_.lock();
+    try
+    {
+      seq = writtenSeq_;
+    }
+    finally
+    {
+      appendLock_.unlock();
+    }
+    
+    sync(seq);
+  }
+  
+  /**
+   * Return true if the store contains a blob with the given Hash.
+   * 
+   * @param hash A Hash.
+   * 
+   * @return true if the store contains a blob with the given Hash.
+   * 
+   * @throws StorageException If the read fails.
+   */
+  public boolean contains(Hash hash) throws StorageException
+  {
+    checkOpen();
+    
+    ImmutableByteArray hashBytes = hash.toImmutableByteArray();
+    
+    indexLock_.readLock().lock();
+    try
+    {
+      return index_.find(BlobIndex.fingerprint(hashBytes), matcher(hashBytes)) != -1;
+    }
+    catch(IOException e)
+    {
+      throw new StorageException("Failed to read index", e);
+    }
+    finally
+    {
+      indexLock_.readLock().unlock();
+    }
+  }
+  
+  /**
+   * Return the blob with the given Hash, verifying its content if the store was built with verification enabled.
+   * 
+   * @param hash A Hash.
+   * 
+   * @return The blob with the given Hash, or null if there is no such blob.
+   * 
+   * @throws StorageException If the read fails or the content does not match the Hash.
+   */
+  public @Nullable ImmutableByteArray get(Hash hash) throws StorageException
+  {
+    return get(hash, verify_);
+  }
+  
+  /**
+   * Return the blob with the given Hash.
+   * 
+   * The returned value is a view of the mapped segment file and does not
+   * involve a copy of the data.
+   * 
+   * @param hash    A Hash.
+   * @param verify  If true then check that the content matches the Hash.
+   * 
+   * @return The blob with the given Hash, or null if there is no such blob.
+   * 
+   * @throws StorageException If the read fails or the content does not match the Hash.
+   */
+  public @Nullable ImmutableByteArray get(Hash hash, boolean verify) throws StorageException
+  {
+    checkOpen();
+    
+    ImmutableByteArray hashBytes = hash.toImmutableByteArray();
+    ByteBuffer         data;
+    
+    indexLock_.readLock().lock();
+    try
+    {
+      int slot = index_.find(BlobIndex.fingerprint(hashBytes), matcher(hashBytes));
+      
+      if(slot == -1)
+        return null;
+      
+      // Segments are only removed holding the index write lock so this cannot be null.
+      data = segments_.get(index_.segmentAt(slot)).dataAt(index_.offsetAt(slot));
+    }
+    catch(IOException e)
+    {
+      throw new StorageException("Failed to read blob " + hash, e);
+    }
+    finally
+    {
+      indexLock_.readLock().unlock();
+    }
+    
+    ImmutableByteArray result = ImmutableByteArray.newInstance(data);
+    
+    if(verify && !hash.equals(HashProvider.getHashOf(hash.getTypeId(), result)))
+      throw new StorageException("Content of blob " + hash + " does not match its hash");
+    
+    return result;
+  }
+  
+  /**
+   * 
+   * @return The number of blobs in the store.
+   */
+  public int size()
+  {
+    indexLock_.readLock().lock();
+    try
+    {
+      return index_.size();
+    }
+    finally
+    {
+      indexLock_.readLock().unlock();
+    }
+  }
+  
+  /**
+   * 
+   * @return The number of segment files.
+   */
+  public int getSegmentCount()
+  {
+    return segments_.size();
+  }
+  
+  /**
+   * Reclaim the space used by deleted blobs.
+   * 
+   * Each segment other than the active one in which less than the given
+   * proportion of the space is live has its live content appended to the
+   * active segment, after which it is deleted. Readers are not blocked,
+   * writers are blocked only while each individual record is copied.
+   * 
+   * @param maxLiveRatio  Segments whose live content is less than this proportion
+   *                      of their size are compacted, e.g. 0.5
+   * 
+   * @return The number of segments removed.
+   * 
+   * @throws StorageException If an I/O error occurs.
+   */
+  public int compact(double maxLiveRatio) throws StorageException
+  {
+    checkOpen();
+    
+    compactLock_.lock();
+    try
+    {
+      int compacted = 0;
+      
+      for(Map.Entry<Integer, BlobSegment> entry : segments_.entrySet())
+      {
+        BlobSegment segment = entry.getValue();
+        
+        appendLock_.lock();
+        try
+        {
+          if(segment == active_)
+            break;
+        }
+        finally
+        {
+          appendLock_.unlock();
+        }
+        
+        if(liveBytes(segment) < maxLiveRatio * segment.size())
+        {
+          compact(segment, segment.getId() == segments_.firstKey());
+          compacted++;
+        }
+      }
+      
+      return compacted;
+    }
+    catch(IOException e)
+    {
+      throw new StorageException("Compaction failed", e);
+    }
+    finally
+    {
+      compactLock_.unlock();
+    }
+  }
+  
+  private long liveBytes(BlobSegment segment) throws IOException
+  {
+    long[] live = new long[1];
+    
+    indexLock_.readLock().lock();
+    try
+    {
+      index_.forEach((fp, segmentId, offset) ->
+      {
+        if(segmentId == segment.getId())
+          live[0] += segment.nextRecord(offset) - offset;
+      });
+    }
+    finally
+    {
+      indexLock_.readLock().unlock();
+    }
+    
+    return live[0];
+  }
+  
+  private void compact(BlobSegment segment, boolean oldest) throws IOException, StorageException
+  {
+    long offset = BlobSegment.FILE_HEADER;
+    
+    while(offset < segment.size())
+    {
+      int  recordOffset = (int) offset;
+      long next         = segment.nextRecord(recordOffset);
+      
+      if(next == -1)
+        break;
+      
+      ImmutableByteArray hashBytes = segment.hashAt(recordOffset);
+      long               fp        = BlobIndex.fingerprint(hashBytes);
+      
+      appendLock_.lock();
+      try
+      {
+        int slot = index_.find(fp, matcher(hashBytes));
+        
+        if(segment.typeAt(recordOffset) == BlobSegment.TYPE_PUT)
+        {
+          if(slot != -1 && index_.segmentAt(slot) == segment.getId() && index_.offsetAt(slot) == recordOffset)
+          {
+            ImmutableByteArray data   = ImmutableByteArray.newInstance(segment.dataAt(recordOffset));
+            BlobSegment        target = segmentFor(next - offset);
+            int                moved  = target.append(BlobSegment.TYPE_PUT, hashBytes, data);
+            
+            indexLock_.writeLock().lock();
+            try
+            {
+              index_.update(slot, target.getId(), moved);
+            }
+            finally
+            {
+              indexLock_.writeLock().unlock();
+            }
+            
+            writtenSeq_++;
+          }
+        }
+        else if(slot == -1 && !oldest)
+        {
+          // An older segment may still hold a put for this hash so keep the delete.
+          segmentFor(next - offset).append(BlobSegment.TYPE_DELETE, hashBytes, null);
+          writtenSeq_++;
+        }
+      }
+      finally
+      {
+        appendLock_.unlock();
+      }
+      
+      offset = next;
+    }
+    
+    // The copies must be durable before the original is removed.
+    flush();
+    
+    indexLock_.writeLock().lock();
+    try
+    {
+      segments_.remove(segment.getId());
+    }
+    finally
+    {
+      indexLock_.writeLock().unlock();
+    }
+    
+    segment.delete();
+  }
+
+  /**
+   * Force all writes to disk and close the store.
+   * 
+   * Values previously returned from get() remain valid.
+   * 
+   * @throws IOException If the store cannot be closed cleanly.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    if(closed_)
+      return;
+    
+    compactLock_.lock();
+    appendLock_.lock();
+    indexLock_.writeLock().lock();
+    try
+    {
+      closed_ = true;
+      
+      for(BlobSegment segment : segments_.values())
+      {
+        segment.force();
+        segment.close();
+      }
+      
+      index_.close();
+    }
+    finally
+    {
+      indexLock_.writeLock().unlock();
+      appendLock_.unlock();
+      compactLock_.unlock();
+    }
+  }
+}
@@ -23,6 +23,7 @@
 
 package org.symphonyoss.s2.common.hash;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -65,6 +66,12 @@ import org.symphonyoss.s2.common.fault.CodingFault;
     digest_.update(bytes);
   }
 
+  @Override
+  /* package */ void update(ByteBuffer buffer)
+  {
+    digest_.update(buffer);
+  }
+
   @Override
   /* package */ byte[] digest()
   {
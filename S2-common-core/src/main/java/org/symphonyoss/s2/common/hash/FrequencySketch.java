@@ -0,0 +1,167 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.hash;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A count-min sketch of the approximate access frequency of keys within a
+ * time window, used as the TinyLFU admission filter for HashCache.
+ *
+ * Each long in the table holds sixteen 4 bit counters, an item is mapped to
+ * four counters in four different longs and its frequency is the minimum of
+ * those counters. When the number of increments reaches the sample size all
+ * counters are halved so that the sketch ages out historic popularity.
+ *
+ * @author Bruce Skingle
+ *
+ */
+@NotThreadSafe
+/* package */ class FrequencySketch
+{
+  private static final long[] SEED       = new long[]
+  {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+  };
+  private static final long   RESET_MASK = 0x7777777777777777L;
+  private static final long   ONE_MASK   = 0x1111111111111111L;
+  private static final int    MAX_TABLE  = 1 << 26;
+
+  private long[] table_;
+  private int    tableMask_;
+  private int    sampleSize_;
+  private int    size_;
+
+  /* package */ FrequencySketch()
+  {
+    ensureCapacity(16);
+  }
+
+  /**
+   * Increase the size of the sketch, if necessary, so that it can accurately
+   * estimate the frequency of the given number of distinct items.
+   *
+   * @param maximumSize The expected number of distinct items.
+   */
+  /* package */ void ensureCapacity(long maximumSize)
+  {
+    int maximum = (int) Math.min(Math.max(maximumSize, 16), MAX_TABLE);
+
+    if(table_ != null && table_.length >= maximum)
+      return;
+
+    int length = Integer.highestOneBit(maximum - 1) << 1;
+
+    table_ = new long[length];
+    tableMask_ = length - 1;
+    sampleSize_ = 10 * length;
+    size_ = 0;
+  }
+
+  /**
+   * Return the estimated number of occurrences of the given key, to a maximum of 15.
+   *
+   * @param key A key.
+   *
+   * @return The estimated number of occurrences of the given key.
+   */
+  /* package */ int frequency(Object key)
+  {
+    int hash  = spread(key.hashCode());
+    int start = (hash & 3) << 2;
+    int freq  = Integer.MAX_VALUE;
+
+    for(int i=0 ; i<4 ; i++)
+    {
+      int index = indexOf(hash, i);
+      int count = (int) ((table_[index] >>> ((start + i) << 2)) & 0xfL);
+
+      freq = Math.min(freq, count);
+    }
+
+    return freq;
+  }
+
+  /**
+   * Record an occurrence of the given key.
+   *
+   * @param key A key.
+   */
+  /* package */ void increment(Object key)
+  {
+    int     hash  = spread(key.hashCode());
+    int     start = (hash & 3) << 2;
+    boolean added = false;
+
+    for(int i=0 ; i<4 ; i++)
+      added |= incrementAt(indexOf(hash, i), start + i);
+
+    if(added && ++size_ == sampleSize_)
+      reset();
+  }
+
+  private boolean incrementAt(int i, int j)
+  {
+    int  offset = j << 2;
+    long mask   = 0xfL << offset;
+
+    if((table_[i] & mask) != mask)
+    {
+      table_[i] += 1L << offset;
+      return true;
+    }
+
+    return false;
+  }
+
+  private void reset()
+  {
+    int count = 0;
+
+    for(int i=0 ; i<table_.length ; i++)
+    {
+      count += Long.bitCount(table_[i] & ONE_MASK);
+      table_[i] = (table_[i] >>> 1) & RESET_MASK;
+    }
+
+    size_ = (size_ >>> 1) - (count >>> 2);
+  }
+
+  private int indexOf(int item, int i)
+  {
+    long hash = (item + SEED[i]) * SEED[i];
+
+    hash += hash >>> 32;
+
+    return ((int) hash) & tableMask_;
+  }
+
+  private static int spread(int x)
+  {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+
+    return (x >>> 16) ^ x;
+  }
+}
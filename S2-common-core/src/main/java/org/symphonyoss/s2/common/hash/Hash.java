@@ -24,6 +24,7 @@
 package org.symphonyoss.s2.common.hash;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
 import org.apache.commons.codec.binary.Base64;
@@ -107,6 +108,31 @@ public class Hash implements Comparable<Hash>
     return HashType.defaultHashTypeId_;
   }
   
+  /**
+   * Set the pool used to intern values created by the static newInstance()
+   * and build() methods.
+   * 
+   * Interning is disabled by default, passing null disables it again. The
+   * Hash constructors never intern their values.
+   * 
+   * @param internPool A pool of canonical Hash values, or null.
+   */
+  public static void setInternPool(@Nullable HashInternPool internPool)
+  {
+    internPool_ = internPool;
+  }
+  
+  /**
+   * Return the pool used to intern values created by the static newInstance()
+   * and build() methods.
+   * 
+   * @return The current intern pool, or null if interning is disabled.
+   */
+  public static @Nullable HashInternPool getInternPool()
+  {
+    return internPool_;
+  }
+  
   private static final int[]        hexCharToInt_        = new int[]
   {
       /* 00 */ -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
@@ -132,6 +158,8 @@ public class Hash implements Comparable<Hash>
       '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
   };
   
+  private static volatile HashInternPool internPool_;
+  
   private final ImmutableByteArray hashBytes_;
   private final HashType           hashType_;
   private final String             hashString_;
@@ -369,6 +397,19 @@ public class Hash implements Comparable<Hash>
   {
     return new Hash(Base64.decodeBase64(base64String));
   }
+  
+  /*
+   * Equivalent to ofBase64String but returns the interned value if interning is enabled.
+   */
+  private static Hash buildFromBase64String(String base64String)
+  {
+    HashInternPool internPool = internPool_;
+    
+    if(internPool == null)
+      return ofBase64String(base64String);
+    
+    return internPool.intern(ImmutableByteArray.newInstance(Base64.decodeBase64(base64String)));
+  }
 
   
   /**
@@ -453,7 +494,7 @@ public class Hash implements Comparable<Hash>
     
     try
     {
-      return new Hash(byteString);
+      return build(byteString);
     } catch (IllegalArgumentException e)
     {
       throw new TransactionFault(e);
@@ -477,7 +518,12 @@ public class Hash implements Comparable<Hash>
     
     try
     {
-      return new Hash(bytes);
+      HashInternPool internPool = internPool_;
+      
+      if(internPool == null)
+        return new Hash(bytes);
+      
+      return internPool.intern(ImmutableByteArray.newInstance(bytes));
     } catch (IllegalArgumentException e)
     {
       throw new TransactionFault(e);
@@ -500,7 +546,7 @@ public class Hash implements Comparable<Hash>
     
     try
     {
-      return ofBase64String(string);
+      return buildFromBase64String(string);
     } catch (IllegalArgumentException e)
     {
       throw new TransactionFault(e);
@@ -575,7 +621,12 @@ public class Hash implements Comparable<Hash>
    */
   public static Hash build(ByteString byteString)
   {
-    return new Hash(byteString);
+    HashInternPool internPool = internPool_;
+    
+    if(internPool == null)
+      return new Hash(byteString);
+    
+    return internPool.intern(byteString);
   }
   
   /**
@@ -622,6 +673,11 @@ public class Hash implements Comparable<Hash>
    */
   public static Hash build(ImmutableByteArray byteString)
   {
-    return new Hash(byteString);
+    HashInternPool internPool = internPool_;
+    
+    if(internPool == null)
+      return new Hash(byteString);
+    
+    return internPool.intern(byteString);
   }
 }
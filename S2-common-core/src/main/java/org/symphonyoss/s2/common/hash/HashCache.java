@@ -0,0 +1,777 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.hash;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.symphonyoss.s2.common.fault.FaultAccumulator;
+import org.symphonyoss.s2.common.fault.TransactionFault;
+import org.symphonyoss.s2.common.fluent.BaseAbstractBuilder;
+
+/**
+ * A bounded cache of values keyed by their content Hash.
+ *
+ * Since the key is the hash of the content an entry can never become stale,
+ * so entries are only ever removed to make space. The capacity of the cache
+ * is expressed as a maximum weight, where the weight of each value is
+ * determined by a weigher function (ImmutableByteArray::length for example)
+ * or is 1 if no weigher is set.
+ *
+ * Eviction follows the W-TinyLFU policy. New entries are admitted to a small
+ * LRU window, entries leaving the window compete with the least recently used
+ * entry of the main (segmented LRU) space and the one with the lower
+ * estimated access frequency is evicted.
+ *
+ * Reads do not take a lock, accesses are recorded in a lossy buffer which is
+ * drained into the eviction policy opportunistically. When a value is loaded
+ * through get(Hash, Function) concurrent misses for the same key wait for a
+ * single invocation of the loader.
+ *
+ * @author Bruce Skingle
+ *
+ * @param <V> The type of the cached values.
+ */
+@ThreadSafe
+public class HashCache<V>
+{
+  private static final int WINDOW = 0;
+  private static final int PROBATION = 1;
+  private static final int PROTECTED = 2;
+
+  private static final int   READ_BUFFER_SIZE = 128;
+  private static final int   READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+  private final ConcurrentHashMap<Hash, Node<V>>              data_    = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Hash, CompletableFuture<V>> loading_ = new ConcurrentHashMap<>();
+  private final ToIntFunction<? super V>                      weigher_;
+  private final Function<Hash, ? extends V>                   loader_;
+  private final long                                          maximumWeight_;
+  private final long                                          windowMaximum_;
+  private final long                                          protectedMaximum_;
+
+  private final ReentrantLock                                 evictionLock_ = new ReentrantLock();
+  private final FrequencySketch                               sketch_       = new FrequencySketch();
+  private final AccessOrderQueue<V>                           window_       = new AccessOrderQueue<>();
+  private final AccessOrderQueue<V>                           probation_    = new AccessOrderQueue<>();
+  private final AccessOrderQueue<V>                           protected_    = new AccessOrderQueue<>();
+  private long                                                windowWeight_;
+  private long                                                protectedWeight_;
+  private volatile long                                       weightedSize_;
+
+  private final AtomicReferenceArray<Node<V>>                 readBuffer_ = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+  private final AtomicLong                                    readBufferTail_ = new AtomicLong();
+
+  private final LongAdder                                     hitCount_ = new LongAdder();
+  private final LongAdder                                     missCount_ = new LongAdder();
+  private final LongAdder                                     loadCount_ = new LongAdder();
+  private final LongAdder                                     loadFailureCount_ = new LongAdder();
+  private final LongAdder                                     evictionCount_ = new LongAdder();
+  private final LongAdder                                     evictionWeight_ = new LongAdder();
+
+  private HashCache(Builder<V> builder)
+  {
+    weigher_          = builder.weigher_;
+    loader_           = builder.loader_;
+    maximumWeight_    = builder.maximumWeight_;
+    windowMaximum_    = Math.max(1, maximumWeight_ / 100);
+    protectedMaximum_ = (long) ((maximumWeight_ - windowMaximum_) * 0.8);
+
+    sketch_.ensureCapacity(builder.expectedEntries_ > 0 ? builder.expectedEntries_ : Math.min(maximumWeight_, 1 << 16));
+  }
+
+  /**
+   * Builder for HashCache.
+   *
+   * @author Bruce Skingle
+   *
+   * @param <V> The type of the cached values.
+   */
+  public static class Builder<V> extends BaseAbstractBuilder<Builder<V>, HashCache<V>>
+  {
+    private long                        maximumWeight_ = -1;
+    private ToIntFunction<? super V>    weigher_       = (v) -> 1;
+    private Function<Hash, ? extends V> loader_;
+    private long                        expectedEntries_;
+
+    /**
+     * Constructor.
+     */
+    @SuppressWarnings("unchecked")
+    public Builder()
+    {
+      super((Class<Builder<V>>) (Class<?>) Builder.class);
+    }
+
+    /**
+     * Set the maximum total weight of the values in the cache.
+     *
+     * If no weigher is set this is the maximum number of entries.
+     *
+     * @param maximumWeight The maximum total weight of the values in the cache.
+     *
+     * @return this (fluent method)
+     */
+    public Builder<V> withMaximumWeight(long maximumWeight)
+    {
+      maximumWeight_ = maximumWeight;
+
+      return self();
+    }
+
+    /**
+     * Set the function used to calculate the weight of values.
+     *
+     * @param weigher A function which returns the weight of a value, which must not be negative.
+     *
+     * @return this (fluent method)
+     */
+    public Builder<V> withWeigher(ToIntFunction<? super V> weigher)
+    {
+      weigher_ = weigher;
+
+      return self();
+    }
+
+    /**
+     * Set the default loader, used by get(Hash) when a value is not present.
+     *
+     * @param loader A function which returns the value for a key, or null if there is no such value.
+     *
+     * @return this (fluent method)
+     */
+    public Builder<V> withLoader(Function<Hash, ? extends V> loader)
+    {
+      loader_ = loader;
+
+      return self();
+    }
+
+    /**
+     * Set the expected number of entries, which is used to size the frequency sketch.
+     *
+     * If this is not set then the maximum weight (capped at 65536) is used.
+     *
+     * @param expectedEntries The expected number of entries in the cache.
+     *
+     * @return this (fluent method)
+     */
+    public Builder<V> withExpectedEntries(long expectedEntries)
+    {
+      expectedEntries_ = expectedEntries;
+
+      return self();
+    }
+
+    @Override
+    protected void validate(FaultAccumulator faultAccumulator)
+    {
+      super.validate(faultAccumulator);
+
+      if(maximumWeight_ < 1)
+        faultAccumulator.error("maximumWeight must be set to a positive value.");
+
+      faultAccumulator.checkNotNull(weigher_, "weigher");
+    }
+
+    @Override
+    protected HashCache<V> construct()
+    {
+      return new HashCache<>(this);
+    }
+  }
+
+  /**
+   * Return the cached value for the given key, without loading it.
+   *
+   * @param key A content Hash.
+   *
+   * @return The cached value or null if there is no such value in the cache.
+   */
+  public @Nullable V getIfPresent(Hash key)
+  {
+    Node<V> node = data_.get(key);
+
+    if(node == null)
+    {
+      missCount_.increment();
+      return null;
+    }
+
+    hitCount_.increment();
+    afterRead(node);
+
+    return node.value_;
+  }
+
+  /**
+   * Return the value for the given key, loading it with the default loader if necessary.
+   *
+   * @param key A content Hash.
+   *
+   * @return The value for the given key, or null if the loader returns null.
+   *
+   * @throws IllegalStateException If no default loader was set.
+   */
+  public @Nullable V get(Hash key)
+  {
+    if(loader_ == null)
+      throw new IllegalStateException("No default loader has been set.");
+
+    return get(key, loader_);
+  }
+
+  /**
+   * Return the value for the given key, loading it with the given loader if necessary.
+   *
+   * If several threads miss on the same key concurrently the loader is called
+   * once and the other threads wait for its result. A null result from the loader
+   * is returned but not cached.
+   *
+   * @param key     A content Hash.
+   * @param loader  A function which returns the value for a key, or null if there is no such value.
+   *
+   * @return The value for the given key, or null if the loader returns null.
+   *
+   * @throws TransactionFault If the loader throws a checked exception,
+   *         RuntimeExceptions thrown by the loader are rethrown as is.
+   */
+  public @Nullable V get(Hash key, Function<Hash, ? extends V> loader)
+  {
+    Node<V> node = data_.get(key);
+
+    if(node != null)
+    {
+      hitCount_.increment();
+      afterRead(node);
+
+      return node.value_;
+    }
+
+    missCount_.increment();
+
+    CompletableFuture<V> future   = new CompletableFuture<>();
+    CompletableFuture<V> inFlight = loading_.putIfAbsent(key, future);
+
+    if(inFlight != null)
+      return join(inFlight);
+
+    try
+    {
+      // A load may have completed between our miss and registering our future.
+      node = data_.get(key);
+
+      V value = node == null ? load(key, loader) : node.value_;
+
+      future.complete(value);
+
+      return value;
+    }
+    catch(RuntimeException | Error e)
+    {
+      future.completeExceptionally(e);
+      throw e;
+    }
+    finally
+    {
+      loading_.remove(key, future);
+    }
+  }
+
+  private V load(Hash key, Function<Hash, ? extends V> loader)
+  {
+    V value;
+
+    try
+    {
+      value = loader.apply(key);
+    }
+    catch(RuntimeException | Error e)
+    {
+      loadFailureCount_.increment();
+      throw e;
+    }
+
+    loadCount_.increment();
+
+    if(value != null)
+      put(key, value);
+
+    return value;
+  }
+
+  private V join(CompletableFuture<V> future)
+  {
+    try
+    {
+      return future.join();
+    }
+    catch(CompletionException e)
+    {
+      Throwable cause = e.getCause();
+
+      if(cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+
+      if(cause instanceof Error)
+        throw (Error) cause;
+
+      throw new TransactionFault(cause);
+    }
+  }
+
+  /**
+   * Insert the given value into the cache, replacing any existing value.
+   *
+   * A value whose weight exceeds the maximum weight of the cache is not stored.
+   *
+   * @param key   The content Hash of the value.
+   * @param value A value.
+   */
+  public void put(Hash key, @Nonnull V value)
+  {
+    int weight = weigher_.applyAsInt(value);
+
+    if(weight < 0)
+      throw new IllegalArgumentException("Weight may not be negative");
+
+    evictionLock_.lock();
+    try
+    {
+      drainReadBuffer();
+      sketch_.increment(key);
+
+      if(weight > maximumWeight_)
+      {
+        Node<V> existing = data_.remove(key);
+
+        if(existing != null)
+          unlink(existing);
+
+        return;
+      }
+
+      Node<V> node     = new Node<>(key, value, weight);
+      Node<V> existing = data_.put(key, node);
+
+      if(existing != null)
+        unlink(existing);
+
+      node.queue_ = WINDOW;
+      window_.addLast(node);
+      windowWeight_ += weight;
+      weightedSize_ += weight;
+
+      sketch_.ensureCapacity(data_.size());
+
+      evict();
+    }
+    finally
+    {
+      evictionLock_.unlock();
+    }
+  }
+
+  /**
+   * Remove the entry for the given key, if present.
+   *
+   * @param key A content Hash.
+   */
+  public void invalidate(Hash key)
+  {
+    evictionLock_.lock();
+    try
+    {
+      Node<V> node = data_.remove(key);
+
+      if(node != null)
+        unlink(node);
+    }
+    finally
+    {
+      evictionLock_.unlock();
+    }
+  }
+
+  /**
+   * Remove all entries from the cache.
+   */
+  public void invalidateAll()
+  {
+    evictionLock_.lock();
+    try
+    {
+      for(Node<V> node : data_.values())
+      {
+        if(data_.remove(node.key_, node))
+          unlink(node);
+      }
+    }
+    finally
+    {
+      evictionLock_.unlock();
+    }
+  }
+
+  private void afterRead(Node<V> node)
+  {
+    int slot = (int) (readBufferTail_.getAndIncrement() & READ_BUFFER_MASK);
+
+    // Lossy, an undrained entry may be overwritten, which only costs some accuracy
+    readBuffer_.lazySet(slot, node);
+
+    if(slot == READ_BUFFER_MASK && evictionLock_.tryLock())
+    {
+      try
+      {
+        drainReadBuffer();
+      }
+      finally
+      {
+        evictionLock_.unlock();
+      }
+    }
+  }
+
+  private void drainReadBuffer()
+  {
+    for(int i=0 ; i<READ_BUFFER_SIZE ; i++)
+    {
+      Node<V> node = readBuffer_.getAndSet(i, null);
+
+      if(node != null)
+        onAccess(node);
+    }
+  }
+
+  private void onAccess(Node<V> node)
+  {
+    sketch_.increment(node.key_);
+
+    if(node.removed_)
+      return;
+
+    switch(node.queue_)
+    {
+      case WINDOW:
+        window_.moveToLast(node);
+        break;
+
+      case PROBATION:
+        probation_.remove(node);
+        node.queue_ = PROTECTED;
+        protected_.addLast(node);
+        protectedWeight_ += node.weight_;
+
+        while(protectedWeight_ > protectedMaximum_)
+        {
+          Node<V> demoted = protected_.removeFirst();
+
+          protectedWeight_ -= demoted.weight_;
+          demoted.queue_ = PROBATION;
+          probation_.addLast(demoted);
+        }
+        break;
+
+      case PROTECTED:
+        protected_.moveToLast(node);
+        break;
+    }
+  }
+
+  private void evict()
+  {
+    // Entries leaving the window become candidates at the MRU end of probation
+    Node<V> candidate = null;
+
+    while(windowWeight_ > windowMaximum_)
+    {
+      Node<V> node = window_.removeFirst();
+
+      if(node == null)
+        break;
+
+      windowWeight_ -= node.weight_;
+      node.queue_ = PROBATION;
+      probation_.addLast(node);
+
+      if(candidate == null)
+        candidate = node;
+    }
+
+    while(weightedSize_ > maximumWeight_)
+    {
+      Node<V> victim = probation_.first();
+
+      if(victim == null)
+        victim = protected_.first();
+
+      if(victim == null)
+        victim = window_.first();
+
+      if(victim == null)
+        break;
+
+      if(candidate == null || candidate == victim || candidate.queue_ != PROBATION)
+      {
+        if(candidate == victim)
+          candidate = candidate.next_;
+
+        evictEntry(victim);
+      }
+      else if(sketch_.frequency(candidate.key_) > sketch_.frequency(victim.key_))
+      {
+        evictEntry(victim);
+      }
+      else
+      {
+        Node<V> next = candidate.next_;
+
+        evictEntry(candidate);
+        candidate = next;
+      }
+    }
+  }
+
+  private void evictEntry(Node<V> node)
+  {
+    if(data_.remove(node.key_, node))
+    {
+      evictionCount_.increment();
+      evictionWeight_.add(node.weight_);
+    }
+
+    unlink(node);
+  }
+
+  private void unlink(Node<V> node)
+  {
+    if(node.removed_)
+      return;
+
+    node.removed_ = true;
+    weightedSize_ -= node.weight_;
+
+    switch(node.queue_)
+    {
+      case WINDOW:
+        window_.remove(node);
+        windowWeight_ -= node.weight_;
+        break;
+
+      case PROBATION:
+        probation_.remove(node);
+        break;
+
+      case PROTECTED:
+        protected_.remove(node);
+        protectedWeight_ -= node.weight_;
+        break;
+    }
+  }
+
+  /**
+   *
+   * @return The number of entries in the cache.
+   */
+  public long size()
+  {
+    return data_.size();
+  }
+
+  /**
+   *
+   * @return The total weight of the entries in the cache.
+   */
+  public long getWeightedSize()
+  {
+    return weightedSize_;
+  }
+
+  /**
+   *
+   * @return The maximum total weight of the entries in the cache.
+   */
+  public long getMaximumWeight()
+  {
+    return maximumWeight_;
+  }
+
+  /**
+   *
+   * @return The number of lookups which found a cached value.
+   */
+  public long getHitCount()
+  {
+    return hitCount_.sum();
+  }
+
+  /**
+   *
+   * @return The number of lookups which did not find a cached value.
+   */
+  public long getMissCount()
+  {
+    return missCount_.sum();
+  }
+
+  /**
+   *
+   * @return The ratio of hits to lookups, or 1.0 if there have been no lookups.
+   */
+  public double getHitRatio()
+  {
+    long hits     = hitCount_.sum();
+    long requests = hits + missCount_.sum();
+
+    return requests == 0 ? 1.0 : (double) hits / requests;
+  }
+
+  /**
+   *
+   * @return The number of calls to a loader which completed normally.
+   */
+  public long getLoadCount()
+  {
+    return loadCount_.sum();
+  }
+
+  /**
+   *
+   * @return The number of calls to a loader which threw an exception.
+   */
+  public long getLoadFailureCount()
+  {
+    return loadFailureCount_.sum();
+  }
+
+  /**
+   *
+   * @return The number of entries evicted to make space.
+   */
+  public long getEvictionCount()
+  {
+    return evictionCount_.sum();
+  }
+
+  /**
+   *
+   * @return The total weight of the entries evicted to make space.
+   */
+  public long getEvictionWeight()
+  {
+    return evictionWeight_.sum();
+  }
+
+  private static class Node<V>
+  {
+    private final Hash key_;
+    private final V    value_;
+    private final int  weight_;
+    private int        queue_;
+    private boolean    removed_;
+    private Node<V>    prev_;
+    private Node<V>    next_;
+
+    Node(Hash key, V value, int weight)
+    {
+      key_ = key;
+      value_ = value;
+      weight_ = weight;
+    }
+  }
+
+  /*
+   * An intrusive doubly linked list in LRU order, the first element is the least recently used.
+   */
+  private static class AccessOrderQueue<V>
+  {
+    private Node<V> first_;
+    private Node<V> last_;
+
+    Node<V> first()
+    {
+      return first_;
+    }
+
+    void addLast(Node<V> node)
+    {
+      node.next_ = null;
+      node.prev_ = last_;
+
+      if(last_ == null)
+        first_ = node;
+      else
+        last_.next_ = node;
+
+      last_ = node;
+    }
+
+    Node<V> removeFirst()
+    {
+      Node<V> node = first_;
+
+      if(node != null)
+        remove(node);
+
+      return node;
+    }
+
+    void moveToLast(Node<V> node)
+    {
+      if(node != last_)
+      {
+        remove(node);
+        addLast(node);
+      }
+    }
+
+    void remove(Node<V> node)
+    {
+      if(node.prev_ == null)
+        first_ = node.next_;
+      else
+        node.prev_.next_ = node.next_;
+
+      if(node.next_ == null)
+        last_ = node.prev_;
+      else
+        node.next_.prev_ = node.prev_;
+
+      node.prev_ = null;
+      node.next_ = null;
+    }
+  }
+}
@@ -23,6 +23,8 @@
 
 package org.symphonyoss.s2.common.hash;
 
+import java.nio.ByteBuffer;
+
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
 
@@ -93,12 +95,40 @@ public class HashFactory
    */
   public @Nonnull Hash   getHashOf(ImmutableByteArray bytes)
   {
-    for(byte b : bytes)
-      hashFunction_.update(b);
+    update(bytes);
     
     return new Hash(typeId_, hashFunction_.digest());
   }
   
+  /**
+   * Return the hash of the concatenation of the given values.
+   * 
+   * This is intended for values which are too large to be held in a single
+   * ImmutableByteArray, such as the segments returned by ImmutableByteArray.mapSegments(),
+   * the result is the same as the hash of a single array containing all of the parts.
+   * 
+   * @param parts The parts of a value to be hashed.
+   * @return The hash of the given value.
+   */
+  public @Nonnull Hash   getHashOf(Iterable<? extends ImmutableByteArray> parts)
+  {
+    for(ImmutableByteArray part : parts)
+      update(part);
+    
+    return new Hash(typeId_, hashFunction_.digest());
+  }
+  
+  /*
+   * Feed the buffers of the given array to the hash function, which avoids a
+   * boxed iteration over each byte and allows direct and mapped buffers to be
+   * hashed without a copy onto the heap.
+   */
+  private void update(ImmutableByteArray bytes)
+  {
+    for(ByteBuffer buffer : bytes.asReadOnlyByteBufferList())
+      hashFunction_.update(buffer);
+  }
+  
   /**
    * Return the hash of the given values.
    * 
@@ -117,8 +147,7 @@ public class HashFactory
         if(Hash.NIL_HASH.equals(part))
           throw new CodingFault("NIL_HASH (null value) included as element of composite hash");
         
-        for(byte b : ((Hash) part).toImmutableByteArray())
-          hashFunction_.update(b);
+        update(((Hash) part).toImmutableByteArray());
       }
       else if(part instanceof byte[])
       {
@@ -126,8 +155,7 @@ public class HashFactory
       }
       else if(part instanceof ImmutableByteArray)
       {
-        for(byte b : (ImmutableByteArray) part)
-          hashFunction_.update(b);
+        update((ImmutableByteArray) part);
       }
       else
       {
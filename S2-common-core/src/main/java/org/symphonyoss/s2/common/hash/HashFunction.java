@@ -23,12 +23,15 @@
 
 package org.symphonyoss.s2.common.hash;
 
+import java.nio.ByteBuffer;
+
 /* package */ abstract class AbstractHashFunction
 {
   /* package */ abstract byte[] digest(byte[] bytes);
 
   /* package */ abstract void update(byte[] bytes);
   /* package */ abstract void update(byte b);
+  /* package */ abstract void update(ByteBuffer buffer);
 
   /* package */ abstract byte[] digest();
 }
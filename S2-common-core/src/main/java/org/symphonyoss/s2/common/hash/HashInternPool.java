@@ -0,0 +1,354 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.hash;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * A pool of canonical Hash instances.
+ *
+ * The same Hash value (a thread or user ID for example) is typically decoded
+ * many times from different messages. Interning those values means that
+ * long lived caches hold one Hash (and one ImmutableByteArray) per distinct
+ * value rather than one per decode.
+ *
+ * The pool holds its values weakly, so an interned Hash which is no longer
+ * referenced elsewhere can still be garbage collected. The pool is divided
+ * into a number of independently locked shards, each of which is bounded,
+ * when a shard is full the least recently used entry is discarded.
+ *
+ * Interning can be bypassed, either by calling setBypass(true) or by
+ * creating Hash values with one of the Hash constructors rather than the
+ * static factory methods.
+ *
+ * @author Bruce Skingle
+ *
+ */
+@ThreadSafe
+public class HashInternPool
+{
+  /** The default maximum number of entries in a pool. */
+  public static final int DEFAULT_MAX_SIZE    = 65536;
+
+  /** The default number of shards in a pool. */
+  public static final int DEFAULT_SHARD_COUNT = 16;
+
+  private final Shard[]    shards_;
+  private final int        shardMask_;
+  private final int        maxSize_;
+  private final AtomicLong hitCount_  = new AtomicLong();
+  private final AtomicLong missCount_ = new AtomicLong();
+  private volatile boolean bypass_;
+
+  /**
+   * Construct a pool with the default size and number of shards.
+   */
+  public HashInternPool()
+  {
+    this(DEFAULT_MAX_SIZE, DEFAULT_SHARD_COUNT);
+  }
+
+  /**
+   * Construct a pool.
+   *
+   * @param maxSize     The maximum number of entries to be held in the pool.
+   * @param shardCount  The number of shards, which is rounded up to a power of 2.
+   *
+   * @throws IllegalArgumentException If either parameter is less than 1.
+   */
+  public HashInternPool(int maxSize, int shardCount)
+  {
+    if(maxSize < 1)
+      throw new IllegalArgumentException("maxSize must be at least 1");
+
+    if(shardCount < 1)
+      throw new IllegalArgumentException("shardCount must be at least 1");
+
+    int cnt = 1;
+
+    while(cnt < shardCount && cnt < maxSize)
+      cnt <<= 1;
+
+    int shardSize = (maxSize + cnt - 1) / cnt;
+
+    maxSize_ = maxSize;
+    shardMask_ = cnt - 1;
+    shards_ = new Shard[cnt];
+
+    for(int i=0 ; i<cnt ; i++)
+      shards_[i] = new Shard(shardSize);
+  }
+
+  /**
+   * Return the canonical Hash for the given encoded value.
+   *
+   * @param hashBytes The byte representation of a Hash.
+   *
+   * @return The canonical Hash instance for the given value.
+   *
+   * @throws IllegalArgumentException If the given value is not a valid hash representation.
+   */
+  public @Nonnull Hash intern(ImmutableByteArray hashBytes)
+  {
+    if(bypass_)
+      return new Hash(hashBytes);
+
+    Shard shard = shardFor(hashBytes);
+    Hash  hash  = shard.get(hashBytes);
+
+    if(hash != null)
+    {
+      hitCount_.incrementAndGet();
+      return hash;
+    }
+
+    missCount_.incrementAndGet();
+
+    // Construct outside the lock, this also validates the encoding. The value may be a slice of a
+    // much larger message buffer which the canonical instance must not retain.
+    return shard.putIfAbsent(new Hash(hashBytes.compact()));
+  }
+
+  /**
+   * Return the canonical Hash for the given encoded value.
+   *
+   * @param byteString The ByteString representation of a Hash.
+   *
+   * @return The canonical Hash instance for the given value.
+   *
+   * @throws IllegalArgumentException If the given value is not a valid hash representation.
+   */
+  public @Nonnull Hash intern(ByteString byteString)
+  {
+    return intern(ImmutableByteArray.newInstance(byteString));
+  }
+
+  /**
+   * Return the canonical instance of the given Hash.
+   *
+   * If the pool does not already contain an equal value then the given
+   * instance becomes the canonical instance.
+   *
+   * @param hash A Hash value.
+   *
+   * @return The canonical Hash instance equal to the given value.
+   */
+  public @Nonnull Hash intern(Hash hash)
+  {
+    if(bypass_)
+      return hash;
+
+    ImmutableByteArray hashBytes = hash.toImmutableByteArray();
+    Shard              shard     = shardFor(hashBytes);
+    Hash               existing  = shard.get(hashBytes);
+
+    if(existing != null)
+    {
+      hitCount_.incrementAndGet();
+      return existing;
+    }
+
+    missCount_.incrementAndGet();
+
+    return shard.putIfAbsent(hash);
+  }
+
+  private Shard shardFor(ImmutableByteArray hashBytes)
+  {
+    int h = hashBytes.hashCode();
+
+    return shards_[(h ^ (h >>> 16)) & shardMask_];
+  }
+
+  /**
+   * If set to true then the pool is bypassed, intern() returns a new
+   * instance on every call and the contents of the pool are unaffected.
+   *
+   * @param bypass true if the pool should be bypassed.
+   */
+  public void setBypass(boolean bypass)
+  {
+    bypass_ = bypass;
+  }
+
+  /**
+   *
+   * @return true if the pool is being bypassed.
+   */
+  public boolean isBypass()
+  {
+    return bypass_;
+  }
+
+  /**
+   *
+   * @return The maximum number of entries in this pool.
+   */
+  public int getMaxSize()
+  {
+    return maxSize_;
+  }
+
+  /**
+   * Return the number of entries in this pool.
+   *
+   * This may include entries whose values have been garbage collected
+   * but which have not yet been purged.
+   *
+   * @return The number of entries in this pool.
+   */
+  public int size()
+  {
+    int size = 0;
+
+    for(Shard shard : shards_)
+      size += shard.size();
+
+    return size;
+  }
+
+  /**
+   *
+   * @return The number of calls to intern() which returned an existing value.
+   */
+  public long getHitCount()
+  {
+    return hitCount_.get();
+  }
+
+  /**
+   *
+   * @return The number of calls to intern() which did not find an existing value.
+   */
+  public long getMissCount()
+  {
+    return missCount_.get();
+  }
+
+  /**
+   * Remove all entries from the pool and reset the hit and miss counters.
+   */
+  public void clear()
+  {
+    for(Shard shard : shards_)
+      shard.clear();
+
+    hitCount_.set(0);
+    missCount_.set(0);
+  }
+
+  private static class HashReference extends WeakReference<Hash>
+  {
+    private final ImmutableByteArray key_;
+
+    HashReference(Hash hash, ReferenceQueue<Hash> queue)
+    {
+      super(hash, queue);
+
+      key_ = hash.toImmutableByteArray();
+    }
+  }
+
+  private static class Shard
+  {
+    private final ReferenceQueue<Hash>                             queue_ = new ReferenceQueue<>();
+    private final LinkedHashMap<ImmutableByteArray, HashReference> map_;
+
+    Shard(int maxSize)
+    {
+      map_ = new LinkedHashMap<ImmutableByteArray, HashReference>(16, 0.75f, true)
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ImmutableByteArray, HashReference> eldest)
+        {
+          return size() > maxSize;
+        }
+      };
+    }
+
+    synchronized Hash get(ImmutableByteArray key)
+    {
+      HashReference ref = map_.get(key);
+
+      return ref == null ? null : ref.get();
+    }
+
+    synchronized Hash putIfAbsent(Hash hash)
+    {
+      purge();
+
+      ImmutableByteArray key = hash.toImmutableByteArray();
+      HashReference      ref = map_.get(key);
+
+      if(ref != null)
+      {
+        Hash existing = ref.get();
+
+        if(existing != null)
+          return existing;
+      }
+
+      map_.put(key, new HashReference(hash, queue_));
+
+      return hash;
+    }
+
+    synchronized int size()
+    {
+      purge();
+
+      return map_.size();
+    }
+
+    synchronized void clear()
+    {
+      purge();
+      map_.clear();
+    }
+
+    private void purge()
+    {
+      HashReference ref;
+
+      while((ref = (HashReference) queue_.poll()) != null)
+      {
+        // The entry may already have been replaced by a live value.
+        map_.remove(ref.key_, ref);
+      }
+    }
+  }
+}
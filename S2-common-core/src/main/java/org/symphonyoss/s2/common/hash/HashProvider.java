@@ -83,6 +83,22 @@ public class HashProvider
     }
   }
   
+  /**
+   * Return the hash of the concatenation of the given values.
+   * 
+   * @param parts The parts of a value to be hashed.
+   * @return The hash of the given value.
+   */
+  public static @Nonnull Hash getHashOf(Iterable<? extends ImmutableByteArray> parts)
+  {
+    HashFactory factory = factories_[HashType.defaultHashTypeId_];
+    
+    synchronized (factory)
+    {
+      return factory.getHashOf(parts);
+    }
+  }
+  
   /**
    * Return the hash of the given type of the given value.
    * 
@@ -23,6 +23,7 @@
 
 package org.symphonyoss.s2.common.hash;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -70,6 +71,12 @@ import org.symphonyoss.s2.common.fault.CodingFault;
     sha256Digest_.update(b);
   }
 
+  @Override
+  /* package */ void update(ByteBuffer buffer)
+  {
+    sha256Digest_.update(buffer);
+  }
+
   @Override
   /* package */ byte[] digest()
   {
@@ -24,18 +24,21 @@
 package org.symphonyoss.s2.common.immutable;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import javax.annotation.concurrent.Immutable;
 
-import org.apache.commons.codec.binary.Base64;
 import org.symphonyoss.s2.common.reader.ByteArrayReader;
 
 import com.google.protobuf.ByteString;
@@ -44,6 +47,8 @@ import com.google.protobuf.ByteString;
 class ArrayBackedImmutableByteArray extends ImmutableByteArray
 {
   private final byte[] bytes_;
+  private final int    offset_;
+  private final int    length_;
   private String       stringValue_;
   private String       base64UrlSafeValue_;
   private String       base64Value_;
@@ -59,72 +64,93 @@ class ArrayBackedImmutableByteArray extends ImmutableByteArray
     int i=0;
     
     bytes_ = new byte[l];
+    offset_ = 0;
+    length_ = l;
     
     for(byte[] b : bytes)
     {
-      for(byte bb : b)
-      {
-        bytes_[i++] = bb;
-      }
+      System.arraycopy(b, 0, bytes_, i, b.length);
+      i += b.length;
     }
   }
 
+  /*
+   * Adopts the given array without a copy, the caller must not retain any reference to it
+   * which could be used to modify it.
+   */
+  ArrayBackedImmutableByteArray(byte[] bytes, int offset, int length)
+  {
+    bytes_ = bytes;
+    offset_ = offset;
+    length_ = length;
+  }
+
   ArrayBackedImmutableByteArray(String stringValue)
   {
     stringValue_ = stringValue;
     bytes_ = stringValue_.getBytes(StandardCharsets.UTF_8);
+    offset_ = 0;
+    length_ = bytes_.length;
   }
 
-  public ArrayBackedImmutableByteArray(InputStream in, int contentLength) throws IOException
+  ArrayBackedImmutableByteArray(InputStream in, int contentLength) throws IOException
   {
     bytes_ = new byte[contentLength];
+    offset_ = 0;
+    length_ = contentLength;
+    
     int offset=0;
-    int remaining = contentLength;
-    int nbytes;
     
-    while(remaining > 0)
+    while(offset < contentLength)
     {
-      nbytes = Math.min(1024, remaining);
+      int nbytes = in.read(bytes_, offset, contentLength - offset);
       
-      nbytes = in.read(bytes_, offset, nbytes);
+      if(nbytes == -1)
+        throw new EOFException("End of stream after " + offset + " of " + contentLength + " bytes");
       
       offset += nbytes;
-      remaining -= nbytes;
     }
   }
 
   @Override
   public Reader createReader(Charset charset)
   {
-    return new ByteArrayReader(bytes_, charset);
+    return new ByteArrayReader(bytes_, offset_, length_, charset);
   }
 
   @Override
   public InputStream getInputStream()
   {
-    return new ByteArrayInputStream(bytes_);
+    return new ByteArrayInputStream(bytes_, offset_, length_);
   }
 
   @Override
   public void write(OutputStream out) throws IOException
   {
-    out.write(bytes_);
+    out.write(bytes_, offset_, length_);
   }
 
   @Override
   public String toString()
   {
-    if(stringValue_ == null)
-      stringValue_ = new String(bytes_, StandardCharsets.UTF_8);
+    String value = stringValue_;
     
-    return stringValue_;
+    if(value == null)
+    {
+      value = new String(bytes_, offset_, length_, StandardCharsets.UTF_8);
+      
+      if(isStringCacheable())
+        stringValue_ = value;
+    }
+    
+    return value;
   }
   
   @Override
   public String toBase64UrlSafeString()
   {
     if(base64UrlSafeValue_ == null)
-      base64UrlSafeValue_ = Base64.encodeBase64URLSafeString(bytes_);
+      base64UrlSafeValue_ = encodeBase64(Base64.getUrlEncoder().withoutPadding(), ByteBuffer.wrap(bytes_, offset_, length_));
     
     return base64UrlSafeValue_;
   }
@@ -133,7 +159,7 @@ class ArrayBackedImmutableByteArray extends ImmutableByteArray
   public String toBase64String()
   {
     if(base64Value_ == null)
-      base64Value_ = Base64.encodeBase64String(bytes_);
+      base64Value_ = encodeBase64(Base64.getEncoder(), ByteBuffer.wrap(bytes_, offset_, length_));
     
     return base64Value_;
   }
@@ -146,17 +172,20 @@ class ArrayBackedImmutableByteArray extends ImmutableByteArray
   
   private class ByteIterator implements Iterator<Byte>
   {
-    private int   index_ = 0;
+    private int   index_ = offset_;
     
     @Override
     public boolean hasNext()
     {
-      return index_ < bytes_.length;
+      return index_ < offset_ + length_;
     }
 
     @Override
     public Byte next()
     {
+      if(index_ >= offset_ + length_)
+        throw new NoSuchElementException();
+      
       return bytes_[index_++];
     }
   }
@@ -164,33 +193,64 @@ class ArrayBackedImmutableByteArray extends ImmutableByteArray
   @Override
   public byte[] toByteArray()
   {
-    return Arrays.copyOf(bytes_, bytes_.length);
+    return Arrays.copyOfRange(bytes_, offset_, offset_ + length_);
   }
   
   @Override
   public ByteString toByteString()
   {
     if(byteStringValue_ == null)
-      byteStringValue_ = ByteString.copyFrom(bytes_);
+      byteStringValue_ = ByteString.copyFrom(bytes_, offset_, length_);
     
     return byteStringValue_;
   }
   
+  @Override
+  public ByteBuffer asReadOnlyByteBuffer()
+  {
+    return ByteBuffer.wrap(bytes_, offset_, length_).slice().asReadOnlyBuffer();
+  }
+  
   @Override
   public int length()
   {
-    return bytes_.length;
+    return length_;
   }
 
   @Override
   public byte byteAt(int index)
   {
-    return bytes_[index];
+    if(index < 0 || index >= length_)
+      throw new IndexOutOfBoundsException("Index " + index + " is outside the range 0-" + length_);
+    
+    return bytes_[offset_ + index];
   }
 
   @Override
   public void arraycopy(int index, byte[] dest, int destPos, int length)
   {
-    System.arraycopy(bytes_, index, dest, destPos, length);
+    checkRange(index, length);
+    
+    System.arraycopy(bytes_, offset_ + index, dest, destPos, length);
+  }
+
+  @Override
+  public ImmutableByteArray slice(int offset, int length)
+  {
+    checkRange(offset, length);
+    
+    if(offset == 0 && length == length_)
+      return this;
+    
+    return new ArrayBackedImmutableByteArray(bytes_, offset_ + offset, length);
+  }
+
+  @Override
+  public ImmutableByteArray compact()
+  {
+    if(length_ == bytes_.length)
+      return this;
+    
+    return new ArrayBackedImmutableByteArray(toByteArray(), 0, length_);
   }
 }
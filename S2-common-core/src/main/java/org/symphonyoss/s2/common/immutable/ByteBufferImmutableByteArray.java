@@ -0,0 +1,297 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.concurrent.Immutable;
+
+import org.symphonyoss.s2.common.reader.ByteBufferInputStream;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * An ImmutableByteArray backed by a ByteBuffer, which may be a direct or a mapped buffer.
+ * 
+ * The content is not copied, the creator must ensure that the underlying
+ * memory is not modified for the lifetime of this object.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@Immutable
+class ByteBufferImmutableByteArray extends ImmutableByteArray
+{
+  private final ByteBuffer  buffer_;
+  private final boolean     view_;
+  private final FileChannel channel_;
+  private final long        fileOffset_;
+  private String            stringValue_;
+  private String            base64UrlSafeValue_;
+  private String            base64Value_;
+  private ByteString        byteStringValue_;
+
+  ByteBufferImmutableByteArray(ByteBuffer buffer)
+  {
+    this(buffer, false, null, 0);
+  }
+  
+  /*
+   * A buffer mapped from the given region of the given channel, the channel is
+   * retained so that writes can use FileChannel.transferTo() while it is open.
+   */
+  ByteBufferImmutableByteArray(ByteBuffer buffer, FileChannel channel, long fileOffset)
+  {
+    this(buffer, false, channel, fileOffset);
+  }
+  
+  private ByteBufferImmutableByteArray(ByteBuffer buffer, boolean view, FileChannel channel, long fileOffset)
+  {
+    buffer_ = buffer.asReadOnlyBuffer().slice();
+    view_ = view;
+    channel_ = channel;
+    fileOffset_ = fileOffset;
+  }
+  
+  /*
+   * Return a duplicate of the buffer so that callers can change position and limit freely.
+   */
+  private ByteBuffer buffer()
+  {
+    return buffer_.duplicate();
+  }
+
+  @Override
+  public Reader createReader(Charset charset)
+  {
+    return new InputStreamReader(getInputStream(), charset);
+  }
+
+  @Override
+  public InputStream getInputStream()
+  {
+    return new ByteBufferInputStream(buffer_);
+  }
+
+  @Override
+  public void write(OutputStream out) throws IOException
+  {
+    ByteBuffer          buffer  = buffer();
+    WritableByteChannel channel = Channels.newChannel(out);
+    
+    while(buffer.hasRemaining())
+      channel.write(buffer);
+  }
+
+  /* package */ boolean isTransferable()
+  {
+    return channel_ != null && channel_.isOpen();
+  }
+
+  @Override
+  /* package */ boolean transferTo(WritableByteChannel target) throws IOException
+  {
+    if(!isTransferable())
+      return false;
+    
+    long position = fileOffset_;
+    long end      = fileOffset_ + buffer_.limit();
+    
+    while(position < end)
+    {
+      long count = channel_.transferTo(position, end - position, target);
+      
+      if(count == 0)
+      {
+        // No progress, either the file has shrunk under the mapping or the target will not take a transfer.
+        if(channel_.size() < end)
+          throw new IOException("File truncated below offset " + end + " during transfer");
+        
+        ByteBuffer buffer = buffer();
+        
+        buffer.position((int) (position - fileOffset_));
+        
+        while(buffer.hasRemaining())
+          target.write(buffer);
+        
+        return true;
+      }
+      
+      position += count;
+    }
+    
+    return true;
+  }
+
+  @Override
+  public String toString()
+  {
+    String value = stringValue_;
+    
+    if(value == null)
+    {
+      value = StandardCharsets.UTF_8.decode(buffer()).toString();
+      
+      if(isStringCacheable())
+        stringValue_ = value;
+    }
+    
+    return value;
+  }
+  
+  @Override
+  public String toBase64UrlSafeString()
+  {
+    if(base64UrlSafeValue_ == null)
+      base64UrlSafeValue_ = encodeBase64(Base64.getUrlEncoder().withoutPadding(), buffer());
+    
+    return base64UrlSafeValue_;
+  }
+  
+  @Override
+  public String toBase64String()
+  {
+    if(base64Value_ == null)
+      base64Value_ = encodeBase64(Base64.getEncoder(), buffer());
+    
+    return base64Value_;
+  }
+
+  @Override
+  public Iterator<Byte> iterator()
+  {
+    return new ByteIterator();
+  }
+  
+  private class ByteIterator implements Iterator<Byte>
+  {
+    private int   index_ = 0;
+    
+    @Override
+    public boolean hasNext()
+    {
+      return index_ < buffer_.limit();
+    }
+
+    @Override
+    public Byte next()
+    {
+      if(index_ >= buffer_.limit())
+        throw new NoSuchElementException();
+      
+      return buffer_.get(index_++);
+    }
+  }
+
+  @Override
+  public byte[] toByteArray()
+  {
+    byte[] bytes = new byte[buffer_.limit()];
+    
+    buffer().get(bytes);
+    
+    return bytes;
+  }
+  
+  @Override
+  public ByteString toByteString()
+  {
+    if(byteStringValue_ == null)
+      byteStringValue_ = UnsafeByteOperations.unsafeWrap(buffer());
+    
+    return byteStringValue_;
+  }
+  
+  @Override
+  public ByteBuffer asReadOnlyByteBuffer()
+  {
+    return buffer();
+  }
+
+  @Override
+  public int length()
+  {
+    return buffer_.limit();
+  }
+
+  @Override
+  public byte byteAt(int index)
+  {
+    return buffer_.get(index);
+  }
+
+  @Override
+  public void arraycopy(int index, byte[] dest, int destPos, int length)
+  {
+    checkRange(index, length);
+    
+    ByteBuffer buffer = buffer();
+    
+    buffer.position(index);
+    buffer.get(dest, destPos, length);
+  }
+
+  @Override
+  public ImmutableByteArray slice(int offset, int length)
+  {
+    checkRange(offset, length);
+    
+    if(offset == 0 && length == buffer_.limit())
+      return this;
+    
+    ByteBuffer buffer = buffer();
+    
+    buffer.position(offset);
+    buffer.limit(offset + length);
+    
+    return new ByteBufferImmutableByteArray(buffer, true, channel_, fileOffset_ + offset);
+  }
+
+  /**
+   * A view of a buffer is copied onto the heap, which also releases the
+   * parent buffer if it is a direct or mapped buffer.
+   */
+  @Override
+  public ImmutableByteArray compact()
+  {
+    if(!view_)
+      return this;
+    
+    return new ArrayBackedImmutableByteArray(toByteArray(), 0, buffer_.limit());
+  }
+}
@@ -27,31 +27,46 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.annotation.concurrent.Immutable;
 
-import org.apache.commons.codec.binary.Base64;
 import org.symphonyoss.s2.common.reader.ByteStringInputStream;
 import org.symphonyoss.s2.common.reader.ByteStringReader;
 
 import com.google.protobuf.ByteString;
-
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * An ImmutableByteArray backed by a protobuf ByteString.
+ * 
+ * The content is not copied, all operations are performed on the ByteString.
+ * 
+ * @author Bruce Skingle
+ *
+ */
 @Immutable
 class ByteStringImmutableByteArray extends ImmutableByteArray
 {
   private final ByteString byteString_;
-  private final byte[]     bytes_;
+  private final boolean    view_;
   private String           stringValue_;
   private String           base64UrlSafeValue_;
   private String           base64Value_;
 
   ByteStringImmutableByteArray(ByteString byteString)
+  {
+    this(byteString, false);
+  }
+
+  private ByteStringImmutableByteArray(ByteString byteString, boolean view)
   {
     byteString_ = byteString;
-    bytes_ = byteString_.toByteArray();
+    view_ = view;
   }
 
   @Override
@@ -72,20 +87,33 @@ class ByteStringImmutableByteArray extends ImmutableByteArray
     byteString_.writeTo(out);
   }
 
+  @Override
+  public void write(CodedOutputStream out) throws IOException
+  {
+    out.writeRawBytes(byteString_);
+  }
+
   @Override
   public String toString()
   {
-    if(stringValue_ == null)
-      stringValue_ = new String(bytes_, StandardCharsets.UTF_8);
+    String value = stringValue_;
     
-    return stringValue_;
+    if(value == null)
+    {
+      value = byteString_.toStringUtf8();
+      
+      if(isStringCacheable())
+        stringValue_ = value;
+    }
+    
+    return value;
   }
   
   @Override
   public String toBase64UrlSafeString()
   {
     if(base64UrlSafeValue_ == null)
-      base64UrlSafeValue_ = Base64.encodeBase64URLSafeString(bytes_);
+      base64UrlSafeValue_ = encodeBase64(Base64.getUrlEncoder().withoutPadding(), byteString_.asReadOnlyByteBuffer());
     
     return base64UrlSafeValue_;
   }
@@ -94,7 +122,7 @@ class ByteStringImmutableByteArray extends ImmutableByteArray
   public String toBase64String()
   {
     if(base64Value_ == null)
-      base64Value_ = Base64.encodeBase64String(bytes_);
+      base64Value_ = encodeBase64(Base64.getEncoder(), byteString_.asReadOnlyByteBuffer());
     
     return base64Value_;
   }
@@ -117,6 +145,19 @@ class ByteStringImmutableByteArray extends ImmutableByteArray
     return byteString_;
   }
 
+  @Override
+  public ByteBuffer asReadOnlyByteBuffer()
+  {
+    return byteString_.asReadOnlyByteBuffer();
+  }
+
+  @Override
+  public List<ByteBuffer> asReadOnlyByteBufferList()
+  {
+    // For a rope this returns the buffers of the leaves without flattening them.
+    return byteString_.asReadOnlyByteBufferList();
+  }
+
   @Override
   public int length()
   {
@@ -132,7 +173,29 @@ class ByteStringImmutableByteArray extends ImmutableByteArray
   @Override
   public void arraycopy(int index, byte[] dest, int destPos, int length)
   {
-    for(int i=0 ; i<length ; i++)
-      dest[destPos++] = byteString_.byteAt(index++);
+    checkRange(index, length);
+    
+    byteString_.copyTo(dest, index, destPos, length);
+  }
+
+  @Override
+  public ImmutableByteArray slice(int offset, int length)
+  {
+    checkRange(offset, length);
+    
+    if(offset == 0 && length == byteString_.size())
+      return this;
+    
+    // ByteString.substring shares the underlying storage
+    return new ByteStringImmutableByteArray(byteString_.substring(offset, offset + length), true);
+  }
+
+  @Override
+  public ImmutableByteArray compact()
+  {
+    if(!view_)
+      return this;
+    
+    return new ByteStringImmutableByteArray(ByteString.copyFrom(byteString_.asReadOnlyByteBuffer()));
   }
 }
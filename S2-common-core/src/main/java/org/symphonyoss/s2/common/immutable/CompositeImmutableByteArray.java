@@ -0,0 +1,334 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * An ImmutableByteArray which is the concatenation of a number of other
+ * ImmutableByteArrays (a rope).
+ * 
+ * The parts are referenced rather than copied. Operations which require
+ * contiguous storage (toString() and the Base64 encodings for example)
+ * flatten the parts into a temporary array which is not retained, so a
+ * rope never holds a second copy of its content. byteAt(), indexOf(),
+ * streams and writes process each part in turn.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@Immutable
+class CompositeImmutableByteArray extends ImmutableByteArray
+{
+  private final ImmutableByteArray[] parts_;
+  private final int[]                offsets_;
+  private final int                  length_;
+  private ByteString                 byteStringValue_;
+
+  CompositeImmutableByteArray(ImmutableByteArray ...parts)
+  {
+    List<ImmutableByteArray> list = new ArrayList<>(parts.length);
+    
+    for(ImmutableByteArray part : parts)
+    {
+      // Nested composites are expanded so that the tree is never more than one level deep.
+      if(part instanceof CompositeImmutableByteArray)
+        list.addAll(Arrays.asList(((CompositeImmutableByteArray) part).parts_));
+      else if(part.length() > 0)
+        list.add(part);
+    }
+    
+    parts_ = list.toArray(new ImmutableByteArray[list.size()]);
+    offsets_ = new int[parts_.length];
+    
+    long l = 0;
+    
+    for(int i=0 ; i<parts_.length ; i++)
+    {
+      offsets_[i] = (int) l;
+      l += parts_[i].length();
+      
+      if(l > Integer.MAX_VALUE)
+        throw new IllegalArgumentException("Total length of parts exceeds Integer.MAX_VALUE");
+    }
+    
+    length_ = (int) l;
+  }
+  
+  /*
+   * Return a copy of the contents as a single contiguous array.
+   */
+  private ImmutableByteArray flat()
+  {
+    return new ArrayBackedImmutableByteArray(copyParts(), 0, length_);
+  }
+  
+  private byte[] copyParts()
+  {
+    byte[] bytes = new byte[length_];
+    
+    for(int i=0 ; i<parts_.length ; i++)
+      parts_[i].arraycopy(0, bytes, offsets_[i], parts_[i].length());
+    
+    return bytes;
+  }
+  
+  /*
+   * Return the index of the part containing the byte at the given index.
+   */
+  private int partIndex(int index)
+  {
+    int i = Arrays.binarySearch(offsets_, index);
+    
+    return i >= 0 ? i : -i - 2;
+  }
+
+  @Override
+  public Reader createReader(Charset charset)
+  {
+    return new InputStreamReader(getInputStream(), charset);
+  }
+
+  @Override
+  public InputStream getInputStream()
+  {
+    List<InputStream> streams = new ArrayList<>(parts_.length);
+    
+    for(ImmutableByteArray part : parts_)
+      streams.add(part.getInputStream());
+    
+    return new SequenceInputStream(Collections.enumeration(streams));
+  }
+
+  @Override
+  public void write(OutputStream out) throws IOException
+  {
+    for(ImmutableByteArray part : parts_)
+      part.write(out);
+  }
+
+  @Override
+  public void write(WritableByteChannel channel) throws IOException
+  {
+    for(ImmutableByteArray part : parts_)
+      part.write(channel);
+  }
+
+  @Override
+  public void write(CodedOutputStream out) throws IOException
+  {
+    for(ImmutableByteArray part : parts_)
+      part.write(out);
+  }
+
+  @Override
+  public String toString()
+  {
+    return flat().toString();
+  }
+
+  @Override
+  public String toBase64UrlSafeString()
+  {
+    return flat().toBase64UrlSafeString();
+  }
+
+  @Override
+  public String toBase64String()
+  {
+    return flat().toBase64String();
+  }
+
+  @Override
+  public ByteString toByteString()
+  {
+    if(byteStringValue_ == null)
+    {
+      // ByteString.concat produces a rope, so this does not copy the parts.
+      ByteString byteString = ByteString.EMPTY;
+      
+      for(ImmutableByteArray part : parts_)
+        byteString = byteString.concat(part.toByteString());
+      
+      byteStringValue_ = byteString;
+    }
+    
+    return byteStringValue_;
+  }
+
+  @Override
+  public byte[] toByteArray()
+  {
+    return copyParts();
+  }
+
+  @Override
+  public ByteBuffer asReadOnlyByteBuffer()
+  {
+    return flat().asReadOnlyByteBuffer();
+  }
+
+  @Override
+  public List<ByteBuffer> asReadOnlyByteBufferList()
+  {
+    List<ByteBuffer> list = new ArrayList<>(parts_.length);
+    
+    for(ImmutableByteArray part : parts_)
+      list.addAll(part.asReadOnlyByteBufferList());
+    
+    return list;
+  }
+
+  @Override
+  public int length()
+  {
+    return length_;
+  }
+
+  @Override
+  public byte byteAt(int index)
+  {
+    if(index < 0 || index >= length_)
+      throw new IndexOutOfBoundsException("Index " + index + " is outside the range 0-" + length_);
+    
+    int i = partIndex(index);
+    
+    return parts_[i].byteAt(index - offsets_[i]);
+  }
+
+  @Override
+  public void arraycopy(int index, byte[] dest, int destPos, int length)
+  {
+    checkRange(index, length);
+    
+    int i = partIndex(index);
+    
+    while(length > 0)
+    {
+      ImmutableByteArray part   = parts_[i];
+      int                start  = index - offsets_[i];
+      int                amount = Math.min(length, part.length() - start);
+      
+      part.arraycopy(start, dest, destPos, amount);
+      
+      index   += amount;
+      destPos += amount;
+      length  -= amount;
+      i++;
+    }
+  }
+
+  @Override
+  public ImmutableByteArray slice(int offset, int length)
+  {
+    checkRange(offset, length);
+    
+    if(offset == 0 && length == length_)
+      return this;
+    
+    if(length == 0)
+      return EMPTY;
+    
+    int first = partIndex(offset);
+    int last  = partIndex(offset + length - 1);
+    
+    if(first == last)
+      return parts_[first].slice(offset - offsets_[first], length);
+    
+    ImmutableByteArray[] parts = new ImmutableByteArray[last - first + 1];
+    
+    for(int i=first ; i<=last ; i++)
+    {
+      int start = Math.max(offset, offsets_[i]) - offsets_[i];
+      int end   = Math.min(offset + length, offsets_[i] + parts_[i].length()) - offsets_[i];
+      
+      parts[i - first] = parts_[i].slice(start, end - start);
+    }
+    
+    return new CompositeImmutableByteArray(parts);
+  }
+
+  /**
+   * A composite is flattened into a new single array, which does not retain the parts.
+   */
+  @Override
+  public ImmutableByteArray compact()
+  {
+    return flat();
+  }
+
+  @Override
+  public Iterator<Byte> iterator()
+  {
+    return new ByteIterator();
+  }
+  
+  private class ByteIterator implements Iterator<Byte>
+  {
+    private int            part_;
+    private Iterator<Byte> it_ = parts_.length == 0 ? null : parts_[0].iterator();
+    
+    @Override
+    public boolean hasNext()
+    {
+      while(it_ != null)
+      {
+        if(it_.hasNext())
+          return true;
+        
+        it_ = ++part_ < parts_.length ? parts_[part_].iterator() : null;
+      }
+      
+      return false;
+    }
+
+    @Override
+    public Byte next()
+    {
+      if(!hasNext())
+        throw new NoSuchElementException();
+      
+      return it_.next();
+    }
+  }
+}
@@ -0,0 +1,384 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.symphonyoss.s2.common.fault.CodingFault;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * An ImmutableByteArray which holds its content in deflated form.
+ * 
+ * This is intended for values such as JSON text which are held in memory for
+ * a long time and which compress well. getInputStream(), createReader() and
+ * write() inflate the content as it is read. Operations which need random access
+ * to the content inflate it into an array which is held by a SoftReference, so
+ * that it can be reused by subsequent calls but does not prevent the memory from
+ * being reclaimed.
+ * 
+ * The static newInstance methods compress a value only if it is larger than a
+ * threshold and compresses well enough, otherwise the value is returned unchanged.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@Immutable
+public class CompressedImmutableByteArray extends ImmutableByteArray
+{
+  /** The default size below which values are not compressed. */
+  public static final int    DEFAULT_THRESHOLD = 4096;
+  
+  /** The default maximum ratio of compressed to uncompressed size for a value to be stored compressed. */
+  public static final double DEFAULT_MAX_RATIO = 0.75;
+  
+  private static final int   CHUNK_SIZE        = 64 * 1024;
+  
+  private final byte[]                      compressed_;
+  private final int                         length_;
+  private SoftReference<ImmutableByteArray> inflated_;
+
+  private CompressedImmutableByteArray(byte[] compressed, int length)
+  {
+    compressed_ = compressed;
+    length_ = length;
+  }
+  
+  /**
+   * Return the given value in compressed form if it is at least DEFAULT_THRESHOLD bytes
+   * long and compresses to no more than DEFAULT_MAX_RATIO of its length, otherwise return
+   * the given value.
+   * 
+   * @param data A value.
+   * 
+   * @return The given value, compressed if that is worthwhile.
+   */
+  public static ImmutableByteArray newInstance(ImmutableByteArray data)
+  {
+    return newInstance(data, DEFAULT_THRESHOLD, DEFAULT_MAX_RATIO);
+  }
+  
+  /**
+   * Return the given value in compressed form if it is at least threshold bytes long
+   * and compresses to no more than maxRatio of its length, otherwise return the given value.
+   * 
+   * Compression is abandoned as soon as the output exceeds the permitted size.
+   * 
+   * @param data      A value.
+   * @param threshold The size below which values are not compressed.
+   * @param maxRatio  The maximum ratio of compressed to uncompressed size.
+   * 
+   * @return The given value, compressed if that is worthwhile.
+   */
+  public static ImmutableByteArray newInstance(ImmutableByteArray data, int threshold, double maxRatio)
+  {
+    if(data instanceof CompressedImmutableByteArray || data.length() < threshold)
+      return data;
+    
+    byte[] compressed = deflate(data, (long) (data.length() * maxRatio));
+    
+    if(compressed == null)
+      return data;
+    
+    return new CompressedImmutableByteArray(compressed, data.length());
+  }
+  
+  /**
+   * Return the given value in compressed form regardless of its size.
+   * 
+   * @param data A value.
+   * 
+   * @return The given value in compressed form.
+   */
+  public static CompressedImmutableByteArray compress(ImmutableByteArray data)
+  {
+    if(data instanceof CompressedImmutableByteArray)
+      return (CompressedImmutableByteArray) data;
+    
+    return new CompressedImmutableByteArray(deflate(data, Long.MAX_VALUE), data.length());
+  }
+  
+  /*
+   * Deflate the given data, returning null if the output would exceed maxLength.
+   */
+  private static @Nullable byte[] deflate(ImmutableByteArray data, long maxLength)
+  {
+    Deflater              deflater = new Deflater();
+    ByteArrayOutputStream out      = new ByteArrayOutputStream();
+    byte[]                in       = new byte[Math.min(CHUNK_SIZE, data.length())];
+    byte[]                buf      = new byte[CHUNK_SIZE];
+    int                   offset   = 0;
+    
+    try
+    {
+      while(!deflater.finished())
+      {
+        if(deflater.needsInput())
+        {
+          if(offset < data.length())
+          {
+            int len = Math.min(in.length, data.length() - offset);
+            
+            data.arraycopy(offset, in, 0, len);
+            deflater.setInput(in, 0, len);
+            offset += len;
+          }
+          else
+          {
+            deflater.finish();
+          }
+        }
+        
+        int len = deflater.deflate(buf);
+        
+        out.write(buf, 0, len);
+        
+        if(out.size() > maxLength)
+          return null;
+      }
+      
+      return out.toByteArray();
+    }
+    finally
+    {
+      deflater.end();
+    }
+  }
+  
+  /*
+   * Return the content as an uncompressed array, reusing a previous result if it has not been collected.
+   */
+  private ImmutableByteArray inflated()
+  {
+    SoftReference<ImmutableByteArray> ref      = inflated_;
+    ImmutableByteArray                inflated = ref == null ? null : ref.get();
+    
+    if(inflated == null)
+    {
+      byte[]   bytes    = new byte[length_];
+      Inflater inflater = new Inflater();
+      
+      try
+      {
+        inflater.setInput(compressed_);
+        
+        int offset = 0;
+        
+        while(offset < length_ && !inflater.finished())
+          offset += inflater.inflate(bytes, offset, length_ - offset);
+        
+        if(offset != length_)
+          throw new CodingFault("Compressed content is " + offset + " bytes, expected " + length_);
+      }
+      catch (DataFormatException e)
+      {
+        throw new CodingFault("Compressed content is corrupt", e);
+      }
+      finally
+      {
+        inflater.end();
+      }
+      
+      inflated = new ArrayBackedImmutableByteArray(bytes, 0, length_);
+      inflated_ = new SoftReference<>(inflated);
+    }
+    
+    return inflated;
+  }
+  
+  /*
+   * Return the cached uncompressed content if it is available.
+   */
+  private @Nullable ImmutableByteArray cached()
+  {
+    SoftReference<ImmutableByteArray> ref = inflated_;
+    
+    return ref == null ? null : ref.get();
+  }
+  
+  /**
+   * 
+   * @return The length of the compressed form of this value.
+   */
+  public int getCompressedLength()
+  {
+    return compressed_.length;
+  }
+  
+  /**
+   * Return the compressed form of this value, which is in the zlib format produced by Deflater.
+   * 
+   * @return The compressed form of this value.
+   */
+  public ImmutableByteArray getCompressed()
+  {
+    return new ArrayBackedImmutableByteArray(compressed_, 0, compressed_.length);
+  }
+
+  /**
+   * The content is inflated as it is read.
+   */
+  @Override
+  public Reader getReader()
+  {
+    return createReader(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  protected Reader createReader(Charset charset)
+  {
+    return new InputStreamReader(getInputStream(), charset);
+  }
+
+  @Override
+  public InputStream getInputStream()
+  {
+    ImmutableByteArray cached = cached();
+    
+    if(cached != null)
+      return cached.getInputStream();
+    
+    return new InflaterInputStream(new ByteArrayInputStream(compressed_));
+  }
+
+  @Override
+  public void write(OutputStream out) throws IOException
+  {
+    ImmutableByteArray cached = cached();
+    
+    if(cached != null)
+    {
+      cached.write(out);
+      return;
+    }
+    
+    try(InputStream in = getInputStream())
+    {
+      byte[] buf = new byte[Math.min(CHUNK_SIZE, Math.max(length_, 1))];
+      int    nbytes;
+      
+      while((nbytes = in.read(buf)) != -1)
+        out.write(buf, 0, nbytes);
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return inflated().toString();
+  }
+
+  @Override
+  public String toBase64UrlSafeString()
+  {
+    return inflated().toBase64UrlSafeString();
+  }
+
+  @Override
+  public String toBase64String()
+  {
+    return inflated().toBase64String();
+  }
+
+  @Override
+  public ByteString toByteString()
+  {
+    return inflated().toByteString();
+  }
+
+  @Override
+  public byte[] toByteArray()
+  {
+    return inflated().toByteArray();
+  }
+
+  @Override
+  public ByteBuffer asReadOnlyByteBuffer()
+  {
+    return inflated().asReadOnlyByteBuffer();
+  }
+
+  @Override
+  public int length()
+  {
+    return length_;
+  }
+
+  @Override
+  public byte byteAt(int index)
+  {
+    return inflated().byteAt(index);
+  }
+
+  @Override
+  public void arraycopy(int index, byte[] dest, int destPos, int length)
+  {
+    inflated().arraycopy(index, dest, destPos, length);
+  }
+
+  /**
+   * The returned slice is a view of the uncompressed content.
+   */
+  @Override
+  public ImmutableByteArray slice(int offset, int length)
+  {
+    checkRange(offset, length);
+    
+    if(offset == 0 && length == length_)
+      return this;
+    
+    return inflated().slice(offset, length);
+  }
+
+  @Override
+  public ImmutableByteArray compact()
+  {
+    return this;
+  }
+
+  @Override
+  public Iterator<Byte> iterator()
+  {
+    return inflated().iterator();
+  }
+}
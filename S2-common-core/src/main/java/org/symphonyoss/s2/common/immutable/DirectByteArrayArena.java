@@ -0,0 +1,570 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.symphonyoss.s2.common.fault.FaultAccumulator;
+import org.symphonyoss.s2.common.fluent.BaseAbstractBuilder;
+
+/**
+ * An arena from which DirectImmutableByteArrays are allocated.
+ * 
+ * Memory is allocated as direct ByteBuffers in power of 2 size classes
+ * between the minimum and maximum chunk size. When a DirectImmutableByteArray
+ * is released its buffer is returned to a free list for its size class, up to
+ * a limit on the total amount of pooled memory. Allocations larger than the
+ * maximum chunk size are made individually and are not pooled.
+ * 
+ * When leak detection is enabled (which it is by default if the system property
+ * org.symphonyoss.s2.common.immutable.leakDetection is set to true) the arena
+ * records the stack trace of each allocation and reports any array which is
+ * garbage collected without having been released. The buffer of a leaked array
+ * is not returned to the pool because a ByteString obtained from it may still
+ * be in use. Leak detection is expensive and is intended for use in tests.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@ThreadSafe
+public class DirectByteArrayArena
+{
+  /** The name of the system property which enables leak detection by default. */
+  public static final String LEAK_DETECTION_PROPERTY = "org.symphonyoss.s2.common.immutable.leakDetection";
+  
+  /** The default size of the smallest size class. */
+  public static final int    DEFAULT_MIN_CHUNK_SIZE  = 256;
+  
+  /** The default size of the largest size class. */
+  public static final int    DEFAULT_MAX_CHUNK_SIZE  = 1024 * 1024;
+  
+  /** The default limit on the total size of pooled buffers. */
+  public static final long   DEFAULT_MAX_POOLED_SIZE = 64L * 1024 * 1024;
+  
+  private static final Logger log_ = Logger.getLogger(DirectByteArrayArena.class.getName());
+  
+  /** The default leak handler, which logs the allocation stack trace as a SEVERE java.util.logging message. */
+  public static final Consumer<Throwable> DEFAULT_LEAK_HANDLER = (allocation) ->
+      log_.log(Level.SEVERE, "DirectImmutableByteArray was garbage collected without being released", allocation);
+  
+  private final int                                 minShift_;
+  private final int                                 maxChunkSize_;
+  private final long                                maxPooledSize_;
+  private final boolean                             leakDetection_;
+  private final Consumer<Throwable>                 leakHandler_;
+  private final ConcurrentLinkedQueue<ByteBuffer>[] pools_;
+  private final AtomicLong                          pooledSize_      = new AtomicLong();
+  private final AtomicLong                          allocatedSize_   = new AtomicLong();
+  private final AtomicLong                          allocationCount_ = new AtomicLong();
+  private final AtomicLong                          leakCount_       = new AtomicLong();
+  private final ReferenceQueue<Object>              leakQueue_       = new ReferenceQueue<>();
+  private final Set<LeakTracker>                    trackers_        = ConcurrentHashMap.newKeySet();
+  
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private DirectByteArrayArena(Builder builder)
+  {
+    minShift_      = 31 - Integer.numberOfLeadingZeros(builder.minChunkSize_ - 1) + 1;
+    maxChunkSize_  = Integer.highestOneBit(builder.maxChunkSize_);
+    maxPooledSize_ = builder.maxPooledSize_;
+    leakDetection_ = builder.leakDetection_;
+    leakHandler_   = builder.leakHandler_;
+    
+    int classCount = 31 - Integer.numberOfLeadingZeros(maxChunkSize_) - minShift_ + 1;
+    
+    pools_ = new ConcurrentLinkedQueue[Math.max(classCount, 1)];
+    
+    for(int i=0 ; i<pools_.length ; i++)
+      pools_[i] = new ConcurrentLinkedQueue<>();
+  }
+  
+  /**
+   * Builder for DirectByteArrayArena.
+   * 
+   * @author Bruce Skingle
+   *
+   */
+  public static class Builder extends BaseAbstractBuilder<Builder, DirectByteArrayArena>
+  {
+    private int                 minChunkSize_  = DEFAULT_MIN_CHUNK_SIZE;
+    private int                 maxChunkSize_  = DEFAULT_MAX_CHUNK_SIZE;
+    private long                maxPooledSize_ = DEFAULT_MAX_POOLED_SIZE;
+    private boolean             leakDetection_ = Boolean.getBoolean(LEAK_DETECTION_PROPERTY);
+    private Consumer<Throwable> leakHandler_   = DEFAULT_LEAK_HANDLER;
+    
+    /**
+     * Constructor.
+     */
+    public Builder()
+    {
+      super(Builder.class);
+    }
+    
+    /**
+     * Set the size of the smallest size class, which is rounded up to a power of 2.
+     * 
+     * @param minChunkSize The size of the smallest size class in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withMinChunkSize(int minChunkSize)
+    {
+      minChunkSize_ = minChunkSize;
+      
+      return self();
+    }
+    
+    /**
+     * Set the size of the largest size class, which is rounded down to a power of 2.
+     * 
+     * Allocations larger than this are not pooled.
+     * 
+     * @param maxChunkSize The size of the largest size class in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withMaxChunkSize(int maxChunkSize)
+    {
+      maxChunkSize_ = maxChunkSize;
+      
+      return self();
+    }
+    
+    /**
+     * Set the maximum total size of released buffers to be retained for reuse.
+     * 
+     * @param maxPooledSize The maximum total size of pooled buffers in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withMaxPooledSize(long maxPooledSize)
+    {
+      maxPooledSize_ = maxPooledSize;
+      
+      return self();
+    }
+    
+    /**
+     * Enable or disable leak detection.
+     * 
+     * @param leakDetection true if leaks should be detected.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withLeakDetection(boolean leakDetection)
+    {
+      leakDetection_ = leakDetection;
+      
+      return self();
+    }
+    
+    /**
+     * Set the handler to be called when a leak is detected.
+     * 
+     * The handler is passed a Throwable whose stack trace is that of the
+     * allocation of the leaked array. The default handler is DEFAULT_LEAK_HANDLER,
+     * which logs the stack trace with java.util.logging.
+     * 
+     * @param leakHandler A handler for leaks.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withLeakHandler(Consumer<Throwable> leakHandler)
+    {
+      leakHandler_ = leakHandler;
+      
+      return self();
+    }
+
+    @Override
+    protected void validate(FaultAccumulator faultAccumulator)
+    {
+      super.validate(faultAccumulator);
+      
+      faultAccumulator.checkNotNull(leakHandler_, "Leak handler");
+      
+      if(minChunkSize_ < 1)
+        faultAccumulator.error("Minimum chunk size must be at least 1");
+      
+      if(maxChunkSize_ < minChunkSize_)
+        faultAccumulator.error("Maximum chunk size must be at least the minimum chunk size");
+      
+      if(maxChunkSize_ > 1 << 30)
+        faultAccumulator.error("Maximum chunk size must be at most 1GB");
+      
+      if(maxPooledSize_ < 0)
+        faultAccumulator.error("Maximum pooled size must not be negative");
+    }
+
+    @Override
+    protected DirectByteArrayArena construct()
+    {
+      return new DirectByteArrayArena(this);
+    }
+  }
+  
+  /**
+   * Return a DirectImmutableByteArray containing a copy of the given data.
+   * 
+   * The caller owns one reference to the result and must call release() when it is no longer required.
+   * 
+   * @param data The data to be copied.
+   * 
+   * @return A DirectImmutableByteArray containing a copy of the given data.
+   */
+  public DirectImmutableByteArray copyOf(ImmutableByteArray data)
+  {
+    Allocation allocation = allocate(data.length());
+    ByteBuffer buffer     = allocation.buffer_.duplicate();
+    
+    for(ByteBuffer part : data.asReadOnlyByteBufferList())
+      buffer.put(part);
+    
+    return allocation.newArray();
+  }
+  
+  /**
+   * Return a DirectImmutableByteArray containing a copy of the remaining contents of the given buffer.
+   * 
+   * The position and limit of the given buffer are not changed.
+   * The caller owns one reference to the result and must call release() when it is no longer required.
+   * 
+   * @param data The data to be copied.
+   * 
+   * @return A DirectImmutableByteArray containing a copy of the given data.
+   */
+  public DirectImmutableByteArray copyOf(ByteBuffer data)
+  {
+    Allocation allocation = allocate(data.remaining());
+    
+    allocation.buffer_.duplicate().put(data.duplicate());
+    
+    return allocation.newArray();
+  }
+  
+  /**
+   * Return a DirectImmutableByteArray containing a copy of the given data.
+   * 
+   * The caller owns one reference to the result and must call release() when it is no longer required.
+   * 
+   * @param data    The data to be copied.
+   * @param offset  The offset of the first byte to be copied.
+   * @param length  The number of bytes to be copied.
+   * 
+   * @return A DirectImmutableByteArray containing a copy of the given data.
+   */
+  public DirectImmutableByteArray copyOf(byte[] data, int offset, int length)
+  {
+    return copyOf(ByteBuffer.wrap(data, offset, length));
+  }
+  
+  /**
+   * Read the given number of bytes from the given channel into a new DirectImmutableByteArray.
+   * 
+   * Reading from a channel into a direct buffer avoids any intermediate copy on the heap.
+   * The caller owns one reference to the result and must call release() when it is no longer required.
+   * 
+   * @param channel A channel.
+   * @param length  The number of bytes to read.
+   * 
+   * @return A DirectImmutableByteArray containing the data read.
+   * 
+   * @throws IOException  If the data cannot be read.
+   * @throws EOFException If the channel reaches end of stream before the given number of bytes are read.
+   */
+  public DirectImmutableByteArray readFrom(ReadableByteChannel channel, int length) throws IOException
+  {
+    Allocation allocation = allocate(length);
+    ByteBuffer buffer     = allocation.buffer_.duplicate();
+    
+    try
+    {
+      while(buffer.hasRemaining())
+      {
+        if(channel.read(buffer) == -1)
+          throw new EOFException("End of stream after " + buffer.position() + " of " + length + " bytes");
+      }
+    }
+    catch(IOException | RuntimeException e)
+    {
+      allocation.free();
+      throw e;
+    }
+    
+    return allocation.newArray();
+  }
+  
+  private Allocation allocate(int length)
+  {
+    if(length < 0)
+      throw new IllegalArgumentException("Length must not be negative");
+    
+    if(leakDetection_)
+      reportLeaks();
+    
+    int        sizeClass = sizeClass(length);
+    ByteBuffer buffer    = null;
+    
+    if(sizeClass >= 0)
+    {
+      buffer = pools_[sizeClass].poll();
+      
+      if(buffer != null)
+        pooledSize_.addAndGet(-buffer.capacity());
+      else
+        buffer = ByteBuffer.allocateDirect(1 << (sizeClass + minShift_));
+    }
+    else
+    {
+      buffer = ByteBuffer.allocateDirect(length);
+    }
+    
+    buffer.clear().limit(length);
+    
+    allocationCount_.incrementAndGet();
+    allocatedSize_.addAndGet(buffer.capacity());
+    
+    return new Allocation(buffer.slice(), buffer, sizeClass);
+  }
+  
+  /*
+   * Return the index of the size class for the given length, or -1 if it is too large to be pooled.
+   */
+  private int sizeClass(int length)
+  {
+    if(length > maxChunkSize_)
+      return -1;
+    
+    if(length <= 1 << minShift_)
+      return 0;
+    
+    return 32 - Integer.numberOfLeadingZeros(length - 1) - minShift_;
+  }
+  
+  private void free(ByteBuffer buffer, int sizeClass)
+  {
+    allocatedSize_.addAndGet(-buffer.capacity());
+    
+    if(sizeClass >= 0 && pooledSize_.addAndGet(buffer.capacity()) <= maxPooledSize_)
+      pools_[sizeClass].offer(buffer);
+    else if(sizeClass >= 0)
+      pooledSize_.addAndGet(-buffer.capacity());
+  }
+  
+  /**
+   * Check for arrays which have been garbage collected without being released.
+   * 
+   * This is called on each allocation when leak detection is enabled.
+   * 
+   * @return The number of leaks detected by this call.
+   */
+  public int reportLeaks()
+  {
+    int         cnt = 0;
+    LeakTracker tracker;
+    
+    while((tracker = (LeakTracker) leakQueue_.poll()) != null)
+    {
+      if(trackers_.remove(tracker))
+      {
+        cnt++;
+        leakCount_.incrementAndGet();
+        allocatedSize_.addAndGet(-tracker.capacity_);
+        leakHandler_.accept(tracker.allocationSite_);
+      }
+    }
+    
+    return cnt;
+  }
+  
+  /**
+   * Discard all pooled buffers.
+   */
+  public void trim()
+  {
+    for(ConcurrentLinkedQueue<ByteBuffer> pool : pools_)
+    {
+      ByteBuffer buffer;
+      
+      while((buffer = pool.poll()) != null)
+        pooledSize_.addAndGet(-buffer.capacity());
+    }
+  }
+  
+  /**
+   * 
+   * @return true if leak detection is enabled.
+   */
+  public boolean isLeakDetection()
+  {
+    return leakDetection_;
+  }
+  
+  /**
+   * 
+   * @return The number of leaks detected.
+   */
+  public long getLeakCount()
+  {
+    return leakCount_.get();
+  }
+  
+  /**
+   * 
+   * @return The total number of allocations made from this arena.
+   */
+  public long getAllocationCount()
+  {
+    return allocationCount_.get();
+  }
+  
+  /**
+   * 
+   * @return The total capacity of the buffers currently in use.
+   */
+  public long getAllocatedSize()
+  {
+    return allocatedSize_.get();
+  }
+  
+  /**
+   * 
+   * @return The total capacity of the buffers held for reuse.
+   */
+  public long getPooledSize()
+  {
+    return pooledSize_.get();
+  }
+  
+  /*
+   * The reference count and storage shared by a DirectImmutableByteArray and all of its slices.
+   */
+  /* package */ class Allocation
+  {
+    private final ByteBuffer    buffer_;
+    private final ByteBuffer    chunk_;
+    private final int           sizeClass_;
+    private final AtomicInteger referenceCount_ = new AtomicInteger(1);
+    private LeakTracker         tracker_;
+    
+    private Allocation(ByteBuffer buffer, ByteBuffer chunk, int sizeClass)
+    {
+      buffer_ = buffer;
+      chunk_ = chunk;
+      sizeClass_ = sizeClass;
+    }
+    
+    private DirectImmutableByteArray newArray()
+    {
+      DirectImmutableByteArray array = new DirectImmutableByteArray(this, buffer_);
+      
+      if(leakDetection_)
+      {
+        // Track the allocation rather than the array, since slices of the array share it.
+        tracker_ = new LeakTracker(this, chunk_.capacity());
+        trackers_.add(tracker_);
+      }
+      
+      return array;
+    }
+    
+    /* package */ int getReferenceCount()
+    {
+      return referenceCount_.get();
+    }
+    
+    /* package */ void retain()
+    {
+      int cnt;
+      
+      do
+      {
+        cnt = referenceCount_.get();
+        
+        if(cnt <= 0)
+          throw new IllegalStateException("DirectImmutableByteArray has been released.");
+      } while(!referenceCount_.compareAndSet(cnt, cnt + 1));
+    }
+    
+    /* package */ boolean release()
+    {
+      int cnt;
+      
+      do
+      {
+        cnt = referenceCount_.get();
+        
+        if(cnt <= 0)
+          throw new IllegalStateException("DirectImmutableByteArray has already been released.");
+      } while(!referenceCount_.compareAndSet(cnt, cnt - 1));
+      
+      if(cnt == 1)
+      {
+        free();
+        return true;
+      }
+      
+      return false;
+    }
+    
+    private void free()
+    {
+      if(tracker_ != null)
+      {
+        trackers_.remove(tracker_);
+        tracker_.clear();
+      }
+      
+      DirectByteArrayArena.this.free(chunk_, sizeClass_);
+    }
+  }
+  
+  private class LeakTracker extends PhantomReference<Object>
+  {
+    private final Throwable allocationSite_;
+    private final int       capacity_;
+    
+    LeakTracker(Object referent, int capacity)
+    {
+      super(referent, leakQueue_);
+      
+      allocationSite_ = new Throwable("Leaked DirectImmutableByteArray was allocated here");
+      capacity_ = capacity;
+    }
+  }
+}
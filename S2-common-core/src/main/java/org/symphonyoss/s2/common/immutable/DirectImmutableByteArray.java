@@ -0,0 +1,229 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.symphonyoss.s2.common.immutable.DirectByteArrayArena.Allocation;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * An ImmutableByteArray held in direct (off heap) memory allocated from a DirectByteArrayArena.
+ * 
+ * Instances are reference counted, an array is created with a reference count of 1
+ * and the memory is returned to the arena when the count reaches zero. Slices share
+ * the reference count of the array from which they were taken, so retaining or
+ * releasing a slice retains or releases the whole array.
+ * 
+ * Any operation on an array which has been released throws IllegalStateException,
+ * but objects obtained from the array before it was released (InputStreams, Readers,
+ * iterators, ByteBuffers and ByteStrings) refer to the underlying memory directly
+ * and must not be used after the array has been released. In particular toByteString()
+ * wraps the memory without a copy and the returned ByteString is only valid while a
+ * reference to the array is held. compact() returns a heap copy which is independent
+ * of the arena.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@ThreadSafe
+public class DirectImmutableByteArray extends ImmutableByteArray
+{
+  private final Allocation                   allocation_;
+  private final ByteBufferImmutableByteArray content_;
+
+  /* package */ DirectImmutableByteArray(Allocation allocation, ByteBuffer buffer)
+  {
+    allocation_ = allocation;
+    content_ = new ByteBufferImmutableByteArray(buffer);
+  }
+  
+  private ByteBufferImmutableByteArray content()
+  {
+    if(allocation_.getReferenceCount() <= 0)
+      throw new IllegalStateException("DirectImmutableByteArray has been released.");
+    
+    return content_;
+  }
+  
+  /**
+   * Increment the reference count.
+   * 
+   * @return this
+   * 
+   * @throws IllegalStateException If this array has already been released.
+   */
+  public DirectImmutableByteArray retain()
+  {
+    allocation_.retain();
+    
+    return this;
+  }
+  
+  /**
+   * Decrement the reference count, if it reaches zero the memory is returned to the arena.
+   * 
+   * @return true if the memory was returned to the arena.
+   * 
+   * @throws IllegalStateException If this array has already been released.
+   */
+  public boolean release()
+  {
+    return allocation_.release();
+  }
+  
+  /**
+   * 
+   * @return The current reference count.
+   */
+  public int getReferenceCount()
+  {
+    return allocation_.getReferenceCount();
+  }
+
+  @Override
+  protected Reader createReader(Charset charset)
+  {
+    return content().createReader(charset);
+  }
+
+  @Override
+  public InputStream getInputStream()
+  {
+    return content().getInputStream();
+  }
+
+  @Override
+  public void write(OutputStream out) throws IOException
+  {
+    content().write(out);
+  }
+
+  @Override
+  public void write(WritableByteChannel channel) throws IOException
+  {
+    ByteBuffer buffer = content().asReadOnlyByteBuffer();
+    
+    while(buffer.hasRemaining())
+      channel.write(buffer);
+  }
+
+  @Override
+  public String toString()
+  {
+    return content().toString();
+  }
+
+  @Override
+  public String toBase64UrlSafeString()
+  {
+    return content().toBase64UrlSafeString();
+  }
+
+  @Override
+  public String toBase64String()
+  {
+    return content().toBase64String();
+  }
+
+  @Override
+  public ByteString toByteString()
+  {
+    return content().toByteString();
+  }
+
+  @Override
+  public byte[] toByteArray()
+  {
+    return content().toByteArray();
+  }
+
+  @Override
+  public ByteBuffer asReadOnlyByteBuffer()
+  {
+    return content().asReadOnlyByteBuffer();
+  }
+
+  @Override
+  public int length()
+  {
+    return content_.length();
+  }
+
+  @Override
+  public byte byteAt(int index)
+  {
+    return content().byteAt(index);
+  }
+
+  @Override
+  public void arraycopy(int index, byte[] dest, int destPos, int length)
+  {
+    content().arraycopy(index, dest, destPos, length);
+  }
+
+  /**
+   * The returned slice shares the reference count of this array.
+   */
+  @Override
+  public DirectImmutableByteArray slice(int offset, int length)
+  {
+    checkRange(offset, length);
+    
+    if(offset == 0 && length == length())
+      return this;
+    
+    ByteBuffer buffer = content().asReadOnlyByteBuffer();
+    
+    buffer.position(offset);
+    buffer.limit(offset + length);
+    
+    return new DirectImmutableByteArray(allocation_, buffer);
+  }
+
+  /**
+   * Returns a copy of this array on the heap, which is independent of the arena and need not be released.
+   */
+  @Override
+  public ImmutableByteArray compact()
+  {
+    return new ArrayBackedImmutableByteArray(toByteArray(), 0, length());
+  }
+
+  @Override
+  public Iterator<Byte> iterator()
+  {
+    return content().iterator();
+  }
+}
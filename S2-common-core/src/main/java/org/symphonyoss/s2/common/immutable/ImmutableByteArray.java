@@ -23,17 +23,40 @@
 
 package org.symphonyoss.s2.common.immutable;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
-import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
+import org.symphonyoss.s2.common.reader.Utf8Reader;
+
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 
 /**
  * An immutable container for a byte array.
@@ -61,6 +84,22 @@ public abstract class ImmutableByteArray implements Iterable<Byte>, Comparable<I
    */
   public static final ImmutableByteArray  EMPTY = new ArrayBackedImmutableByteArray(new byte[0]);
   
+  /**
+   * A Comparator which orders ImmutableByteArrays lexicographically treating bytes as unsigned values.
+   */
+  public static final Comparator<ImmutableByteArray> UNSIGNED_COMPARATOR = (a, b) -> a.compareUnsigned(b);
+  
+  /** The default maximum length of an array whose String value is cached by toString(). */
+  public static final int DEFAULT_STRING_CACHE_THRESHOLD = 64 * 1024;
+  
+  private static final int BASE64_CHUNK_SIZE      = 3 * 1024;
+  private static final int BMH_MIN_PATTERN_LENGTH = 4;
+  private static final int MAX_GATHER             = 1024;
+  
+  private static volatile int stringCacheThreshold_ = DEFAULT_STRING_CACHE_THRESHOLD;
+  
+  private int hashCode_;
+  
   /**
    * Return an ImmutableByteArray containing the given data.
    * 
@@ -75,6 +114,35 @@ public abstract class ImmutableByteArray implements Iterable<Byte>, Comparable<I
     return new ArrayBackedImmutableByteArray(bytes);
   }
   
+  /**
+   * Return an ImmutableByteArray containing the concatenation of the given parts.
+   * 
+   * This operation does not involve a copy, the result references the given
+   * parts and is only flattened into a single contiguous array if that is
+   * required by a subsequent operation. Writing the result to a stream or
+   * channel writes each part in turn.
+   * 
+   * @param parts The parts of the ImmutableByteArray.
+   * 
+   * @return An ImmutableByteArray containing the concatenation of the given parts.
+   * 
+   * @throws IllegalArgumentException If the total length of the parts is greater than Integer.MAX_VALUE.
+   */
+  public static ImmutableByteArray newInstance(ImmutableByteArray ...parts)
+  {
+    switch(parts.length)
+    {
+      case 0:
+        return EMPTY;
+        
+      case 1:
+        return parts[0];
+        
+      default:
+        return new CompositeImmutableByteArray(parts);
+    }
+  }
+  
   /**
    * Return an ImmutableByteArray containing the given data.
    * 
@@ -97,12 +165,117 @@ public abstract class ImmutableByteArray implements Iterable<Byte>, Comparable<I
    * 
    * @return An ImmutableByteArray containing the given data.
    * @throws IOException if the content cannot be read
+   * @throws EOFException if the stream ends before contentLength bytes have been read
    */
   public static ImmutableByteArray newInstance(InputStream in, int contentLength) throws IOException
   {
     return new ArrayBackedImmutableByteArray(in, contentLength);
   }
   
+  /**
+   * Return an ImmutableByteArray containing the remaining content of the given stream.
+   * 
+   * The stream is read to end of stream in one pass, into chunks which grow as data arrives,
+   * and the chunks are adopted by the result without a further copy.
+   * 
+   * @param in An InputStream containing the data.
+   * 
+   * @return An ImmutableByteArray containing the given data.
+   * 
+   * @throws IOException if the content cannot be read or is larger than Integer.MAX_VALUE.
+   */
+  public static ImmutableByteArray newInstance(InputStream in) throws IOException
+  {
+    return readFrom(in, Integer.MAX_VALUE);
+  }
+  
+  /**
+   * Return an ImmutableByteArray containing the remaining content of the given stream,
+   * which must not be longer than the given maximum length.
+   * 
+   * The stream is read to end of stream in one pass, into chunks which grow as data arrives,
+   * and the chunks are adopted by the result without a further copy. If the stream reports
+   * the number of bytes available then the first chunk is sized accordingly.
+   * 
+   * @param in        An InputStream containing the data.
+   * @param maxLength The maximum number of bytes to be accepted.
+   * 
+   * @return An ImmutableByteArray containing the given data.
+   * 
+   * @throws IOException if the content cannot be read or is longer than maxLength.
+   * @throws IllegalArgumentException if maxLength is negative.
+   */
+  public static ImmutableByteArray readFrom(InputStream in, int maxLength) throws IOException
+  {
+    if(maxLength < 0)
+      throw new IllegalArgumentException("maxLength must not be negative");
+    
+    int available = Math.min(in.available(), maxLength);
+    
+    try(ImmutableByteArrayOutputStream out = new ImmutableByteArrayOutputStream(
+        available > 0 ? available : ImmutableByteArrayOutputStream.DEFAULT_INITIAL_CAPACITY))
+    {
+      return out.readFrom(in, maxLength).build();
+    }
+  }
+  
+  /**
+   * Return an ImmutableByteArray containing the remaining content of the given channel.
+   * 
+   * @param channel A ReadableByteChannel, which must be in blocking mode.
+   * 
+   * @return An ImmutableByteArray containing the given data.
+   * 
+   * @throws IOException if the content cannot be read or is larger than Integer.MAX_VALUE.
+   */
+  public static ImmutableByteArray newInstance(ReadableByteChannel channel) throws IOException
+  {
+    return readFrom(channel, Integer.MAX_VALUE);
+  }
+  
+  /**
+   * Return an ImmutableByteArray containing the remaining content of the given channel,
+   * which must not be longer than the given maximum length.
+   * 
+   * The channel is read to end of stream in one pass, directly into chunks which grow as
+   * data arrives, and the chunks are adopted by the result without a further copy. If the
+   * channel is a FileChannel (or any SeekableByteChannel) its remaining size is used to size
+   * the first chunk, so that a file is normally read into a single array, in reads of bounded
+   * size, and a file which is longer than maxLength is rejected before it is read.
+   * 
+   * @param channel   A ReadableByteChannel, which must be in blocking mode.
+   * @param maxLength The maximum number of bytes to be accepted.
+   * 
+   * @return An ImmutableByteArray containing the given data.
+   * 
+   * @throws IOException if the content cannot be read or is longer than maxLength.
+   * @throws IllegalArgumentException if maxLength is negative.
+   */
+  public static ImmutableByteArray readFrom(ReadableByteChannel channel, int maxLength) throws IOException
+  {
+    if(maxLength < 0)
+      throw new IllegalArgumentException("maxLength must not be negative");
+    
+    int initialCapacity = ImmutableByteArrayOutputStream.DEFAULT_INITIAL_CAPACITY;
+    
+    if(channel instanceof SeekableByteChannel)
+    {
+      SeekableByteChannel seekable  = (SeekableByteChannel) channel;
+      long                remaining = seekable.size() - seekable.position();
+      
+      if(remaining > maxLength)
+        throw new IOException("Content of " + remaining + " bytes exceeds the maximum length of " + maxLength + " bytes");
+      
+      if(remaining > 0)
+        initialCapacity = (int) remaining;
+    }
+    
+    try(ImmutableByteArrayOutputStream out = new ImmutableByteArrayOutputStream(initialCapacity))
+    {
+      return out.readFrom(channel, maxLength).build();
+    }
+  }
+  
   /**
    * Return an ImmutableByteArray containing the given data.
    * 
@@ -117,18 +290,167 @@ public abstract class ImmutableByteArray implements Iterable<Byte>, Comparable<I
     return new ByteStringImmutableByteArray(bytes);
   }
   
+  /**
+   * Return an ImmutableByteArray containing the remaining content of the given buffer.
+   * 
+   * This operation does not involve a copy, the caller must ensure that the
+   * content of the buffer is not subsequently modified. The position and limit
+   * of the given buffer are not changed.
+   * 
+   * This is intended for direct and memory mapped buffers whose content is
+   * read only, such as the segments of a file based store.
+   * 
+   * @param buffer The data for the ImmutableByteArray.
+   * 
+   * @return An ImmutableByteArray containing the given data.
+   */
+  public static ImmutableByteArray newInstance(ByteBuffer buffer)
+  {
+    return new ByteBufferImmutableByteArray(buffer);
+  }
+  
+  /**
+   * Return an ImmutableByteArray containing the contents of the given file.
+   * 
+   * The file is mapped into memory read only, its contents are not read onto the heap.
+   * The caller must ensure that the file is not modified or truncated while the
+   * result is in use. The mapping remains valid after the file is closed.
+   * 
+   * @param path The file to be mapped.
+   * 
+   * @return An ImmutableByteArray containing the contents of the given file.
+   * 
+   * @throws IOException If the file cannot be mapped.
+   * @throws IllegalArgumentException If the file is larger than Integer.MAX_VALUE, use mapSegments() for such files.
+   */
+  public static ImmutableByteArray map(Path path) throws IOException
+  {
+    try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+    {
+      long size = channel.size();
+      
+      if(size > Integer.MAX_VALUE)
+        throw new IllegalArgumentException("File " + path + " is too large to be mapped as a single ImmutableByteArray, use mapSegments()");
+      
+      return map(channel, 0, (int) size);
+    }
+  }
+  
+  /**
+   * Return an ImmutableByteArray containing the given range of the given file.
+   * 
+   * The range is mapped into memory read only, its contents are not read onto the heap.
+   * The caller must ensure that the file is not modified or truncated while the
+   * result is in use. The mapping remains valid after the channel is closed.
+   * 
+   * While the channel remains open, write(WritableByteChannel) and writeAll() transfer
+   * the content with FileChannel.transferTo(), which may avoid copying it through
+   * user space altogether.
+   * 
+   * @param channel A channel open for reading.
+   * @param offset  The position in the file of the start of the range.
+   * @param length  The length of the range.
+   * 
+   * @return An ImmutableByteArray containing the given range of the given file.
+   * 
+   * @throws IOException If the file cannot be mapped.
+   */
+  public static ImmutableByteArray map(FileChannel channel, long offset, int length) throws IOException
+  {
+    return new ByteBufferImmutableByteArray(channel.map(MapMode.READ_ONLY, offset, length), channel, offset);
+  }
+  
+  /**
+   * Return the contents of the given file as a list of mapped ImmutableByteArrays, each of
+   * which is no larger than the given segment size.
+   * 
+   * This allows files larger than 2GB, which cannot be mapped as a single ImmutableByteArray,
+   * to be processed without reading them onto the heap. HashProvider.getHashOf(Iterable) can
+   * be used to hash the contents of the file.
+   * 
+   * @param path        The file to be mapped.
+   * @param segmentSize The maximum size of each segment.
+   * 
+   * @return The contents of the given file as a list of mapped ImmutableByteArrays.
+   * 
+   * @throws IOException If the file cannot be mapped.
+   */
+  public static List<ImmutableByteArray> mapSegments(Path path, int segmentSize) throws IOException
+  {
+    if(segmentSize < 1)
+      throw new IllegalArgumentException("segmentSize must be at least 1");
+    
+    try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+    {
+      long                     size     = channel.size();
+      List<ImmutableByteArray> segments = new ArrayList<>((int) Math.min(Integer.MAX_VALUE, (size + segmentSize - 1) / segmentSize));
+      
+      for(long offset = 0 ; offset < size ; offset += segmentSize)
+        segments.add(map(channel, offset, (int) Math.min(segmentSize, size - offset)));
+      
+      return segments;
+    }
+  }
+  
+  /**
+   * Set the maximum length of an array whose String value is cached by toString().
+   * 
+   * The String value of a larger array is decoded on each call to toString(), so that
+   * a large payload does not permanently pin twice its size in chars. Setting the
+   * threshold to Integer.MAX_VALUE caches the String value of every array.
+   * 
+   * @param stringCacheThreshold The maximum length of an array whose String value is cached.
+   */
+  public static void setStringCacheThreshold(int stringCacheThreshold)
+  {
+    stringCacheThreshold_ = stringCacheThreshold;
+  }
+  
+  /**
+   * 
+   * @return The maximum length of an array whose String value is cached by toString().
+   */
+  public static int getStringCacheThreshold()
+  {
+    return stringCacheThreshold_;
+  }
+  
+  /**
+   * 
+   * @return true if the String value of this array should be cached.
+   */
+  protected boolean isStringCacheable()
+  {
+    return length() <= stringCacheThreshold_;
+  }
+  
   /**
    * Create a Reader for the contents of this ImmutableByteArray, using the UTF8 character set.
    * 
    * All String data in S2 should be encoded in UTF8.
    * 
+   * The content is decoded incrementally as it is read, it is not decoded into a String.
+   * 
    * @return A Reader for the contents of this ImmutableByteArray.
    */
   public Reader getReader()
   {
-    return new StringReader(toString());
+    return new Utf8Reader(asReadOnlyByteBufferList());
   }
 
+  /**
+   * Return a CharSequence view of the UTF-8 content of this ImmutableByteArray.
+   * 
+   * This allows text to be compared, prefix matched or searched without decoding
+   * it into a String, see Utf8CharSequence.
+   * 
+   * @return A CharSequence view of the UTF-8 content of this ImmutableByteArray.
+   */
+  public Utf8CharSequence asCharSequence()
+  {
+    return new Utf8CharSequence(this);
+  }
+  
   /**
    * Create a Reader for the contents of this ImmutableByteArray, using the given character set.
    * 
@@ -155,6 +477,149 @@ public abstract class ImmutableByteArray implements Iterable<Byte>, Comparable<I
    */
   public abstract void write(OutputStream out) throws IOException;
   
+  /**
+   * Write the contents of this ByteArray to the given channel.
+   * 
+   * @param channel A channel to which the contents of this ByteArray are to be written.
+   * 
+   * @throws IOException If there is an IO error.
+   */
+  public void write(WritableByteChannel channel) throws IOException
+  {
+    if(transferTo(channel))
+      return;
+    
+    for(ByteBuffer buffer : asReadOnlyByteBufferList())
+    {
+      while(buffer.hasRemaining())
+        channel.write(buffer);
+    }
+  }
+  
+  /*
+   * Write the contents of this array to the given channel with FileChannel.transferTo() if
+   * it is a region of a file whose channel is open, returning false if that is not possible.
+   */
+  /* package */ boolean transferTo(WritableByteChannel target) throws IOException
+  {
+    return false;
+  }
+  
+  /**
+   * Write the contents of the given arrays to the given channel.
+   * 
+   * The buffers of all of the arrays are written with gathering writes, partial writes
+   * are retried until all of the content has been written. Arrays which are regions of
+   * a file whose channel is open are written with FileChannel.transferTo().
+   * 
+   * @param channel A channel, which must be in blocking mode.
+   * @param arrays  The arrays to be written.
+   * 
+   * @return The number of bytes written.
+   * 
+   * @throws IOException If there is an IO error.
+   */
+  public static long writeAll(GatheringByteChannel channel, ImmutableByteArray ...arrays) throws IOException
+  {
+    return writeAll(channel, Arrays.asList(arrays));
+  }
+  
+  /**
+   * Write the contents of the given arrays to the given channel.
+   * 
+   * The buffers of all of the arrays are written with gathering writes, partial writes
+   * are retried until all of the content has been written. Arrays which are regions of
+   * a file whose channel is open are written with FileChannel.transferTo().
+   * 
+   * @param channel A channel, which must be in blocking mode.
+   * @param arrays  The arrays to be written.
+   * 
+   * @return The number of bytes written.
+   * 
+   * @throws IOException If there is an IO error.
+   */
+  public static long writeAll(GatheringByteChannel channel, Collection<? extends ImmutableByteArray> arrays) throws IOException
+  {
+    List<ByteBuffer> pending = new ArrayList<>();
+    long             total   = 0;
+    
+    for(ImmutableByteArray array : arrays)
+    {
+      if(array instanceof ByteBufferImmutableByteArray && ((ByteBufferImmutableByteArray) array).isTransferable())
+      {
+        writeBuffers(channel, pending);
+        pending.clear();
+        array.transferTo(channel);
+      }
+      else
+      {
+        pending.addAll(array.asReadOnlyByteBufferList());
+      }
+      
+      total += array.length();
+    }
+    
+    writeBuffers(channel, pending);
+    
+    return total;
+  }
+  
+  private static void writeBuffers(GatheringByteChannel channel, List<ByteBuffer> buffers) throws IOException
+  {
+    ByteBuffer[] array  = buffers.toArray(new ByteBuffer[buffers.size()]);
+    int          offset = 0;
+    
+    while(offset < array.length)
+    {
+      if(!array[offset].hasRemaining())
+      {
+        offset++;
+        continue;
+      }
+      
+      channel.write(array, offset, Math.min(array.length - offset, MAX_GATHER));
+    }
+  }
+
+  
+  /**
+   * Write the contents of this ByteArray to the given protobuf CodedOutputStream as raw bytes.
+   * 
+   * The contents are written without an intermediate copy, no tag or length prefix is written.
+   * 
+   * @param out A CodedOutputStream to which the contents of this ByteArray are to be written.
+   * 
+   * @throws IOException If there is an IO error.
+   */
+  public void write(CodedOutputStream out) throws IOException
+  {
+    for(ByteBuffer buffer : asReadOnlyByteBufferList())
+      out.writeRawBytes(buffer);
+  }
+  
+  /**
+   * Return the contents of this ImmutableByteArray as a read only ByteBuffer.
+   * 
+   * A new buffer object is returned on each call, but the content is not copied
+   * unless the implementation does not hold its contents in contiguous storage.
+   * 
+   * @return The contents of this ImmutableByteArray as a read only ByteBuffer.
+   */
+  public abstract ByteBuffer asReadOnlyByteBuffer();
+  
+  /**
+   * Return the contents of this ImmutableByteArray as a list of read only ByteBuffers.
+   * 
+   * The contents are not copied, the concatenation of the returned buffers is
+   * the contents of this ImmutableByteArray.
+   * 
+   * @return The contents of this ImmutableByteArray as a list of read only ByteBuffers.
+   */
+  public List<ByteBuffer> asReadOnlyByteBufferList()
+  {
+    return Collections.singletonList(asReadOnlyByteBuffer());
+  }
+  
   /**
    * Create a Reader instance with the given character set.
    * 
@@ -167,6 +632,8 @@ public abstract class ImmutableByteArray implements Iterable<Byte>, Comparable<I
   /**
    * Return the contents of the byte array as a UTF8 String.
    * 
+   * The result is cached if the length of the array is no more than getStringCacheThreshold().
+   * 
    * @return The contents of the byte array as a UTF8 String.
    */
   @Override
@@ -186,6 +653,105 @@ public abstract class ImmutableByteArray implements Iterable<Byte>, Comparable<I
    */
   public abstract String toBase64String();
   
+  /**
+   * Write the contents of the byte array in Base64 (standard encoding) to the given Appendable.
+   * 
+   * The content is encoded in bounded chunks, so unlike toBase64String() the whole
+   * encoded value is never held in memory. This is intended for large values which
+   * are being written to a Writer or a StringBuilder.
+   * 
+   * @param out An Appendable to which the encoded value is written.
+   * 
+   * @throws IOException If there is an IO error.
+   */
+  public void writeBase64To(Appendable out) throws IOException
+  {
+    encodeBase64(Base64.getEncoder(), null, out);
+  }
+  
+  /**
+   * Write the contents of the byte array in Base64UrlSafe encoding to the given Appendable.
+   * 
+   * The content is encoded in bounded chunks, so unlike toBase64UrlSafeString() the whole
+   * encoded value is never held in memory.
+   * 
+   * @param out An Appendable to which the encoded value is written.
+   * 
+   * @throws IOException If there is an IO error.
+   */
+  public void writeBase64UrlSafeTo(Appendable out) throws IOException
+  {
+    encodeBase64(Base64.getUrlEncoder().withoutPadding(), null, out);
+  }
+  
+  /**
+   * Write the contents of the byte array in Base64 (standard encoding) to the given OutputStream
+   * as ASCII characters.
+   * 
+   * The content is encoded in bounded chunks, so unlike toBase64String() the whole
+   * encoded value is never held in memory.
+   * 
+   * @param out An OutputStream to which the encoded value is written.
+   * 
+   * @throws IOException If there is an IO error.
+   */
+  public void writeBase64To(OutputStream out) throws IOException
+  {
+    encodeBase64(Base64.getEncoder(), out, null);
+  }
+  
+  /**
+   * Write the contents of the byte array in Base64UrlSafe encoding to the given OutputStream
+   * as ASCII characters.
+   * 
+   * The content is encoded in bounded chunks, so unlike toBase64UrlSafeString() the whole
+   * encoded value is never held in memory.
+   * 
+   * @param out An OutputStream to which the encoded value is written.
+   * 
+   * @throws IOException If there is an IO error.
+   */
+  public void writeBase64UrlSafeTo(OutputStream out) throws IOException
+  {
+    encodeBase64(Base64.getUrlEncoder().withoutPadding(), out, null);
+  }
+  
+  /*
+   * Encode in chunks which are a multiple of 3 bytes so that padding can only occur in the last chunk.
+   */
+  private void encodeBase64(Base64.Encoder encoder, @Nullable OutputStream byteOut, @Nullable Appendable charOut) throws IOException
+  {
+    int    length = length();
+    byte[] src    = new byte[Math.min(BASE64_CHUNK_SIZE, length)];
+    byte[] dst    = new byte[(src.length + 2) / 3 * 4];
+    char[] chars  = charOut == null ? null : new char[dst.length];
+    
+    for(int offset = 0 ; offset < length ; offset += src.length)
+    {
+      if(length - offset < src.length)
+        src = new byte[length - offset];
+      
+      arraycopy(offset, src, 0, src.length);
+      
+      int count = encoder.encode(src, dst);
+      
+      if(byteOut != null)
+      {
+        byteOut.write(dst, 0, count);
+      }
+      else
+      {
+        for(int i=0 ; i<count ; i++)
+          chars[i] = (char) dst[i];
+        
+        if(charOut instanceof Writer)
+          ((Writer) charOut).write(chars, 0, count);
+        else
+          charOut.append(CharBuffer.wrap(chars, 0, count));
+      }
+    }
+  }
+  
   /**
    * Return the contents of the byte array as a ByteString.
    * 
@@ -228,60 +794,443 @@ public abstract class ImmutableByteArray implements Iterable<Byte>, Comparable<I
 
   public abstract void arraycopy(int index, byte[] iv, int i, int length);
   
+  /**
+   * Return a view of the given range of this ImmutableByteArray.
+   * 
+   * The returned value shares the storage of this one, no data is copied.
+   * Since the view retains the whole of the underlying storage, compact()
+   * should be called on a small view of a large array which is to be kept
+   * after the original is no longer required.
+   * 
+   * @param offset  The index of the first byte of the view.
+   * @param length  The number of bytes in the view.
+   * 
+   * @return A view of the given range of this ImmutableByteArray.
+   * 
+   * @throws IndexOutOfBoundsException If the range is not within this array.
+   */
+  public abstract ImmutableByteArray slice(int offset, int length);
+  
+  /**
+   * Return an ImmutableByteArray with the same content as this one which does
+   * not retain any storage beyond its own content.
+   * 
+   * If this is a view of a larger array then the content is copied, otherwise
+   * this object is returned.
+   * 
+   * @return An ImmutableByteArray with the same content as this one.
+   */
+  public abstract ImmutableByteArray compact();
+  
+  /**
+   * Throw an exception if the given range is not within this array.
+   * 
+   * @param offset  The start of the range.
+   * @param length  The length of the range.
+   * 
+   * @throws IndexOutOfBoundsException If the range is not within this array.
+   */
+  protected void checkRange(int offset, int length)
+  {
+    if(offset < 0 || length < 0 || offset > length() - length)
+      throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " is outside the range 0-" + length());
+  }
+  
+  /* package */ static String encodeBase64(Base64.Encoder encoder, ByteBuffer buffer)
+  {
+    ByteBuffer encoded = encoder.encode(buffer);
+    
+    return new String(encoded.array(), encoded.arrayOffset(), encoded.remaining(), StandardCharsets.US_ASCII);
+  }
 
 
+  /**
+   * Returns a hash code for this array, which is computed on the first call and cached.
+   * 
+   * The value is the same for all implementations with the same content.
+   */
   @Override
   public int hashCode()
   {
-    int   h=0;
+    int h = hashCode_;
     
-    for(int i=0 ; i<length() ; i++)
+    if(h == 0)
     {
-      h = 31 * h + byteAt(i);
+      for(ByteBuffer buffer : asReadOnlyByteBufferList())
+      {
+        int limit = buffer.limit();
+        
+        for(int i=buffer.position() ; i<limit ; i++)
+          h = 31 * h + buffer.get(i);
+      }
+      
+      hashCode_ = h;
     }
+    
     return h;
   }
 
   @Override
   public boolean equals(Object obj)
   {
+    if(obj == this)
+      return true;
+    
     if(obj instanceof ImmutableByteArray)
     {
       ImmutableByteArray other = (ImmutableByteArray) obj;
       
-      if(other.length() == length())
+      if(other.length() != length())
+        return false;
+      
+      // If both hash codes have already been computed they are a cheap test for inequality.
+      if(hashCode_ != 0 && other.hashCode_ != 0 && hashCode_ != other.hashCode_)
+        return false;
+      
+      return mismatch(other) == -1;
+    }
+    return false;
+  }
+  
+  /**
+   * Pass each byte of this array to the given processor in turn until the processor returns false.
+   * 
+   * @param processor A processor.
+   * 
+   * @return The index of the byte for which the processor returned false, or -1 if it
+   * returned true for every byte.
+   */
+  public int forEachByte(IByteProcessor processor)
+  {
+    int index = 0;
+    
+    for(ByteBuffer buffer : asReadOnlyByteBufferList())
+    {
+      int limit = buffer.limit();
+      
+      for(int i=buffer.position() ; i<limit ; i++, index++)
       {
-        for(int i=0 ; i<length() ; i++)
-        {
-          if(byteAt(i) != other.byteAt(i))
-          {
-            return false;
-          }
-        }
-        return true;
+        if(!processor.process(buffer.get(i)))
+          return index;
       }
     }
-    return false;
+    
+    return -1;
   }
-
-  @Override
-  public int compareTo(ImmutableByteArray other)
+  
+  /**
+   * Return the index of the first occurrence of the given byte.
+   * 
+   * @param value A byte value.
+   * 
+   * @return The index of the first occurrence of the given byte, or -1 if there is none.
+   */
+  public int indexOf(byte value)
+  {
+    return indexOf(value, 0);
+  }
+  
+  /**
+   * Return the index of the first occurrence of the given byte at or after the given index.
+   * 
+   * The content is scanned eight bytes at a time.
+   * 
+   * @param value     A byte value.
+   * @param fromIndex The index from which to start the search.
+   * 
+   * @return The index of the first occurrence of the given byte, or -1 if there is none.
+   */
+  public int indexOf(byte value, int fromIndex)
+  {
+    int base = 0;
+    
+    fromIndex = Math.max(fromIndex, 0);
+    
+    for(ByteBuffer buffer : asReadOnlyByteBufferList())
+    {
+      int start = buffer.position();
+      int limit = buffer.limit();
+      int i     = start + Math.max(fromIndex - base, 0);
+      
+      base += limit - start;
+      
+      if(i >= limit)
+        continue;
+      
+      int index = indexOf(buffer, value, i, limit);
+      
+      if(index != -1)
+        return base - (limit - index);
+    }
+    
+    return -1;
+  }
+  
+  /**
+   * Return the index of the first occurrence of the given byte in the given buffer at or
+   * after the given index and before the given limit.
+   * 
+   * The buffer is scanned eight bytes at a time, indices are absolute and the position
+   * and limit of the buffer are ignored.
+   * 
+   * @param buffer    The buffer to be searched.
+   * @param value     A byte value.
+   * @param fromIndex The index from which to start the search.
+   * @param limit     The index at which to stop the search.
+   * 
+   * @return The index of the first occurrence of the given byte, or -1 if there is none.
+   */
+  public static int indexOf(ByteBuffer buffer, byte value, int fromIndex, int limit)
+  {
+    long    pattern   = (value & 0xffL) * 0x0101010101010101L;
+    boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+    int     i         = fromIndex;
+    
+    for( ; i <= limit - 8 ; i += 8)
+    {
+      long match = zeroBytes(buffer.getLong(i) ^ pattern);
+      
+      if(match != 0)
+        return i + ((bigEndian ? Long.numberOfLeadingZeros(match) : Long.numberOfTrailingZeros(match)) >>> 3);
+    }
+    
+    for( ; i < limit ; i++)
+    {
+      if(buffer.get(i) == value)
+        return i;
+    }
+    
+    return -1;
+  }
+  
+  /*
+   * Return a word with the high bit of each byte set where the corresponding byte of
+   * the given word is zero. Unlike the shorter (x - 0x01..) & ~x form this has no
+   * false positives, so the first match can be found from the leading zeros of a big
+   * endian word or the trailing zeros of a little endian one.
+   */
+  private static long zeroBytes(long x)
+  {
+    long y = (x & 0x7f7f7f7f7f7f7f7fL) + 0x7f7f7f7f7f7f7f7fL;
+    
+    return ~(y | x | 0x7f7f7f7f7f7f7f7fL);
+  }
+  
+  /**
+   * Return the index of the first occurrence of the given pattern.
+   * 
+   * @param pattern A sequence of bytes to be found.
+   * 
+   * @return The index of the first occurrence of the given pattern, or -1 if there is none.
+   */
+  public int indexOf(ImmutableByteArray pattern)
+  {
+    return indexOf(pattern, 0);
+  }
+  
+  /**
+   * Return the index of the first occurrence of the given pattern at or after the given index.
+   * 
+   * Short patterns are found by scanning for their first byte, longer ones with the
+   * Boyer-Moore-Horspool algorithm. A composite array is flattened by this method.
+   * 
+   * @param pattern   A sequence of bytes to be found.
+   * @param fromIndex The index from which to start the search.
+   * 
+   * @return The index of the first occurrence of the given pattern, or -1 if there is none.
+   */
+  public int indexOf(ImmutableByteArray pattern, int fromIndex)
   {
-    for(int i=0 ; i<length() ; i++)
+    int length        = length();
+    int patternLength = pattern.length();
+    
+    fromIndex = Math.max(fromIndex, 0);
+    
+    if(patternLength == 0)
+      return Math.min(fromIndex, length);
+    
+    if(patternLength > length - fromIndex)
+      return -1;
+    
+    if(patternLength < BMH_MIN_PATTERN_LENGTH)
     {
-      if(i >= other.length())
-        return 1;
+      byte first = pattern.byteAt(0);
+      int  last  = length - patternLength;
       
-      if(byteAt(i) < other.byteAt(i))
-        return -1;
+      for(int i = indexOf(first, fromIndex) ; i != -1 && i <= last ; i = indexOf(first, i + 1))
+      {
+        if(regionMatches(i, pattern))
+          return i;
+      }
       
-      if(byteAt(i) > other.byteAt(i))
-        return 1;
+      return -1;
     }
     
-    if(length() < other.length())
+    ByteBuffer haystack = asReadOnlyByteBuffer();
+    byte[]     needle   = pattern.toByteArray();
+    int        base     = haystack.position();
+    int        lastByte = patternLength - 1;
+    int[]      skip     = new int[256];
+    
+    Arrays.fill(skip, patternLength);
+    
+    for(int i=0 ; i<lastByte ; i++)
+      skip[needle[i] & 0xff] = lastByte - i;
+    
+    for(int i = fromIndex ; i <= length - patternLength ; )
+    {
+      byte b = haystack.get(base + i + lastByte);
+      
+      if(b == needle[lastByte])
+      {
+        int j = lastByte - 1;
+        
+        while(j >= 0 && haystack.get(base + i + j) == needle[j])
+          j--;
+        
+        if(j < 0)
+          return i;
+      }
+      
+      i += skip[b & 0xff];
+    }
+    
+    return -1;
+  }
+  
+  private boolean regionMatches(int offset, ImmutableByteArray other)
+  {
+    int length = other.length();
+    
+    for(int i=0 ; i<length ; i++)
+    {
+      if(byteAt(offset + i) != other.byteAt(i))
+        return false;
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Return true if this array starts with the given prefix.
+   * 
+   * @param prefix A sequence of bytes.
+   * 
+   * @return true if this array starts with the given prefix.
+   */
+  public boolean startsWith(ImmutableByteArray prefix)
+  {
+    int length = prefix.length();
+    
+    return length <= length() && slice(0, length).mismatch(prefix) == -1;
+  }
+  
+  /**
+   * Return true if this array ends with the given suffix.
+   * 
+   * @param suffix A sequence of bytes.
+   * 
+   * @return true if this array ends with the given suffix.
+   */
+  public boolean endsWith(ImmutableByteArray suffix)
+  {
+    int length = suffix.length();
+    
+    return length <= length() && slice(length() - length, length).mismatch(suffix) == -1;
+  }
+  
+  /**
+   * Return the index of the first byte which differs between this array and the given one.
+   * 
+   * @param other Another ImmutableByteArray.
+   * 
+   * @return The index of the first mismatch, the length of the shorter array if one
+   * is a prefix of the other, or -1 if the arrays have the same content.
+   */
+  public int mismatch(ImmutableByteArray other)
+  {
+    if(other == this)
       return -1;
     
-    return 0;
+    List<ByteBuffer> a = asReadOnlyByteBufferList();
+    List<ByteBuffer> b = other.asReadOnlyByteBufferList();
+    
+    if(a.size() == 1 && b.size() == 1)
+      return mismatch(a.get(0), b.get(0));
+    
+    int length = Math.min(length(), other.length());
+    
+    for(int i=0 ; i<length ; i++)
+    {
+      if(byteAt(i) != other.byteAt(i))
+        return i;
+    }
+    
+    return length() == other.length() ? -1 : length;
+  }
+  
+  /*
+   * Compare the remaining contents of the given buffers a long at a time.
+   */
+  private static int mismatch(ByteBuffer a, ByteBuffer b)
+  {
+    int aPos   = a.position();
+    int bPos   = b.position();
+    int length = Math.min(a.remaining(), b.remaining());
+    int i      = 0;
+    
+    while(i <= length - 8 && a.getLong(aPos + i) == b.getLong(bPos + i))
+      i += 8;
+    
+    for( ; i<length ; i++)
+    {
+      if(a.get(aPos + i) != b.get(bPos + i))
+        return i;
+    }
+    
+    return a.remaining() == b.remaining() ? -1 : length;
+  }
+
+  /**
+   * Compare this array with the given one, treating bytes as signed values.
+   * 
+   * This is retained for compatibility, compareUnsigned() or UNSIGNED_COMPARATOR
+   * give the lexicographic byte ordering used by key value stores.
+   */
+  @Override
+  public int compareTo(ImmutableByteArray other)
+  {
+    int i = mismatch(other);
+    
+    if(i == -1)
+      return 0;
+    
+    if(i == length() || i == other.length())
+      return Integer.compare(length(), other.length());
+    
+    return Byte.compare(byteAt(i), other.byteAt(i));
+  }
+  
+  /**
+   * Compare this array with the given one lexicographically, treating bytes as unsigned values.
+   * 
+   * This is the ordering used by byte ordered key value stores such as HBase.
+   * 
+   * @param other Another ImmutableByteArray.
+   * 
+   * @return A negative integer, zero, or a positive integer as this array is less than,
+   * equal to, or greater than the given one.
+   */
+  public int compareUnsigned(ImmutableByteArray other)
+  {
+    int i = mismatch(other);
+    
+    if(i == -1)
+      return 0;
+    
+    if(i == length() || i == other.length())
+      return Integer.compare(length(), other.length());
+    
+    return Integer.compare(byteAt(i) & 0xff, other.byteAt(i) & 0xff);
   }
 }
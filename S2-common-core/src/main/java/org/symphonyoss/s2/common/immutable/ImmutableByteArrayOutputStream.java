@@ -0,0 +1,639 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * An OutputStream which accumulates its contents in a series of chunks from
+ * which an ImmutableByteArray can be built without a copy.
+ * 
+ * Unlike ByteArrayOutputStream the buffer is never copied when it grows, a
+ * new chunk is added instead. build() returns an ImmutableByteArray which
+ * adopts the chunks written so far, either as a single array or as a rope.
+ * Since the result is a view of the bytes written before the call, writing
+ * may continue after build() without affecting it.
+ * 
+ * This class also implements WritableByteChannel and Appendable, characters
+ * are encoded as UTF-8. Base64 encoded content can be decoded into the stream
+ * with decodeBase64().
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@NotThreadSafe
+public class ImmutableByteArrayOutputStream extends OutputStream implements WritableByteChannel, Appendable
+{
+  /** The default size of the first chunk. */
+  public static final int DEFAULT_INITIAL_CAPACITY = 256;
+  
+  /** The maximum size of a chunk after the first. */
+  public static final int MAX_CHUNK_SIZE           = 1024 * 1024;
+  
+  /*
+   * The maximum size of a single channel read. A FileChannel reads into a heap buffer through a
+   * temporary direct buffer of the same size, which the JDK caches per thread, so reading a large
+   * file in one call would pin that much native memory on the calling thread.
+   */
+  private static final int MAX_CHANNEL_READ        = 64 * 1024;
+  
+  private static final int    BASE64_INVALID    = -1;
+  private static final int    BASE64_WHITESPACE = -2;
+  private static final int    BASE64_PAD        = -3;
+  private static final byte[] BASE64_VALUES     = new byte[128];
+  
+  static
+  {
+    Arrays.fill(BASE64_VALUES, (byte) BASE64_INVALID);
+    
+    for(int i=0 ; i<26 ; i++)
+    {
+      BASE64_VALUES['A' + i] = (byte) i;
+      BASE64_VALUES['a' + i] = (byte) (26 + i);
+    }
+    
+    for(int i=0 ; i<10 ; i++)
+      BASE64_VALUES['0' + i] = (byte) (52 + i);
+    
+    // Both the standard and the URL safe alphabets are accepted.
+    BASE64_VALUES['+'] = BASE64_VALUES['-'] = 62;
+    BASE64_VALUES['/'] = BASE64_VALUES['_'] = 63;
+    BASE64_VALUES['='] = BASE64_PAD;
+    BASE64_VALUES[' '] = BASE64_VALUES['\t'] = BASE64_VALUES['\r'] = BASE64_VALUES['\n'] = BASE64_WHITESPACE;
+  }
+  
+  private final int          initialCapacity_;
+  private final List<byte[]> chunks_ = new ArrayList<>();
+  private byte[]             chunk_;
+  private int                chunkStart_;
+  private int                count_;
+  private int                position_;
+  private char               highSurrogate_;
+  private boolean            closed_;
+
+  /**
+   * Constructor.
+   */
+  public ImmutableByteArrayOutputStream()
+  {
+    this(DEFAULT_INITIAL_CAPACITY);
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * The first chunk may be larger than MAX_CHUNK_SIZE, so that content of a known
+   * size can be accumulated in a single array.
+   * 
+   * @param initialCapacity The size of the first chunk, subsequent chunks grow in size.
+   */
+  public ImmutableByteArrayOutputStream(int initialCapacity)
+  {
+    if(initialCapacity < 1)
+      throw new IllegalArgumentException("initialCapacity must be at least 1");
+    
+    initialCapacity_ = initialCapacity;
+  }
+  
+  /*
+   * Ensure that there is space in the current chunk for at least one byte.
+   */
+  private void ensureSpace() throws IOException
+  {
+    if(chunk_ == null || position_ == chunk_.length)
+    {
+      if(count_ == Integer.MAX_VALUE)
+        throw new IOException("ImmutableByteArrayOutputStream is full");
+      
+      int size = chunk_ == null ? initialCapacity_ : Math.min(Math.max(initialCapacity_, count_), MAX_CHUNK_SIZE);
+      
+      chunk_ = new byte[Math.min(size, Integer.MAX_VALUE - count_)];
+      chunks_.add(chunk_);
+      chunkStart_ = count_;
+      position_ = 0;
+    }
+  }
+
+  private void checkOpen() throws ClosedChannelException
+  {
+    if(closed_)
+      throw new ClosedChannelException();
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    checkOpen();
+    flushSurrogate();
+    writeByte(b);
+  }
+  
+  private void writeByte(int b) throws IOException
+  {
+    ensureSpace();
+    
+    chunk_[position_++] = (byte) b;
+    count_++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    if(off < 0 || len < 0 || off > b.length - len)
+      throw new IndexOutOfBoundsException();
+    
+    checkOpen();
+    flushSurrogate();
+    
+    while(len > 0)
+    {
+      ensureSpace();
+      
+      int amount = Math.min(len, chunk_.length - position_);
+      
+      System.arraycopy(b, off, chunk_, position_, amount);
+      
+      position_ += amount;
+      count_    += amount;
+      off       += amount;
+      len       -= amount;
+    }
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException
+  {
+    checkOpen();
+    flushSurrogate();
+    
+    int total = src.remaining();
+    
+    while(src.hasRemaining())
+    {
+      ensureSpace();
+      
+      int amount = Math.min(src.remaining(), chunk_.length - position_);
+      
+      src.get(chunk_, position_, amount);
+      
+      position_ += amount;
+      count_    += amount;
+    }
+    
+    return total;
+  }
+  
+  /**
+   * Write the contents of the given ImmutableByteArray.
+   * 
+   * @param bytes The data to be written.
+   * 
+   * @return this (fluent method)
+   * 
+   * @throws IOException If this stream has been closed.
+   */
+  public ImmutableByteArrayOutputStream write(ImmutableByteArray bytes) throws IOException
+  {
+    for(ByteBuffer buffer : bytes.asReadOnlyByteBufferList())
+      write(buffer);
+    
+    return this;
+  }
+
+  /**
+   * Read the given stream to end of stream, directly into the chunks of this stream.
+   * 
+   * Before another chunk is allocated a single byte is read, so that a stream which
+   * ends on a chunk boundary does not cause an allocation.
+   * 
+   * @param in        An InputStream.
+   * @param maxLength The maximum total size of this stream.
+   * 
+   * @return this (fluent method)
+   * 
+   * @throws IOException If the content cannot be read or if it exceeds the given maximum length.
+   */
+  /* package */ ImmutableByteArrayOutputStream readFrom(InputStream in, int maxLength) throws IOException
+  {
+    checkOpen();
+    flushSurrogate();
+    
+    while(true)
+    {
+      if(chunk_ == null || position_ == chunk_.length || count_ >= maxLength)
+      {
+        int b = in.read();
+        
+        if(b == -1)
+          return this;
+        
+        checkMaxLength(maxLength);
+        writeByte(b);
+      }
+      
+      int nbytes = in.read(chunk_, position_, Math.min(chunk_.length - position_, maxLength - count_));
+      
+      if(nbytes == -1)
+        return this;
+      
+      position_ += nbytes;
+      count_    += nbytes;
+    }
+  }
+  
+  /**
+   * Read the given channel to end of stream, directly into the chunks of this stream.
+   * 
+   * The channel must be in blocking mode. Each read is limited to MAX_CHANNEL_READ bytes.
+   * 
+   * @param channel   A ReadableByteChannel.
+   * @param maxLength The maximum total size of this stream.
+   * 
+   * @return this (fluent method)
+   * 
+   * @throws IOException If the content cannot be read or if it exceeds the given maximum length.
+   */
+  /* package */ ImmutableByteArrayOutputStream readFrom(ReadableByteChannel channel, int maxLength) throws IOException
+  {
+    checkOpen();
+    flushSurrogate();
+    
+    ByteBuffer probe = null;
+    
+    while(true)
+    {
+      if(chunk_ == null || position_ == chunk_.length || count_ >= maxLength)
+      {
+        if(probe == null)
+          probe = ByteBuffer.allocate(1);
+        
+        probe.clear();
+        
+        if(channel.read(probe) == -1)
+          return this;
+        
+        if(probe.position() == 1)
+        {
+          checkMaxLength(maxLength);
+          writeByte(probe.get(0));
+        }
+      }
+      
+      int nbytes = channel.read(ByteBuffer.wrap(chunk_, position_,
+          Math.min(Math.min(chunk_.length - position_, maxLength - count_), MAX_CHANNEL_READ)));
+      
+      if(nbytes == -1)
+        return this;
+      
+      position_ += nbytes;
+      count_    += nbytes;
+    }
+  }
+  
+  private void checkMaxLength(int maxLength) throws IOException
+  {
+    if(count_ >= maxLength)
+      throw new IOException("Content exceeds the maximum length of " + maxLength + " bytes");
+  }
+
+  /**
+   * Decode the given Base64 encoded characters and write the decoded bytes.
+   * 
+   * Both the standard and the URL safe alphabets are accepted, padding is optional
+   * and whitespace is ignored.
+   * 
+   * @param base64 Base64 encoded data.
+   * 
+   * @return this (fluent method)
+   * 
+   * @throws IOException If this stream has been closed.
+   * @throws IllegalArgumentException If the input is not valid Base64.
+   */
+  public ImmutableByteArrayOutputStream decodeBase64(CharSequence base64) throws IOException
+  {
+    checkOpen();
+    flushSurrogate();
+    
+    Base64Decoder decoder = new Base64Decoder();
+    
+    decoder.decode(base64, 0, base64.length());
+    decoder.finish();
+    
+    return this;
+  }
+  
+  /**
+   * Read Base64 encoded characters from the given Reader to end of stream and write
+   * the decoded bytes.
+   * 
+   * The input is processed in bounded chunks so the encoded form is never held in
+   * memory as a whole. Both the standard and the URL safe alphabets are accepted,
+   * padding is optional and whitespace is ignored.
+   * 
+   * @param in A Reader from which Base64 encoded data is read.
+   * 
+   * @return this (fluent method)
+   * 
+   * @throws IOException If there is an IO error or this stream has been closed.
+   * @throws IllegalArgumentException If the input is not valid Base64.
+   */
+  public ImmutableByteArrayOutputStream decodeBase64(Reader in) throws IOException
+  {
+    checkOpen();
+    flushSurrogate();
+    
+    Base64Decoder decoder = new Base64Decoder();
+    char[]        buf     = new char[4096];
+    CharBuffer    chars   = CharBuffer.wrap(buf);
+    int           nchars;
+    
+    while((nchars = in.read(buf)) != -1)
+      decoder.decode(chars, 0, nchars);
+    
+    decoder.finish();
+    
+    return this;
+  }
+  
+  private class Base64Decoder
+  {
+    private final byte[] buffer_ = new byte[3 * 1024];
+    private int          length_;
+    private int          bits_;
+    private int          count_;
+    private int          index_;
+    private boolean      padded_;
+    
+    void decode(CharSequence chars, int start, int end) throws IOException
+    {
+      for(int i=start ; i<end ; i++, index_++)
+      {
+        char c = chars.charAt(i);
+        int  v = c < BASE64_VALUES.length ? BASE64_VALUES[c] : BASE64_INVALID;
+        
+        if(v == BASE64_WHITESPACE)
+          continue;
+        
+        if(v == BASE64_PAD)
+        {
+          padded_ = true;
+          continue;
+        }
+        
+        if(v == BASE64_INVALID || padded_)
+          throw new IllegalArgumentException("Illegal base64 character 0x" + Integer.toHexString(c) + " at index " + index_);
+        
+        bits_ = (bits_ << 6) | v;
+        
+        if(++count_ == 4)
+        {
+          if(length_ > buffer_.length - 3)
+            flush();
+          
+          buffer_[length_++] = (byte) (bits_ >> 16);
+          buffer_[length_++] = (byte) (bits_ >> 8);
+          buffer_[length_++] = (byte) bits_;
+          
+          bits_ = 0;
+          count_ = 0;
+        }
+      }
+    }
+    
+    void finish() throws IOException
+    {
+      if(length_ > buffer_.length - 3)
+        flush();
+      
+      switch(count_)
+      {
+        case 1:
+          throw new IllegalArgumentException("Truncated base64 input, a single character remains in the last unit");
+          
+        case 2:
+          buffer_[length_++] = (byte) (bits_ >> 4);
+          break;
+          
+        case 3:
+          buffer_[length_++] = (byte) (bits_ >> 10);
+          buffer_[length_++] = (byte) (bits_ >> 2);
+          break;
+      }
+      
+      flush();
+    }
+    
+    private void flush() throws IOException
+    {
+      write(buffer_, 0, length_);
+      length_ = 0;
+    }
+  }
+
+  @Override
+  public ImmutableByteArrayOutputStream append(CharSequence csq) throws IOException
+  {
+    return append(csq == null ? "null" : csq, 0, csq == null ? 4 : csq.length());
+  }
+
+  @Override
+  public ImmutableByteArrayOutputStream append(CharSequence csq, int start, int end) throws IOException
+  {
+    if(csq == null)
+      return append("null", start, end);
+    
+    for(int i=start ; i<end ; i++)
+      append(csq.charAt(i));
+    
+    return this;
+  }
+
+  @Override
+  public ImmutableByteArrayOutputStream append(char c) throws IOException
+  {
+    checkOpen();
+    
+    if(highSurrogate_ != 0)
+    {
+      char high = highSurrogate_;
+      
+      highSurrogate_ = 0;
+      
+      if(Character.isLowSurrogate(c))
+      {
+        int codePoint = Character.toCodePoint(high, c);
+        
+        writeByte(0xf0 | (codePoint >> 18));
+        writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+        writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+        writeByte(0x80 | (codePoint & 0x3f));
+        
+        return this;
+      }
+      
+      writeByte('?');
+    }
+    
+    if(c < 0x80)
+    {
+      writeByte(c);
+    }
+    else if(c < 0x800)
+    {
+      writeByte(0xc0 | (c >> 6));
+      writeByte(0x80 | (c & 0x3f));
+    }
+    else if(Character.isHighSurrogate(c))
+    {
+      // wait for the low surrogate
+      highSurrogate_ = c;
+    }
+    else if(Character.isLowSurrogate(c))
+    {
+      // Unpaired, replaced in the same way as String.getBytes()
+      writeByte('?');
+    }
+    else
+    {
+      writeByte(0xe0 | (c >> 12));
+      writeByte(0x80 | ((c >> 6) & 0x3f));
+      writeByte(0x80 | (c & 0x3f));
+    }
+    
+    return this;
+  }
+  
+  /*
+   * A high surrogate which is not immediately followed by a low surrogate is replaced.
+   */
+  private void flushSurrogate() throws IOException
+  {
+    if(highSurrogate_ != 0)
+    {
+      highSurrogate_ = 0;
+      writeByte('?');
+    }
+  }
+  
+  /**
+   * Return an ImmutableByteArray containing the bytes written so far.
+   * 
+   * The chunks are adopted without a copy. A high surrogate at the end of appended
+   * characters which has not been followed by a low surrogate is written as '?'.
+   * 
+   * @return An ImmutableByteArray containing the bytes written so far.
+   * 
+   * @throws IllegalStateException If a pending high surrogate cannot be written because the stream is full.
+   */
+  public ImmutableByteArray build()
+  {
+    try
+    {
+      flushSurrogate();
+    }
+    catch(IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+    
+    switch(chunks_.size())
+    {
+      case 0:
+        return ImmutableByteArray.EMPTY;
+        
+      case 1:
+        return new ArrayBackedImmutableByteArray(chunks_.get(0), 0, count_);
+        
+      default:
+        ImmutableByteArray[] parts = new ImmutableByteArray[chunks_.size()];
+        int                  last  = parts.length - 1;
+        
+        for(int i=0 ; i<last ; i++)
+          parts[i] = new ArrayBackedImmutableByteArray(chunks_.get(i), 0, chunks_.get(i).length);
+        
+        parts[last] = new ArrayBackedImmutableByteArray(chunk_, 0, count_ - chunkStart_);
+        
+        return new CompositeImmutableByteArray(parts);
+    }
+  }
+  
+  /**
+   * 
+   * @return The number of bytes written so far.
+   */
+  public int size()
+  {
+    return count_;
+  }
+  
+  /**
+   * Discard the bytes written so far.
+   * 
+   * The chunks are discarded rather than reused, since they may have been
+   * adopted by an ImmutableByteArray returned by build().
+   */
+  public void reset()
+  {
+    chunks_.clear();
+    chunk_ = null;
+    chunkStart_ = 0;
+    count_ = 0;
+    position_ = 0;
+    highSurrogate_ = 0;
+  }
+
+  @Override
+  public boolean isOpen()
+  {
+    return !closed_;
+  }
+
+  /**
+   * Close this stream, any subsequent write fails but build() may still be called.
+   * 
+   * @throws IOException If a pending high surrogate cannot be written.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    if(!closed_)
+    {
+      flushSurrogate();
+      closed_ = true;
+    }
+  }
+}
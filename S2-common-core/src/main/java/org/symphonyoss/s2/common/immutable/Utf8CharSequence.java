@@ -0,0 +1,352 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.symphonyoss.s2.common.fault.CodingFault;
+
+/**
+ * A CharSequence view of the UTF-8 content of an ImmutableByteArray.
+ * 
+ * Whether the content is pure ASCII is determined once, when the view is created,
+ * by testing eight bytes at a time. For ASCII content charAt() and subSequence()
+ * operate directly on the bytes and no characters are decoded. Other content is
+ * decoded into a char array on first access, the array is published through a
+ * volatile field and its length is the length of the sequence, so concurrent
+ * first accesses may each decode but always see a consistent result.
+ * 
+ * hashCode() is the same as that of a String with the same content, equals() is
+ * true for another Utf8CharSequence with the same content, and contentEquals()
+ * compares with any CharSequence, including a String. Non-ASCII content which
+ * has not already been decoded is compared a few characters at a time, returning
+ * at the first mismatch, and is neither decoded in full nor cached.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@Immutable
+public final class Utf8CharSequence implements CharSequence
+{
+  private static final long   HIGH_BITS          = 0x8080808080808080L;
+  private static final int    COMPARE_CHUNK_SIZE = 64;
+  
+  private final @Nullable ImmutableByteArray bytes_;
+  private final boolean                      ascii_;
+  private final @Nullable char[]             chars_;
+  private final int                          charOffset_;
+  private final int                          charLength_;
+  private volatile @Nullable char[]          decoded_;
+  private int                                hashCode_;
+  
+  /**
+   * Constructor.
+   * 
+   * @param bytes UTF-8 encoded content.
+   */
+  public Utf8CharSequence(ImmutableByteArray bytes)
+  {
+    this(bytes, isAscii(bytes));
+  }
+  
+  private Utf8CharSequence(ImmutableByteArray bytes, boolean ascii)
+  {
+    bytes_ = bytes;
+    ascii_ = ascii;
+    chars_ = null;
+    charOffset_ = 0;
+    charLength_ = -1;
+  }
+  
+  private Utf8CharSequence(char[] chars, int offset, int length)
+  {
+    bytes_ = null;
+    ascii_ = false;
+    chars_ = chars;
+    charOffset_ = offset;
+    charLength_ = length;
+  }
+  
+  /**
+   * Return true if the given array contains only ASCII bytes.
+   * 
+   * @param bytes An ImmutableByteArray.
+   * 
+   * @return true if the given array contains only ASCII bytes.
+   */
+  public static boolean isAscii(ImmutableByteArray bytes)
+  {
+    for(ByteBuffer buffer : bytes.asReadOnlyByteBufferList())
+    {
+      int i     = buffer.position();
+      int limit = buffer.limit();
+      
+      for( ; i <= limit - 8 ; i += 8)
+      {
+        if((buffer.getLong(i) & HIGH_BITS) != 0)
+          return false;
+      }
+      
+      for( ; i < limit ; i++)
+      {
+        if(buffer.get(i) < 0)
+          return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * 
+   * @return true if the content is pure ASCII.
+   */
+  public boolean isAscii()
+  {
+    return ascii_;
+  }
+  
+  /*
+   * Decode non-ASCII content on first access. Sub-sequences share the array of their parent.
+   */
+  private char[] decoded()
+  {
+    if(chars_ != null)
+      return chars_;
+    
+    char[] decoded = decoded_;
+    
+    if(decoded == null)
+    {
+      char[] chars = new char[bytes_.length()];
+      int    count = 0;
+      int    nchars;
+      
+      try(Reader reader = bytes_.getReader())
+      {
+        while((nchars = reader.read(chars, count, chars.length - count)) > 0)
+          count += nchars;
+      }
+      catch(IOException e)
+      {
+        // Can't happen, the reader is in memory.
+        throw new CodingFault(e);
+      }
+      
+      decoded = count == chars.length ? chars : Arrays.copyOf(chars, count);
+      decoded_ = decoded;
+    }
+    
+    return decoded;
+  }
+
+  @Override
+  public int length()
+  {
+    if(ascii_)
+      return bytes_.length();
+    
+    if(chars_ != null)
+      return charLength_;
+    
+    return decoded().length;
+  }
+
+  @Override
+  public char charAt(int index)
+  {
+    if(ascii_)
+      return (char) bytes_.byteAt(index);
+    
+    char[] chars  = decoded();
+    int    length = chars_ == null ? chars.length : charLength_;
+    
+    if(index < 0 || index >= length)
+      throw new IndexOutOfBoundsException("Index " + index + " is outside the range 0-" + length);
+    
+    return chars[charOffset_ + index];
+  }
+
+  @Override
+  public Utf8CharSequence subSequence(int start, int end)
+  {
+    if(start < 0 || end > length() || start > end)
+      throw new IndexOutOfBoundsException("Range " + start + "-" + end + " is outside the range 0-" + length());
+    
+    if(ascii_)
+      return new Utf8CharSequence(bytes_.slice(start, end - start), true);
+    
+    return new Utf8CharSequence(decoded(), charOffset_ + start, end - start);
+  }
+  
+  /**
+   * Return true if this sequence has the same content as the given one.
+   * 
+   * @param other A CharSequence, which may be a String.
+   * 
+   * @return true if this sequence has the same content as the given one.
+   */
+  public boolean contentEquals(CharSequence other)
+  {
+    if(!ascii_ && chars_ == null && decoded_ == null)
+      return streamEquals(other);
+    
+    int length = length();
+    
+    if(other.length() != length)
+      return false;
+    
+    if(ascii_)
+    {
+      for(int i=0 ; i<length ; i++)
+      {
+        if(bytes_.byteAt(i) != other.charAt(i))
+          return false;
+      }
+    }
+    else
+    {
+      char[] chars = decoded();
+      
+      for(int i=0 ; i<length ; i++)
+      {
+        if(chars[charOffset_ + i] != other.charAt(i))
+          return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  /*
+   * Compare undecoded content with the given sequence, decoding a chunk at a time.
+   */
+  private boolean streamEquals(CharSequence other)
+  {
+    int    length = other.length();
+    int    count  = 0;
+    char[] chars  = new char[Math.min(COMPARE_CHUNK_SIZE, length + 1)];
+    int    nchars;
+    
+    try(Reader reader = bytes_.getReader())
+    {
+      while((nchars = reader.read(chars, 0, chars.length)) > 0)
+      {
+        if(count + nchars > length)
+          return false;
+        
+        for(int i=0 ; i<nchars ; i++)
+        {
+          if(chars[i] != other.charAt(count++))
+            return false;
+        }
+      }
+    }
+    catch(IOException e)
+    {
+      // Can't happen, the reader is in memory.
+      throw new CodingFault(e);
+    }
+    
+    return count == length;
+  }
+  
+  /**
+   * Return true if this sequence starts with the given prefix.
+   * 
+   * @param prefix A CharSequence, which may be a String.
+   * 
+   * @return true if this sequence starts with the given prefix.
+   */
+  public boolean startsWith(CharSequence prefix)
+  {
+    int length = prefix.length();
+    
+    if(length > length())
+      return false;
+    
+    for(int i=0 ; i<length ; i++)
+    {
+      if(charAt(i) != prefix.charAt(i))
+        return false;
+    }
+    
+    return true;
+  }
+
+  /**
+   * Returns the same value as String.hashCode() for the same content.
+   */
+  @Override
+  public int hashCode()
+  {
+    int h = hashCode_;
+    
+    if(h == 0)
+    {
+      int length = length();
+      
+      for(int i=0 ; i<length ; i++)
+        h = 31 * h + charAt(i);
+      
+      hashCode_ = h;
+    }
+    
+    return h;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if(obj == this)
+      return true;
+    
+    if(obj instanceof Utf8CharSequence)
+    {
+      Utf8CharSequence other = (Utf8CharSequence) obj;
+      
+      if(ascii_ && other.ascii_)
+        return bytes_.equals(other.bytes_);
+      
+      return contentEquals(other);
+    }
+    
+    return false;
+  }
+
+  @Override
+  public String toString()
+  {
+    if(ascii_)
+      return bytes_.toString();
+    
+    return new String(decoded(), charOffset_, length());
+  }
+}
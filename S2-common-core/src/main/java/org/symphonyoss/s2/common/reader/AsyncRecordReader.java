@@ -0,0 +1,543 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.symphonyoss.s2.common.fault.FaultAccumulator;
+import org.symphonyoss.s2.common.fluent.BaseAbstractBuilder;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+/**
+ * Reads lines or delimited records asynchronously from an AsynchronousFileChannel or
+ * an AsynchronousByteChannel.
+ * 
+ * By default the records are lines, an end of line being zero or more \r followed by one \n
+ * as for LinePartialReader. If a delimiter is set the content is split on the delimiter, which
+ * is not part of the record, and no other processing is done, as for DelimitedRecordReader.
+ * 
+ * Input is read in chunks into buffers of the chunk size. Each read fills the unused space of
+ * the current buffer, a new buffer is allocated only when it is full, so short reads from a
+ * socket do not each cost a buffer. As soon as one read completes the read of the next chunk
+ * is started, so that the splitting of one chunk and the processing of its records overlap
+ * the read of the next. Records are returned as slices of the buffers without a copy, a
+ * record which spans two or more buffers is returned as a composite.
+ * 
+ * Records are delivered either through nextRecord(), which returns a CompletableFuture for
+ * each record, or to a callback by forEachRecord(). Only one call to nextRecord() may be
+ * outstanding at any time, callbacks are made in order and never concurrently, usually on
+ * a thread of the channel's thread pool.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@NotThreadSafe
+public class AsyncRecordReader implements Closeable
+{
+  /** The default size of each chunk of input. */
+  public static final int DEFAULT_CHUNK_SIZE      = 256 * 1024;
+
+  /** The default maximum size of a record. */
+  public static final int DEFAULT_MAX_RECORD_SIZE = 16 * 1024 * 1024;
+  
+  private static final byte[] NEWLINE = new byte[] { '\n' };
+  
+  private final AsynchronousFileChannel         fileChannel_;
+  private final AsynchronousByteChannel         byteChannel_;
+  private final byte[]                          delimiter_;
+  private final boolean                         lines_;
+  private final int                             chunkSize_;
+  private final int                             maxRecordSize_;
+  private final boolean                         directBuffers_;
+  private final ArrayDeque<ImmutableByteArray>  records_ = new ArrayDeque<>();
+  
+  private long                                  position_;
+  private ByteBuffer                            buffer_;
+  private ImmutableByteArray                    bufferArray_;
+  private ImmutableByteArray                    pendingArray_;
+  private int                                   pendingStart_;
+  private ImmutableByteArray                    pending_;
+  private int                                   searchFrom_;
+  private CompletableFuture<Chunk>              inFlight_;
+  private boolean                               atEof_;
+  
+  private AsyncRecordReader(Builder builder)
+  {
+    fileChannel_   = builder.fileChannel_;
+    byteChannel_   = builder.byteChannel_;
+    lines_         = builder.delimiter_ == null;
+    delimiter_     = lines_ ? NEWLINE : builder.delimiter_.clone();
+    chunkSize_     = builder.chunkSize_;
+    maxRecordSize_ = builder.maxRecordSize_;
+    directBuffers_ = builder.directBuffers_;
+    position_      = builder.position_;
+  }
+  
+  /**
+   * Builder for AsyncRecordReader.
+   * 
+   * @author Bruce Skingle
+   *
+   */
+  public static class Builder extends BaseAbstractBuilder<Builder, AsyncRecordReader>
+  {
+    private AsynchronousFileChannel fileChannel_;
+    private AsynchronousByteChannel byteChannel_;
+    private long                    position_;
+    private byte[]                  delimiter_;
+    private int                     chunkSize_     = DEFAULT_CHUNK_SIZE;
+    private int                     maxRecordSize_ = DEFAULT_MAX_RECORD_SIZE;
+    private boolean                 directBuffers_ = false;
+    
+    /**
+     * Constructor.
+     */
+    public Builder()
+    {
+      super(Builder.class);
+    }
+    
+    /**
+     * Set the file from which records are read.
+     * 
+     * @param channel A file channel, which is closed when the reader is closed.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withChannel(AsynchronousFileChannel channel)
+    {
+      fileChannel_ = channel;
+      
+      return self();
+    }
+    
+    /**
+     * Set the channel from which records are read.
+     * 
+     * @param channel A channel, which is closed when the reader is closed.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withChannel(AsynchronousByteChannel channel)
+    {
+      byteChannel_ = channel;
+      
+      return self();
+    }
+    
+    /**
+     * Set the position in the file from which reading starts, by default this is zero.
+     * 
+     * @param position The position in the file of the first byte to be read.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withPosition(long position)
+    {
+      position_ = position;
+      
+      return self();
+    }
+    
+    /**
+     * Set the delimiter which separates records, by default the input is split into lines.
+     * 
+     * @param delimiter One or more bytes which separate records.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withDelimiter(byte ...delimiter)
+    {
+      delimiter_ = delimiter;
+      
+      return self();
+    }
+    
+    /**
+     * Set the size of each buffer into which input is read.
+     * 
+     * @param chunkSize The size of each buffer, and so the maximum size of a read, in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withChunkSize(int chunkSize)
+    {
+      chunkSize_ = chunkSize;
+      
+      return self();
+    }
+    
+    /**
+     * Set the maximum size of a record, excluding its delimiter.
+     * 
+     * @param maxRecordSize The maximum size of a record in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withMaxRecordSize(int maxRecordSize)
+    {
+      maxRecordSize_ = maxRecordSize;
+      
+      return self();
+    }
+    
+    /**
+     * Set whether input is read into direct or heap buffers, by default heap buffers are used.
+     * 
+     * A new buffer is allocated whenever the current one is full and the native memory of a direct
+     * buffer is only released when it is garbage collected, so direct buffers should only be used
+     * with large chunks.
+     * 
+     * @param directBuffers true if direct buffers should be used.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withDirectBuffers(boolean directBuffers)
+    {
+      directBuffers_ = directBuffers;
+      
+      return self();
+    }
+
+    @Override
+    protected void validate(FaultAccumulator faultAccumulator)
+    {
+      super.validate(faultAccumulator);
+      
+      faultAccumulator.checkValueCount("File channel, Byte channel", 1, 1, fileChannel_, byteChannel_);
+      
+      if(delimiter_ != null && delimiter_.length == 0)
+        faultAccumulator.error("Delimiter must not be empty");
+      
+      if(byteChannel_ != null && position_ != 0)
+        faultAccumulator.error("A position may only be set for a file channel");
+      
+      if(position_ < 0)
+        faultAccumulator.error("Position must not be negative");
+      
+      if(chunkSize_ < 1)
+        faultAccumulator.error("Chunk size must be at least 1");
+      
+      if(maxRecordSize_ < 0)
+        faultAccumulator.error("Maximum record size must not be negative");
+    }
+
+    @Override
+    protected AsyncRecordReader construct()
+    {
+      return new AsyncRecordReader(this);
+    }
+  }
+  
+  /**
+   * 
+   * @return The position in the file from which the next chunk will be read.
+   */
+  public long getPosition()
+  {
+    return position_;
+  }
+  
+  /**
+   * Return the next record.
+   * 
+   * @return A future which completes with the next record, or null if there are no
+   * more records, or completes exceptionally if there is an IO error or a record is
+   * larger than the maximum record size.
+   */
+  public CompletableFuture<ImmutableByteArray> nextRecord()
+  {
+    if(!records_.isEmpty())
+      return CompletableFuture.completedFuture(records_.poll());
+    
+    if(atEof_)
+      return CompletableFuture.completedFuture(null);
+    
+    if(inFlight_ == null)
+      inFlight_ = readChunk();
+    
+    return inFlight_.thenCompose((chunk) ->
+    {
+      // Start the next read before processing this chunk.
+      inFlight_ = chunk == null ? null : readChunk();
+      
+      try
+      {
+        process(chunk);
+      }
+      catch(IOException e)
+      {
+        throw new CompletionException(e);
+      }
+      
+      return nextRecord();
+    });
+  }
+  
+  /**
+   * Pass each remaining record to the given consumer, in order.
+   * 
+   * @param consumer A consumer for records.
+   * 
+   * @return A future which completes when all records have been consumed, or completes
+   * exceptionally if there is an IO error, a record is larger than the maximum record
+   * size or the consumer throws an exception.
+   */
+  public CompletableFuture<Void> forEachRecord(Consumer<ImmutableByteArray> consumer)
+  {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    
+    pump(consumer, result);
+    
+    return result;
+  }
+  
+  private void pump(Consumer<ImmutableByteArray> consumer, CompletableFuture<Void> result)
+  {
+    try
+    {
+      while(true)
+      {
+        CompletableFuture<ImmutableByteArray> future = nextRecord();
+        
+        if(!future.isDone())
+        {
+          future.whenComplete((record, exception) ->
+          {
+            if(exception != null)
+              result.completeExceptionally(exception);
+            else if(accept(consumer, record, result))
+              pump(consumer, result);
+          });
+          return;
+        }
+        
+        if(!accept(consumer, future.join(), result))
+          return;
+      }
+    }
+    catch(RuntimeException e)
+    {
+      result.completeExceptionally(e);
+    }
+  }
+  
+  /*
+   * Pass the given record to the consumer, returning false if there are no more records.
+   */
+  private boolean accept(Consumer<ImmutableByteArray> consumer, ImmutableByteArray record, CompletableFuture<Void> result)
+  {
+    if(record == null)
+    {
+      result.complete(null);
+      return false;
+    }
+    
+    try
+    {
+      consumer.accept(record);
+      return true;
+    }
+    catch(RuntimeException e)
+    {
+      result.completeExceptionally(e);
+      return false;
+    }
+  }
+  
+  /*
+   * A range of a buffer filled by one read.
+   */
+  private static final class Chunk
+  {
+    private final ImmutableByteArray array_;
+    private final int                start_;
+    private final int                length_;
+    
+    private Chunk(ImmutableByteArray array, int start, int length)
+    {
+      array_ = array;
+      start_ = start;
+      length_ = length;
+    }
+  }
+  
+  private CompletableFuture<Chunk> readChunk()
+  {
+    if(buffer_ == null || !buffer_.hasRemaining())
+    {
+      buffer_ = directBuffers_ ? ByteBuffer.allocateDirect(chunkSize_) : ByteBuffer.allocate(chunkSize_);
+      
+      // The content of the buffer is only ever exposed as slices of this array which have already been filled.
+      bufferArray_ = ImmutableByteArray.newInstance(buffer_);
+    }
+    
+    CompletableFuture<Chunk> future = new CompletableFuture<>();
+    ByteBuffer               buffer = buffer_;
+    ImmutableByteArray       array  = bufferArray_;
+    int                      start  = buffer.position();
+    
+    CompletionHandler<Integer, Void> handler = new CompletionHandler<Integer, Void>()
+    {
+      @Override
+      public void completed(Integer nbytes, Void attachment)
+      {
+        if(nbytes == -1)
+        {
+          future.complete(null);
+          return;
+        }
+        
+        position_ += nbytes;
+        
+        // Later reads only fill the space after this chunk so it can be exposed without a copy.
+        future.complete(new Chunk(array, start, nbytes));
+      }
+
+      @Override
+      public void failed(Throwable exception, Void attachment)
+      {
+        future.completeExceptionally(exception);
+      }
+    };
+    
+    if(fileChannel_ != null)
+      fileChannel_.read(buffer, position_, null, handler);
+    else
+      byteChannel_.read(buffer, null, handler);
+    
+    return future;
+  }
+  
+  /*
+   * Split the given chunk, or process the end of input if it is null.
+   */
+  private void process(Chunk chunk) throws IOException
+  {
+    if(chunk == null)
+    {
+      atEof_ = true;
+      
+      if(pending_ != null)
+      {
+        ImmutableByteArray record = lines_ ? LineSplitter.stripCRs(pending_) : pending_;
+        
+        checkRecordSize(record.length());
+        
+        if(record.length() > 0)
+          records_.add(record);
+        
+        pending_ = null;
+        pendingArray_ = null;
+      }
+      
+      return;
+    }
+    
+    ImmutableByteArray data;
+    ImmutableByteArray dataArray = chunk.array_;
+    int                dataStart = chunk.start_;
+    int                start     = 0;
+    int                end;
+    
+    if(pending_ == null)
+    {
+      data = dataArray.slice(dataStart, chunk.length_);
+    }
+    else if(pendingArray_ == dataArray && pendingStart_ + pending_.length() == dataStart)
+    {
+      // The pending content and this chunk are adjacent in the same buffer.
+      dataStart = pendingStart_;
+      data = dataArray.slice(dataStart, pending_.length() + chunk.length_);
+    }
+    else
+    {
+      data = ImmutableByteArray.newInstance(pending_, dataArray.slice(dataStart, chunk.length_));
+      dataArray = null;
+    }
+    
+    while((end = indexOfDelimiter(data, searchFrom_)) != -1)
+    {
+      checkRecordSize(end - start);
+      
+      ImmutableByteArray record = data.slice(start, end - start);
+      
+      records_.add(lines_ ? LineSplitter.stripCRs(record) : record);
+      start = searchFrom_ = end + delimiter_.length;
+    }
+    
+    int remaining = data.length() - start;
+    
+    checkRecordSize(remaining - delimiter_.length + 1);
+    
+    pending_ = remaining == 0 ? null : data.slice(start, remaining);
+    pendingArray_ = dataArray;
+    pendingStart_ = dataStart + start;
+    searchFrom_ = Math.max(0, remaining - delimiter_.length + 1);
+  }
+  
+  private int indexOfDelimiter(ImmutableByteArray data, int from)
+  {
+    int last = data.length() - delimiter_.length;
+    
+    for(int i = data.indexOf(delimiter_[0], from) ; i != -1 && i <= last ; i = data.indexOf(delimiter_[0], i + 1))
+    {
+      int j = 1;
+      
+      while(j < delimiter_.length && data.byteAt(i + j) == delimiter_[j])
+        j++;
+      
+      if(j == delimiter_.length)
+        return i;
+    }
+    
+    return -1;
+  }
+  
+  private void checkRecordSize(int size) throws IOException
+  {
+    if(size > maxRecordSize_)
+      throw new IOException("Record exceeds the maximum record size of " + maxRecordSize_ + " bytes");
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if(fileChannel_ != null)
+      fileChannel_.close();
+    else
+      byteChannel_.close();
+  }
+}
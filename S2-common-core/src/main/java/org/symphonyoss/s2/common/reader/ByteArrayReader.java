@@ -24,19 +24,102 @@
 package org.symphonyoss.s2.common.reader;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * A Reader over the content of a byte array.
+ * 
+ * UTF-8 content is decoded in bulk directly from the array by a Utf8Reader,
+ * other charsets are decoded by the underlying InputStreamReader.
+ * 
+ * @author Bruce Skingle
+ *
+ */
 public class ByteArrayReader extends InputStreamReader
 {
+  private final Reader utf8_;
 
+  /**
+   * Constructor.
+   * 
+   * The content is decoded using the default charset.
+   * 
+   * @param input The array to be read.
+   */
   public ByteArrayReader(byte[] input)
   {
-    super(new ByteArrayInputStream(input));
+    this(input, 0, input.length, Charset.defaultCharset());
   }
   
+  /**
+   * Constructor.
+   * 
+   * @param input   The array to be read.
+   * @param charset The charset with which the content is decoded.
+   */
   public ByteArrayReader(byte[] input, Charset charset)
   {
-    super(new ByteArrayInputStream(input), charset);
+    this(input, 0, input.length, charset);
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param input   The array to be read.
+   * @param offset  The offset of the first byte to be read.
+   * @param length  The number of bytes to be read.
+   * @param charset The charset with which the content is decoded.
+   */
+  public ByteArrayReader(byte[] input, int offset, int length, Charset charset)
+  {
+    super(new ByteArrayInputStream(input, offset, length), charset);
+    
+    utf8_ = charset.equals(StandardCharsets.UTF_8) ? new Utf8Reader(ByteBuffer.wrap(input, offset, length)) : null;
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException
+  {
+    if(utf8_ == null)
+      return super.read(cbuf, off, len);
+    
+    return utf8_.read(cbuf, off, len);
+  }
+
+  @Override
+  public int read() throws IOException
+  {
+    if(utf8_ == null)
+      return super.read();
+    
+    return utf8_.read();
+  }
+
+  @Override
+  public boolean ready() throws IOException
+  {
+    if(utf8_ == null)
+      return super.ready();
+    
+    return utf8_.ready();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      if(utf8_ != null)
+        utf8_.close();
+    }
+    finally
+    {
+      super.close();
+    }
   }
 }
@@ -0,0 +1,113 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream over the remaining content of a ByteBuffer.
+ * 
+ * The stream reads from a duplicate of the given buffer so the position
+ * of the caller's buffer is unaffected.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+public class ByteBufferInputStream extends InputStream
+{
+  private final ByteBuffer input_;
+
+  /**
+   * Constructor.
+   * 
+   * @param input The buffer to be read, from its position to its limit.
+   */
+  public ByteBufferInputStream(ByteBuffer input)
+  {
+    input_ = input.duplicate();
+    input_.mark();
+  }
+
+  @Override
+  public int read()
+  {
+    if(input_.hasRemaining())
+      return input_.get() & 0xFF;
+    
+    return -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len)
+  {
+    if(len == 0)
+      return 0;
+    
+    if(!input_.hasRemaining())
+      return -1;
+    
+    len = Math.min(len, input_.remaining());
+    input_.get(b, off, len);
+    
+    return len;
+  }
+
+  @Override
+  public long skip(long n)
+  {
+    if(n <= 0)
+      return 0;
+    
+    int skip = (int) Math.min(n, input_.remaining());
+    
+    input_.position(input_.position() + skip);
+    
+    return skip;
+  }
+
+  @Override
+  public int available()
+  {
+    return input_.remaining();
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit)
+  {
+    input_.mark();
+  }
+
+  @Override
+  public synchronized void reset()
+  {
+    input_.reset();
+  }
+}
@@ -25,26 +25,186 @@ package org.symphonyoss.s2.common.reader;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+import com.google.protobuf.ByteOutput;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
+/**
+ * An InputStream over the content of a ByteString.
+ * 
+ * Bulk reads copy directly from the ByteString with copyTo(), and transferTo()
+ * writes the remaining content to an OutputStream without an intermediate copy.
+ * 
+ * @author Bruce Skingle
+ *
+ */
 public class ByteStringInputStream extends InputStream
 {
   private final ByteString input_;
   
-  private int pos_ = 0;
+  private int pos_  = 0;
+  private int mark_ = 0;
 
+  /**
+   * Constructor.
+   * 
+   * @param input The ByteString to be read.
+   */
   public ByteStringInputStream(ByteString input)
   {
     input_ = input;
   }
 
   @Override
-  public int read() throws IOException
+  public int read()
   {
     if(pos_ < input_.size())
-      return input_.byteAt(pos_++);
+      return input_.byteAt(pos_++) & 0xFF;
     
     return -1;
   }
+
+  @Override
+  public int read(byte[] b, int off, int len)
+  {
+    if(off < 0 || len < 0 || len > b.length - off)
+      throw new IndexOutOfBoundsException();
+    
+    if(len == 0)
+      return 0;
+    
+    int remaining = input_.size() - pos_;
+    
+    if(remaining <= 0)
+      return -1;
+    
+    len = Math.min(len, remaining);
+    input_.copyTo(b, pos_, off, len);
+    pos_ += len;
+    
+    return len;
+  }
+
+  @Override
+  public long skip(long n)
+  {
+    if(n <= 0)
+      return 0;
+    
+    int skip = (int) Math.min(n, input_.size() - pos_);
+    
+    pos_ += skip;
+    
+    return skip;
+  }
+
+  @Override
+  public int available()
+  {
+    return input_.size() - pos_;
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit)
+  {
+    mark_ = pos_;
+  }
+
+  @Override
+  public synchronized void reset()
+  {
+    pos_ = mark_;
+  }
+  
+  /**
+   * Write all of the remaining content of this stream to the given OutputStream.
+   * 
+   * The content is passed to the OutputStream directly from the ByteString without
+   * a copy, so the OutputStream must not modify the arrays passed to it, which is
+   * the case for all well behaved OutputStreams.
+   * 
+   * @param out The stream to which the content should be written.
+   * 
+   * @return The number of bytes written.
+   * 
+   * @throws IOException If there is an IO error.
+   */
+  public long transferTo(OutputStream out) throws IOException
+  {
+    int remaining = input_.size() - pos_;
+    
+    if(remaining <= 0)
+      return 0;
+    
+    UnsafeByteOperations.unsafeWriteTo(input_.substring(pos_), new OutputStreamByteOutput(out));
+    pos_ = input_.size();
+    
+    return remaining;
+  }
+  
+  private static class OutputStreamByteOutput extends ByteOutput
+  {
+    private final OutputStream out_;
+    private byte[]             buf_;
+
+    OutputStreamByteOutput(OutputStream out)
+    {
+      out_ = out;
+    }
+
+    @Override
+    public void write(byte value) throws IOException
+    {
+      out_.write(value);
+    }
+
+    @Override
+    public void write(byte[] value, int offset, int length) throws IOException
+    {
+      out_.write(value, offset, length);
+    }
+
+    @Override
+    public void writeLazy(byte[] value, int offset, int length) throws IOException
+    {
+      out_.write(value, offset, length);
+    }
+
+    @Override
+    public void write(ByteBuffer value) throws IOException
+    {
+      if(value.hasArray())
+      {
+        out_.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+        value.position(value.limit());
+        return;
+      }
+      
+      if(buf_ == null)
+        buf_ = new byte[Math.min(8192, Math.max(value.remaining(), 1))];
+      
+      while(value.hasRemaining())
+      {
+        int length = Math.min(buf_.length, value.remaining());
+        
+        value.get(buf_, 0, length);
+        out_.write(buf_, 0, length);
+      }
+    }
+
+    @Override
+    public void writeLazy(ByteBuffer value) throws IOException
+    {
+      write(value);
+    }
+  }
 }
@@ -23,21 +23,90 @@
 
 package org.symphonyoss.s2.common.reader;
 
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 import com.google.protobuf.ByteString;
 
+/**
+ * A Reader over the content of a ByteString.
+ * 
+ * UTF-8 content is decoded in bulk directly from the buffers of the ByteString
+ * by a Utf8Reader, other charsets are decoded by the underlying InputStreamReader.
+ * 
+ * @author Bruce Skingle
+ *
+ */
 public class ByteStringReader extends InputStreamReader
 {
+  private final Reader utf8_;
 
+  /**
+   * Constructor.
+   * 
+   * The content is decoded using the default charset.
+   * 
+   * @param input The ByteString to be read.
+   */
   public ByteStringReader(ByteString input)
   {
-    super(new ByteStringInputStream(input));
+    this(input, Charset.defaultCharset());
   }
   
+  /**
+   * Constructor.
+   * 
+   * @param input   The ByteString to be read.
+   * @param charset The charset with which the content is decoded.
+   */
   public ByteStringReader(ByteString input, Charset charset)
   {
     super(new ByteStringInputStream(input), charset);
+    
+    utf8_ = charset.equals(StandardCharsets.UTF_8) ? new Utf8Reader(input.asReadOnlyByteBufferList()) : null;
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException
+  {
+    if(utf8_ == null)
+      return super.read(cbuf, off, len);
+    
+    return utf8_.read(cbuf, off, len);
+  }
+
+  @Override
+  public int read() throws IOException
+  {
+    if(utf8_ == null)
+      return super.read();
+    
+    return utf8_.read();
+  }
+
+  @Override
+  public boolean ready() throws IOException
+  {
+    if(utf8_ == null)
+      return super.ready();
+    
+    return utf8_.ready();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      if(utf8_ != null)
+        utf8_.close();
+    }
+    finally
+    {
+      super.close();
+    }
   }
 }
@@ -0,0 +1,736 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.symphonyoss.s2.common.fault.FaultAccumulator;
+import org.symphonyoss.s2.common.fluent.BaseAbstractBuilder;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+/**
+ * A streaming tokenizer for UTF-8 encoded CSV, TSV and similar delimited formats.
+ * 
+ * Input is read into a buffer which is reused from record to record. Each call to next()
+ * finds the boundaries of the fields of the next record but does not otherwise process
+ * them, so columns which are not accessed cost nothing more than a scan for the separator.
+ * The field accessors read directly from the buffer, getLong() and getDouble() parse
+ * numbers without creating a String and getField() returns a CharSequence view of the
+ * field. Views returned by getField() are only valid until the next call to next().
+ * 
+ * A field may be enclosed in quotes, in which case it may contain separators, newlines
+ * and quotes, which are escaped by doubling them. A record ends with a \n, which may be
+ * preceded by one or more \r. Empty lines are ignored.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@NotThreadSafe
+public class CsvTokenizer implements Closeable
+{
+  /** The default initial size of the input buffer. */
+  public static final int DEFAULT_BUFFER_SIZE     = 64 * 1024;
+
+  /** The default maximum size of a record. */
+  public static final int DEFAULT_MAX_RECORD_SIZE = 16 * 1024 * 1024;
+  
+  private static final double[] POWERS_OF_TEN = new double[]
+  {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+  
+  private final InputStream in_;
+  private final byte        separator_;
+  private final byte        quote_;
+  private final boolean     quoting_;
+  private final int         columnLimit_;
+  private final int         maxRecordSize_;
+  
+  private byte[]            buf_;
+  private int               limit_;
+  private int               pos_;
+  private boolean           atEof_;
+  private long              recordNumber_;
+  
+  private int               fieldCount_;
+  private int[]             starts_  = new int[16];
+  private int[]             ends_    = new int[16];
+  private boolean[]         escaped_ = new boolean[16];
+  
+  private CsvTokenizer(Builder builder)
+  {
+    in_            = builder.in_;
+    separator_     = builder.separator_;
+    quote_         = builder.quote_;
+    quoting_       = builder.quoting_;
+    columnLimit_   = builder.columnLimit_;
+    maxRecordSize_ = builder.maxRecordSize_;
+    buf_           = new byte[builder.bufferSize_];
+  }
+  
+  /**
+   * Builder for CsvTokenizer.
+   * 
+   * @author Bruce Skingle
+   *
+   */
+  public static class Builder extends BaseAbstractBuilder<Builder, CsvTokenizer>
+  {
+    private InputStream in_;
+    private byte        separator_     = ',';
+    private byte        quote_         = '"';
+    private boolean     quoting_       = true;
+    private int         columnLimit_   = Integer.MAX_VALUE;
+    private int         bufferSize_    = DEFAULT_BUFFER_SIZE;
+    private int         maxRecordSize_ = DEFAULT_MAX_RECORD_SIZE;
+    
+    /**
+     * Constructor.
+     */
+    public Builder()
+    {
+      super(Builder.class);
+    }
+    
+    /**
+     * Set the stream from which records are read.
+     * 
+     * @param in An InputStream, which is closed when the tokenizer is closed.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withInputStream(InputStream in)
+    {
+      in_ = in;
+      
+      return self();
+    }
+    
+    /**
+     * Set the content from which records are read.
+     * 
+     * @param content The content to be tokenized.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withInput(ImmutableByteArray content)
+    {
+      in_ = content == null ? null : content.getInputStream();
+      
+      return self();
+    }
+    
+    /**
+     * Set the field separator, which by default is a comma, use a tab for TSV.
+     * 
+     * @param separator The byte which separates fields.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withSeparator(byte separator)
+    {
+      separator_ = separator;
+      
+      return self();
+    }
+    
+    /**
+     * Set the quote character, which by default is a double quote.
+     * 
+     * @param quote The byte which encloses quoted fields.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withQuote(byte quote)
+    {
+      quote_ = quote;
+      
+      return self();
+    }
+    
+    /**
+     * Enable or disable quoting, which is enabled by default. When quoting is disabled
+     * quote characters have no special meaning, as is usual for TSV.
+     * 
+     * @param quoting true if fields may be quoted.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withQuoting(boolean quoting)
+    {
+      quoting_ = quoting;
+      
+      return self();
+    }
+    
+    /**
+     * Set the maximum number of columns to be tokenized, any further fields in a record
+     * are skipped without recording their boundaries.
+     * 
+     * @param columnLimit The number of leading columns which are required.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withColumnLimit(int columnLimit)
+    {
+      columnLimit_ = columnLimit;
+      
+      return self();
+    }
+    
+    /**
+     * Set the initial size of the input buffer, which grows as needed to hold the largest record.
+     * 
+     * @param bufferSize The initial size of the input buffer in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withBufferSize(int bufferSize)
+    {
+      bufferSize_ = bufferSize;
+      
+      return self();
+    }
+    
+    /**
+     * Set the maximum size of a record.
+     * 
+     * @param maxRecordSize The maximum size of a record in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withMaxRecordSize(int maxRecordSize)
+    {
+      maxRecordSize_ = maxRecordSize;
+      
+      return self();
+    }
+
+    @Override
+    protected void validate(FaultAccumulator faultAccumulator)
+    {
+      super.validate(faultAccumulator);
+      
+      faultAccumulator.checkNotNull(in_, "Input");
+      
+      if(separator_ == '\r' || separator_ == '\n')
+        faultAccumulator.error("Separator must not be a line terminator");
+      
+      if(quoting_ && (quote_ == separator_ || quote_ == '\r' || quote_ == '\n'))
+        faultAccumulator.error("Quote must not be the separator or a line terminator");
+      
+      if(columnLimit_ < 1)
+        faultAccumulator.error("Column limit must be at least 1");
+      
+      if(bufferSize_ < 1)
+        faultAccumulator.error("Buffer size must be at least 1");
+      
+      if(maxRecordSize_ < 1)
+        faultAccumulator.error("Maximum record size must be at least 1");
+    }
+
+    @Override
+    protected CsvTokenizer construct()
+    {
+      return new CsvTokenizer(this);
+    }
+  }
+  
+  /**
+   * Advance to the next record.
+   * 
+   * @return true if there is a next record, false at end of input.
+   * 
+   * @throws IOException If there is an IO error or the input is malformed.
+   */
+  public boolean next() throws IOException
+  {
+    while(true)
+    {
+      while(pos_ < limit_ && (buf_[pos_] == '\r' || buf_[pos_] == '\n'))
+        pos_++;
+      
+      if(pos_ < limit_)
+      {
+        int end = parseRecord(pos_);
+        
+        if(end != -1)
+        {
+          pos_ = end;
+          recordNumber_++;
+          return true;
+        }
+      }
+      
+      if(atEof_)
+      {
+        fieldCount_ = 0;
+        return false;
+      }
+      
+      fill();
+    }
+  }
+  
+  /*
+   * Read more input, moving any partial record to the start of the buffer or growing
+   * the buffer if it is full.
+   */
+  private void fill() throws IOException
+  {
+    if(pos_ > 0)
+    {
+      System.arraycopy(buf_, pos_, buf_, 0, limit_ - pos_);
+      limit_ -= pos_;
+      pos_ = 0;
+    }
+    
+    if(limit_ == buf_.length)
+    {
+      if(limit_ >= maxRecordSize_)
+        throw new IOException("Record " + (recordNumber_ + 1) + " exceeds the maximum record size of " + maxRecordSize_ + " bytes");
+      
+      buf_ = Arrays.copyOf(buf_, (int) Math.min(maxRecordSize_, 2L * buf_.length));
+    }
+    
+    int nbytes = in_.read(buf_, limit_, buf_.length - limit_);
+    
+    if(nbytes == -1)
+      atEof_ = true;
+    else
+      limit_ += nbytes;
+  }
+  
+  /*
+   * Find the boundaries of the fields of the record starting at the given index.
+   * 
+   * Returns the index after the end of the record, or -1 if the buffer does not
+   * contain the whole record and we are not at end of input.
+   */
+  private int parseRecord(int i) throws IOException
+  {
+    fieldCount_ = 0;
+    
+    while(true)
+    {
+      int     start;
+      int     end;
+      boolean escaped = false;
+      
+      if(quoting_ && i < limit_ && buf_[i] == quote_)
+      {
+        start = ++i;
+        
+        while(true)
+        {
+          while(i < limit_ && buf_[i] != quote_)
+            i++;
+          
+          if(i == limit_)
+          {
+            if(atEof_)
+              throw new IOException("Unterminated quoted field in record " + (recordNumber_ + 1));
+            
+            return -1;
+          }
+          
+          // We need to see the next byte to know if this is an escaped quote.
+          if(i + 1 == limit_ && !atEof_)
+            return -1;
+          
+          if(i + 1 < limit_ && buf_[i + 1] == quote_)
+          {
+            escaped = true;
+            i += 2;
+          }
+          else
+          {
+            end = i++;
+            break;
+          }
+        }
+        
+        int j = i;
+        
+        while(j < limit_ && buf_[j] == '\r')
+          j++;
+        
+        if(j == limit_ && !atEof_)
+          return -1;
+        
+        if(j < limit_ && buf_[j] != '\n' && (j > i || buf_[j] != separator_))
+          throw new IOException("Unexpected character after a quoted field in record " + (recordNumber_ + 1));
+        
+        i = j;
+      }
+      else
+      {
+        start = i;
+        
+        while(i < limit_ && buf_[i] != separator_ && buf_[i] != '\n')
+          i++;
+        
+        if(i == limit_ && !atEof_)
+          return -1;
+        
+        end = i;
+        
+        if(i == limit_ || buf_[i] == '\n')
+        {
+          while(end > start && buf_[end - 1] == '\r')
+            end--;
+        }
+      }
+      
+      addField(start, end, escaped);
+      
+      if(i == limit_)
+        return i;
+      
+      if(buf_[i++] == '\n')
+        return i;
+    }
+  }
+  
+  private void addField(int start, int end, boolean escaped)
+  {
+    if(fieldCount_ >= columnLimit_)
+      return;
+    
+    if(fieldCount_ == starts_.length)
+    {
+      starts_  = Arrays.copyOf(starts_, fieldCount_ * 2);
+      ends_    = Arrays.copyOf(ends_, fieldCount_ * 2);
+      escaped_ = Arrays.copyOf(escaped_, fieldCount_ * 2);
+    }
+    
+    starts_[fieldCount_]  = start;
+    ends_[fieldCount_]    = end;
+    escaped_[fieldCount_] = escaped;
+    fieldCount_++;
+  }
+  
+  /**
+   * 
+   * @return The number of the current record, starting from 1.
+   */
+  public long getRecordNumber()
+  {
+    return recordNumber_;
+  }
+  
+  /**
+   * 
+   * @return The number of fields in the current record, which is at most the column limit.
+   */
+  public int getFieldCount()
+  {
+    return fieldCount_;
+  }
+  
+  private void checkIndex(int index)
+  {
+    if(index < 0 || index >= fieldCount_)
+      throw new IndexOutOfBoundsException("Field " + index + " is outside the range 0-" + fieldCount_);
+  }
+  
+  /**
+   * 
+   * @param index The index of a field in the current record.
+   * 
+   * @return The length in bytes of the given field, excluding any enclosing quotes.
+   */
+  public int getFieldLength(int index)
+  {
+    checkIndex(index);
+    
+    return ends_[index] - starts_[index];
+  }
+  
+  /**
+   * Return a view of the given field of the current record, which is only valid until the next call to next().
+   * 
+   * @param index The index of a field in the current record.
+   * 
+   * @return The value of the given field.
+   */
+  public CharSequence getField(int index)
+  {
+    checkIndex(index);
+    
+    int start = starts_[index];
+    int end   = ends_[index];
+    
+    if(escaped_[index])
+      return getString(index);
+    
+    for(int i=start ; i<end ; i++)
+    {
+      if(buf_[i] < 0)
+        return new String(buf_, start, end - start, StandardCharsets.UTF_8);
+    }
+    
+    return new AsciiSequence(buf_, start, end);
+  }
+  
+  /**
+   * 
+   * @param index The index of a field in the current record.
+   * 
+   * @return The value of the given field as a String.
+   */
+  public String getString(int index)
+  {
+    checkIndex(index);
+    
+    int start = starts_[index];
+    int end   = ends_[index];
+    
+    if(!escaped_[index])
+      return new String(buf_, start, end - start, StandardCharsets.UTF_8);
+    
+    byte[] bytes = unescape(start, end);
+    
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+  
+  /**
+   * 
+   * @param index The index of a field in the current record.
+   * 
+   * @return A copy of the bytes of the given field, which remains valid after the next call to next().
+   */
+  public ImmutableByteArray getBytes(int index)
+  {
+    checkIndex(index);
+    
+    int start = starts_[index];
+    int end   = ends_[index];
+    
+    if(escaped_[index])
+      return ImmutableByteArray.newInstance(unescape(start, end));
+    
+    return ImmutableByteArray.newInstance(Arrays.copyOfRange(buf_, start, end));
+  }
+  
+  private byte[] unescape(int start, int end)
+  {
+    byte[] bytes = new byte[end - start];
+    int    len   = 0;
+    
+    for(int i=start ; i<end ; i++)
+    {
+      bytes[len++] = buf_[i];
+      
+      if(buf_[i] == quote_)
+        i++;
+    }
+    
+    return Arrays.copyOf(bytes, len);
+  }
+  
+  /**
+   * Parse the given field as a long, without creating a String.
+   * 
+   * @param index The index of a field in the current record.
+   * 
+   * @return The value of the given field as a long.
+   * 
+   * @throws NumberFormatException If the field is not a valid decimal long value.
+   */
+  public long getLong(int index)
+  {
+    checkIndex(index);
+    
+    int     i        = starts_[index];
+    int     end      = ends_[index];
+    boolean negative = false;
+    
+    if(i < end && (buf_[i] == '-' || buf_[i] == '+'))
+      negative = buf_[i++] == '-';
+    
+    if(i == end)
+      throw numberFormatException(index);
+    
+    // Accumulate negatively so that Long.MIN_VALUE can be represented.
+    long limit  = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long result = 0;
+    
+    for( ; i<end ; i++)
+    {
+      int digit = buf_[i] - '0';
+      
+      if(digit < 0 || digit > 9 || result < limit / 10)
+        throw numberFormatException(index);
+      
+      result *= 10;
+      
+      if(result < limit + digit)
+        throw numberFormatException(index);
+      
+      result -= digit;
+    }
+    
+    return negative ? result : -result;
+  }
+  
+  /**
+   * Parse the given field as a double.
+   * 
+   * Simple decimal values with no more than 15 significant digits and no exponent,
+   * which are the common case, are parsed directly from the buffer. Other values are
+   * parsed by Double.parseDouble(), with the same result.
+   * 
+   * @param index The index of a field in the current record.
+   * 
+   * @return The value of the given field as a double.
+   * 
+   * @throws NumberFormatException If the field is not a valid double value.
+   */
+  public double getDouble(int index)
+  {
+    checkIndex(index);
+    
+    int     i        = starts_[index];
+    int     end      = ends_[index];
+    boolean negative = false;
+    
+    if(i < end && (buf_[i] == '-' || buf_[i] == '+'))
+      negative = buf_[i++] == '-';
+    
+    long mantissa = 0;
+    int  digits   = 0;
+    int  scale    = -1;
+    int  first    = i;
+    
+    for( ; i<end ; i++)
+    {
+      byte b = buf_[i];
+      
+      if(b >= '0' && b <= '9')
+      {
+        mantissa = mantissa * 10 + (b - '0');
+        
+        if(mantissa != 0)
+          digits++;
+        
+        if(scale >= 0)
+          scale++;
+      }
+      else if(b == '.' && scale == -1)
+      {
+        scale = 0;
+      }
+      else
+      {
+        break;
+      }
+    }
+    
+    // The mantissa and the power of ten are both exact, so the quotient is correctly rounded.
+    if(i == end && digits <= 15 && scale <= 22 && i - first > (scale == -1 ? 0 : 1))
+    {
+      double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+      
+      return negative ? -value : value;
+    }
+    
+    return Double.parseDouble(getString(index));
+  }
+  
+  private NumberFormatException numberFormatException(int index)
+  {
+    return new NumberFormatException("For input string: \"" + getString(index) + "\"");
+  }
+  
+  /**
+   * 
+   * @param index The index of a field in the current record.
+   * 
+   * @return true if the given field is empty.
+   */
+  public boolean isEmpty(int index)
+  {
+    checkIndex(index);
+    
+    return ends_[index] == starts_[index];
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    in_.close();
+  }
+  
+  private static class AsciiSequence implements CharSequence
+  {
+    private final byte[] buf_;
+    private final int    start_;
+    private final int    end_;
+    
+    AsciiSequence(byte[] buf, int start, int end)
+    {
+      buf_ = buf;
+      start_ = start;
+      end_ = end;
+    }
+
+    @Override
+    public int length()
+    {
+      return end_ - start_;
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+      if(index < 0 || index >= end_ - start_)
+        throw new IndexOutOfBoundsException("Index " + index + " is outside the range 0-" + (end_ - start_));
+      
+      return (char) buf_[start_ + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+      if(start < 0 || end > end_ - start_ || start > end)
+        throw new IndexOutOfBoundsException();
+      
+      return new AsciiSequence(buf_, start_ + start, start_ + end);
+    }
+
+    @Override
+    public String toString()
+    {
+      return new String(buf_, start_, end_ - start_, StandardCharsets.ISO_8859_1);
+    }
+  }
+}
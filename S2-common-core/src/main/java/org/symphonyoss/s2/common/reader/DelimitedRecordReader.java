@@ -0,0 +1,371 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.symphonyoss.s2.common.fault.FaultAccumulator;
+import org.symphonyoss.s2.common.fluent.BaseAbstractBuilder;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+/**
+ * Reads records separated by a delimiter, which may be a single byte such as \0 or
+ * 0x1e or a sequence of bytes such as \r\n, from a stream or channel.
+ * 
+ * No character decoding is done, so this reader is suitable for binary record formats.
+ * Input is read into large buffers and each record is returned as a slice of the buffer
+ * into which it was read, without a copy. A buffer is never reused, when it is full any
+ * partial record at its end is copied into a new buffer, so a returned record remains
+ * valid for as long as it is referenced.
+ * 
+ * The delimiter is not part of the record. Consecutive delimiters delimit an empty record.
+ * Any content after the last delimiter forms a final record, so content which ends with
+ * a delimiter has no trailing empty record.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@NotThreadSafe
+public class DelimitedRecordReader implements Closeable
+{
+  /** The default size of the buffers into which input is read. */
+  public static final int DEFAULT_BUFFER_SIZE     = 1024 * 1024;
+
+  /** The default maximum size of a record. */
+  public static final int DEFAULT_MAX_RECORD_SIZE = 16 * 1024 * 1024;
+  
+  private final ReadableByteChannel channel_;
+  private final byte[]              delimiter_;
+  private final int                 maxRecordSize_;
+  private final int                 bufferSize_;
+  private final boolean             directBuffers_;
+  
+  private ByteBuffer                buffer_;
+  private ImmutableByteArray        bufferArray_;
+  private int                       start_;
+  private int                       searchFrom_;
+  private boolean                   atEof_;
+  
+  private DelimitedRecordReader(Builder builder)
+  {
+    channel_       = builder.channel_;
+    delimiter_     = builder.delimiter_.clone();
+    maxRecordSize_ = builder.maxRecordSize_;
+    bufferSize_    = builder.bufferSize_;
+    directBuffers_ = builder.directBuffers_;
+    
+    allocate(bufferSize_);
+  }
+  
+  /**
+   * Builder for DelimitedRecordReader.
+   * 
+   * @author Bruce Skingle
+   *
+   */
+  public static class Builder extends BaseAbstractBuilder<Builder, DelimitedRecordReader>
+  {
+    private ReadableByteChannel channel_;
+    private byte[]              delimiter_     = new byte[] { '\n' };
+    private int                 maxRecordSize_ = DEFAULT_MAX_RECORD_SIZE;
+    private int                 bufferSize_    = DEFAULT_BUFFER_SIZE;
+    private boolean             directBuffers_ = false;
+    
+    /**
+     * Constructor.
+     */
+    public Builder()
+    {
+      super(Builder.class);
+    }
+    
+    /**
+     * Set the channel from which records are read.
+     * 
+     * @param channel A channel, which must be in blocking mode. It is closed when the reader is closed.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withChannel(ReadableByteChannel channel)
+    {
+      channel_ = channel;
+      
+      return self();
+    }
+    
+    /**
+     * Set the stream from which records are read.
+     * 
+     * @param in An InputStream. It is closed when the reader is closed.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withInputStream(InputStream in)
+    {
+      channel_ = in == null ? null : Channels.newChannel(in);
+      
+      return self();
+    }
+    
+    /**
+     * Set the delimiter which separates records, by default this is \n.
+     * 
+     * @param delimiter One or more bytes which separate records.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withDelimiter(byte ...delimiter)
+    {
+      delimiter_ = delimiter;
+      
+      return self();
+    }
+    
+    /**
+     * Set the delimiter which separates records, by default this is \n.
+     * 
+     * @param delimiter One or more bytes which separate records.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withDelimiter(ImmutableByteArray delimiter)
+    {
+      delimiter_ = delimiter == null ? null : delimiter.toByteArray();
+      
+      return self();
+    }
+    
+    /**
+     * Set the maximum size of a record, excluding its delimiter.
+     * 
+     * @param maxRecordSize The maximum size of a record in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withMaxRecordSize(int maxRecordSize)
+    {
+      maxRecordSize_ = maxRecordSize;
+      
+      return self();
+    }
+    
+    /**
+     * Set the size of the buffers into which input is read.
+     * 
+     * @param bufferSize The size of each buffer in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withBufferSize(int bufferSize)
+    {
+      bufferSize_ = bufferSize;
+      
+      return self();
+    }
+    
+    /**
+     * Set whether input is read into direct or heap buffers, by default heap buffers are used.
+     * 
+     * A new buffer is allocated whenever the current one is full and the native memory of a direct
+     * buffer is only released when it is garbage collected, so direct buffers should only be used
+     * with large buffer sizes.
+     * 
+     * @param directBuffers true if direct buffers should be used.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withDirectBuffers(boolean directBuffers)
+    {
+      directBuffers_ = directBuffers;
+      
+      return self();
+    }
+
+    @Override
+    protected void validate(FaultAccumulator faultAccumulator)
+    {
+      super.validate(faultAccumulator);
+      
+      faultAccumulator.checkNotNull(channel_, "Input channel");
+      faultAccumulator.checkNotNull(delimiter_, "Delimiter");
+      
+      if(delimiter_ != null && delimiter_.length == 0)
+        faultAccumulator.error("Delimiter must not be empty");
+      
+      if(maxRecordSize_ < 0)
+        faultAccumulator.error("Maximum record size must not be negative");
+      
+      if(bufferSize_ < 1)
+        faultAccumulator.error("Buffer size must be at least 1");
+    }
+
+    @Override
+    protected DelimitedRecordReader construct()
+    {
+      return new DelimitedRecordReader(this);
+    }
+  }
+  
+  private void allocate(int capacity)
+  {
+    buffer_ = directBuffers_ ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    
+    // The content of the buffer is only ever exposed as slices of this array which have already been filled.
+    bufferArray_ = ImmutableByteArray.newInstance(buffer_);
+  }
+  
+  /**
+   * Return the next record.
+   * 
+   * @return The next record, without its delimiter, or null if there are no more records.
+   * 
+   * @throws IOException If there is an IO error or a record is larger than the maximum record size.
+   */
+  public @Nullable ImmutableByteArray nextRecord() throws IOException
+  {
+    while(true)
+    {
+      int end = findDelimiter();
+      
+      if(end != -1)
+      {
+        checkRecordSize(end - start_);
+        
+        ImmutableByteArray record = bufferArray_.slice(start_, end - start_);
+        
+        start_ = searchFrom_ = end + delimiter_.length;
+        
+        return record;
+      }
+      
+      checkRecordSize(buffer_.position() - start_ - delimiter_.length + 1);
+      
+      if(atEof_ || !fill())
+      {
+        if(buffer_.position() == start_)
+          return null;
+        
+        ImmutableByteArray record = bufferArray_.slice(start_, buffer_.position() - start_);
+        
+        start_ = searchFrom_ = buffer_.position();
+        
+        return record;
+      }
+    }
+  }
+  
+  private void checkRecordSize(int size) throws IOException
+  {
+    if(size > maxRecordSize_)
+      throw new IOException("Record exceeds the maximum record size of " + maxRecordSize_ + " bytes");
+  }
+  
+  /*
+   * Return the index of the next delimiter in the filled part of the buffer, or -1. searchFrom_
+   * is advanced so that no part of the buffer is scanned more than once.
+   */
+  private int findDelimiter()
+  {
+    int limit = buffer_.position();
+    
+    while(true)
+    {
+      int i = ImmutableByteArray.indexOf(buffer_, delimiter_[0], searchFrom_, limit);
+      
+      if(i == -1)
+      {
+        searchFrom_ = limit;
+        return -1;
+      }
+      
+      if(i + delimiter_.length > limit)
+      {
+        searchFrom_ = i;
+        return -1;
+      }
+      
+      int j = 1;
+      
+      while(j < delimiter_.length && buffer_.get(i + j) == delimiter_[j])
+        j++;
+      
+      if(j == delimiter_.length)
+        return i;
+      
+      searchFrom_ = i + 1;
+    }
+  }
+  
+  /*
+   * Read more input, allocating a new buffer if the current one is full.
+   * 
+   * Returns false at end of stream.
+   */
+  private boolean fill() throws IOException
+  {
+    if(!buffer_.hasRemaining())
+    {
+      int        partial  = buffer_.position() - start_;
+      int        capacity = partial < bufferSize_ / 2 ? bufferSize_ :
+                              (int) Math.min(Integer.MAX_VALUE, Math.max(bufferSize_, 2L * partial));
+      ByteBuffer old      = buffer_;
+      
+      allocate(capacity);
+      
+      old.limit(old.position()).position(start_);
+      buffer_.put(old);
+      
+      searchFrom_ -= start_;
+      start_ = 0;
+    }
+    
+    while(true)
+    {
+      int nbytes = channel_.read(buffer_);
+      
+      if(nbytes == -1)
+      {
+        atEof_ = true;
+        return false;
+      }
+      
+      if(nbytes > 0)
+        return true;
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    channel_.close();
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+/**
+ * The encodings of the length prefix of a frame supported by FrameReader and FrameWriter.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+public enum FrameLengthEncoding
+{
+  /** A 4 byte big endian length, as written by TypeHelper.put(int, byte[], int). */
+  FIXED_32(4),
+  
+  /** A protobuf varint32 length, as written by MessageLite.writeDelimitedTo(). */
+  VARINT(5);
+  
+  private final int maxHeaderLength_;
+  
+  private FrameLengthEncoding(int maxHeaderLength)
+  {
+    maxHeaderLength_ = maxHeaderLength;
+  }
+  
+  /**
+   * 
+   * @return The maximum length of the encoded length prefix.
+   */
+  public int getMaxHeaderLength()
+  {
+    return maxHeaderLength_;
+  }
+  
+  /*
+   * Encode the given length into the given buffer, returning the number of bytes written.
+   */
+  /* package */ int encode(int length, byte[] buf)
+  {
+    if(this == FIXED_32)
+    {
+      buf[0] = (byte) (length >>> 24);
+      buf[1] = (byte) (length >>> 16);
+      buf[2] = (byte) (length >>> 8);
+      buf[3] = (byte) length;
+      
+      return 4;
+    }
+    
+    int i = 0;
+    
+    while((length & ~0x7f) != 0)
+    {
+      buf[i++] = (byte) ((length & 0x7f) | 0x80);
+      length >>>= 7;
+    }
+    
+    buf[i++] = (byte) length;
+    
+    return i;
+  }
+}
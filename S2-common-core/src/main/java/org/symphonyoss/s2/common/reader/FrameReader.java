@@ -0,0 +1,325 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.symphonyoss.s2.common.fault.FaultAccumulator;
+import org.symphonyoss.s2.common.fluent.BaseAbstractBuilder;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+/**
+ * Reads length prefixed frames, such as delimited protobuf messages, from a stream or channel.
+ * 
+ * Input is read into large buffers and each frame is returned as a slice of the buffer into
+ * which it was read, without a copy. As for DelimitedRecordReader a buffer is never refilled,
+ * when it is full any partial frame at its end is copied into a new buffer, so a returned frame
+ * remains valid for as long as it is referenced.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@NotThreadSafe
+public class FrameReader implements Closeable
+{
+  /** The default size of the buffers into which input is read. */
+  public static final int DEFAULT_BUFFER_SIZE    = 1024 * 1024;
+
+  /** The default maximum size of a frame. */
+  public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+  
+  private final ReadableByteChannel channel_;
+  private final FrameLengthEncoding lengthEncoding_;
+  private final int                 maxFrameSize_;
+  private final int                 bufferSize_;
+  private final boolean             directBuffers_;
+  
+  private ByteBuffer                buffer_;
+  private ImmutableByteArray        bufferArray_;
+  private int                       start_;
+  private boolean                   atEof_;
+  
+  private FrameReader(Builder builder)
+  {
+    channel_        = builder.channel_;
+    lengthEncoding_ = builder.lengthEncoding_;
+    maxFrameSize_   = builder.maxFrameSize_;
+    bufferSize_     = builder.bufferSize_;
+    directBuffers_  = builder.directBuffers_;
+    
+    allocate(bufferSize_);
+  }
+  
+  /**
+   * Builder for FrameReader.
+   * 
+   * @author Bruce Skingle
+   *
+   */
+  public static class Builder extends BaseAbstractBuilder<Builder, FrameReader>
+  {
+    private ReadableByteChannel channel_;
+    private FrameLengthEncoding lengthEncoding_ = FrameLengthEncoding.FIXED_32;
+    private int                 maxFrameSize_   = DEFAULT_MAX_FRAME_SIZE;
+    private int                 bufferSize_     = DEFAULT_BUFFER_SIZE;
+    private boolean             directBuffers_  = false;
+    
+    /**
+     * Constructor.
+     */
+    public Builder()
+    {
+      super(Builder.class);
+    }
+    
+    /**
+     * Set the channel from which frames are read.
+     * 
+     * @param channel A channel, which must be in blocking mode. It is closed when the reader is closed.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withChannel(ReadableByteChannel channel)
+    {
+      channel_ = channel;
+      
+      return self();
+    }
+    
+    /**
+     * Set the stream from which frames are read.
+     * 
+     * @param in An InputStream. It is closed when the reader is closed.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withInputStream(InputStream in)
+    {
+      channel_ = in == null ? null : Channels.newChannel(in);
+      
+      return self();
+    }
+    
+    /**
+     * Set the encoding of the length prefix of each frame, by default FIXED_32.
+     * 
+     * @param lengthEncoding The encoding of the length prefix.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withLengthEncoding(FrameLengthEncoding lengthEncoding)
+    {
+      lengthEncoding_ = lengthEncoding;
+      
+      return self();
+    }
+    
+    /**
+     * Set the maximum size of a frame, excluding its length prefix.
+     * 
+     * @param maxFrameSize The maximum size of a frame in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withMaxFrameSize(int maxFrameSize)
+    {
+      maxFrameSize_ = maxFrameSize;
+      
+      return self();
+    }
+    
+    /**
+     * Set the size of the buffers into which input is read.
+     * 
+     * @param bufferSize The size of each buffer in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withBufferSize(int bufferSize)
+    {
+      bufferSize_ = bufferSize;
+      
+      return self();
+    }
+    
+    /**
+     * Set whether input is read into direct or heap buffers, by default heap buffers are used.
+     * 
+     * A new buffer is allocated whenever the current one is full and the native memory of a direct
+     * buffer is only released when it is garbage collected, so direct buffers should only be used
+     * with large buffer sizes.
+     * 
+     * @param directBuffers true if direct buffers should be used.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withDirectBuffers(boolean directBuffers)
+    {
+      directBuffers_ = directBuffers;
+      
+      return self();
+    }
+
+    @Override
+    protected void validate(FaultAccumulator faultAccumulator)
+    {
+      super.validate(faultAccumulator);
+      
+      faultAccumulator.checkNotNull(channel_, "Input channel");
+      faultAccumulator.checkNotNull(lengthEncoding_, "Length encoding");
+      
+      if(maxFrameSize_ < 0)
+        faultAccumulator.error("Maximum frame size must not be negative");
+      
+      if(bufferSize_ < 1)
+        faultAccumulator.error("Buffer size must be at least 1");
+    }
+
+    @Override
+    protected FrameReader construct()
+    {
+      return new FrameReader(this);
+    }
+  }
+  
+  private void allocate(int capacity)
+  {
+    buffer_ = directBuffers_ ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    
+    // The content of the buffer is only ever exposed as slices of this array which have already been filled.
+    bufferArray_ = ImmutableByteArray.newInstance(buffer_);
+  }
+  
+  /**
+   * Return the next frame.
+   * 
+   * @return The content of the next frame, without its length prefix, or null at end of input.
+   * 
+   * @throws EOFException If the input ends part way through a frame.
+   * @throws IOException  If there is an IO error, a length prefix is invalid or a frame is larger than the maximum frame size.
+   */
+  public @Nullable ImmutableByteArray nextFrame() throws IOException
+  {
+    if(!ensure(1))
+    {
+      if(buffer_.position() == start_)
+        return null;
+      
+      throw new EOFException("End of input in a frame header");
+    }
+    
+    int headerLength;
+    int length;
+    
+    if(lengthEncoding_ == FrameLengthEncoding.FIXED_32)
+    {
+      if(!ensure(4))
+        throw new EOFException("End of input in a frame header");
+      
+      headerLength = 4;
+      length = buffer_.getInt(start_);
+    }
+    else
+    {
+      headerLength = 0;
+      length = 0;
+      
+      while(true)
+      {
+        if(!ensure(headerLength + 1))
+          throw new EOFException("End of input in a frame header");
+        
+        byte b = buffer_.get(start_ + headerLength);
+        
+        // The 5th byte holds the top 4 bits of a 32 bit length and must be the last.
+        if(headerLength == 4 && (b & 0xff) > 0x0f)
+          throw new IOException("Malformed varint frame length");
+        
+        length |= (b & 0x7f) << (7 * headerLength++);
+        
+        if(b >= 0)
+          break;
+      }
+    }
+    
+    if(length < 0 || length > maxFrameSize_)
+      throw new IOException("Frame length " + (length & 0xffffffffL) + " exceeds the maximum frame size of " + maxFrameSize_ + " bytes");
+    
+    if(headerLength + (long) length > Integer.MAX_VALUE)
+      throw new IOException("Frame length " + length + " is too large to buffer");
+    
+    if(!ensure(headerLength + (long) length))
+      throw new EOFException("End of input after " + (buffer_.position() - start_ - headerLength) + " of " + length + " bytes of a frame");
+    
+    ImmutableByteArray frame = bufferArray_.slice(start_ + headerLength, length);
+    
+    start_ += headerLength + length;
+    
+    return frame;
+  }
+  
+  /*
+   * Ensure that at least the given number of bytes after start_ have been read, returning false
+   * if the end of input is reached first.
+   */
+  private boolean ensure(long needed) throws IOException
+  {
+    while(buffer_.position() - start_ < needed)
+    {
+      if(atEof_)
+        return false;
+      
+      if(start_ + needed > buffer_.capacity())
+      {
+        ByteBuffer old = buffer_;
+        
+        allocate((int) Math.max(bufferSize_, needed));
+        
+        old.limit(old.position()).position(start_);
+        buffer_.put(old);
+        start_ = 0;
+      }
+      
+      if(channel_.read(buffer_) == -1)
+        atEof_ = true;
+    }
+    
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    channel_.close();
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.symphonyoss.s2.common.fault.FaultAccumulator;
+import org.symphonyoss.s2.common.fluent.BaseAbstractBuilder;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+/**
+ * Writes length prefixed frames, which can be read by a FrameReader, to a stream or channel.
+ * 
+ * When writing to a channel a batch of frames and their length prefixes is written with
+ * gathering writes, see ImmutableByteArray.writeAll(), so the content of the frames is not copied.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@NotThreadSafe
+public class FrameWriter implements Closeable, Flushable
+{
+  private final GatheringByteChannel channel_;
+  private final OutputStream         out_;
+  private final FrameLengthEncoding  lengthEncoding_;
+  private final int                  maxFrameSize_;
+  
+  private FrameWriter(Builder builder)
+  {
+    channel_        = builder.channel_;
+    out_            = builder.out_;
+    lengthEncoding_ = builder.lengthEncoding_;
+    maxFrameSize_   = builder.maxFrameSize_;
+  }
+  
+  /**
+   * Builder for FrameWriter.
+   * 
+   * @author Bruce Skingle
+   *
+   */
+  public static class Builder extends BaseAbstractBuilder<Builder, FrameWriter>
+  {
+    private GatheringByteChannel channel_;
+    private OutputStream         out_;
+    private FrameLengthEncoding  lengthEncoding_ = FrameLengthEncoding.FIXED_32;
+    private int                  maxFrameSize_   = FrameReader.DEFAULT_MAX_FRAME_SIZE;
+    
+    /**
+     * Constructor.
+     */
+    public Builder()
+    {
+      super(Builder.class);
+    }
+    
+    /**
+     * Set the channel to which frames are written.
+     * 
+     * @param channel A channel, which must be in blocking mode. It is closed when the writer is closed.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withChannel(GatheringByteChannel channel)
+    {
+      channel_ = channel;
+      
+      return self();
+    }
+    
+    /**
+     * Set the stream to which frames are written.
+     * 
+     * @param out An OutputStream. It is closed when the writer is closed.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withOutputStream(OutputStream out)
+    {
+      out_ = out;
+      
+      return self();
+    }
+    
+    /**
+     * Set the encoding of the length prefix of each frame, by default FIXED_32.
+     * 
+     * @param lengthEncoding The encoding of the length prefix.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withLengthEncoding(FrameLengthEncoding lengthEncoding)
+    {
+      lengthEncoding_ = lengthEncoding;
+      
+      return self();
+    }
+    
+    /**
+     * Set the maximum size of a frame, excluding its length prefix.
+     * 
+     * @param maxFrameSize The maximum size of a frame in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withMaxFrameSize(int maxFrameSize)
+    {
+      maxFrameSize_ = maxFrameSize;
+      
+      return self();
+    }
+
+    @Override
+    protected void validate(FaultAccumulator faultAccumulator)
+    {
+      super.validate(faultAccumulator);
+      
+      faultAccumulator.checkValueCount("Channel, OutputStream", 1, 1, channel_, out_);
+      faultAccumulator.checkNotNull(lengthEncoding_, "Length encoding");
+      
+      if(maxFrameSize_ < 0)
+        faultAccumulator.error("Maximum frame size must not be negative");
+    }
+
+    @Override
+    protected FrameWriter construct()
+    {
+      return new FrameWriter(this);
+    }
+  }
+  
+  private ImmutableByteArray header(ImmutableByteArray frame)
+  {
+    int length = frame.length();
+    
+    if(length > maxFrameSize_)
+      throw new IllegalArgumentException("Frame length " + length + " exceeds the maximum frame size of " + maxFrameSize_ + " bytes");
+    
+    byte[] header       = new byte[lengthEncoding_.getMaxHeaderLength()];
+    int    headerLength = lengthEncoding_.encode(length, header);
+    
+    // The header array is adopted without a copy, so each frame has its own.
+    return ImmutableByteArray.newInstance(ByteBuffer.wrap(header, 0, headerLength));
+  }
+  
+  /**
+   * Write the given frame.
+   * 
+   * @param frame The content of a frame.
+   * 
+   * @throws IOException If there is an IO error.
+   * @throws IllegalArgumentException If the frame is larger than the maximum frame size.
+   */
+  public void writeFrame(ImmutableByteArray frame) throws IOException
+  {
+    ImmutableByteArray header = header(frame);
+    
+    if(channel_ != null)
+    {
+      ImmutableByteArray.writeAll(channel_, header, frame);
+    }
+    else
+    {
+      header.write(out_);
+      frame.write(out_);
+    }
+  }
+  
+  /**
+   * Write the given frames.
+   * 
+   * When writing to a channel all of the frames are written with gathering writes.
+   * 
+   * @param frames The content of each frame.
+   * 
+   * @throws IOException If there is an IO error.
+   * @throws IllegalArgumentException If any frame is larger than the maximum frame size, in which case nothing is written.
+   */
+  public void writeFrames(Collection<? extends ImmutableByteArray> frames) throws IOException
+  {
+    List<ImmutableByteArray> parts = new ArrayList<>(frames.size() * 2);
+    
+    for(ImmutableByteArray frame : frames)
+    {
+      parts.add(header(frame));
+      parts.add(frame);
+    }
+    
+    if(channel_ != null)
+    {
+      ImmutableByteArray.writeAll(channel_, parts);
+    }
+    else
+    {
+      for(ImmutableByteArray part : parts)
+        part.write(out_);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException
+  {
+    if(out_ != null)
+      out_.flush();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if(channel_ != null)
+      channel_.close();
+    else
+      out_.close();
+  }
+}
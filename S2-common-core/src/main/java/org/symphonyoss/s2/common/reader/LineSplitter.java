@@ -0,0 +1,208 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+/**
+ * Splits the content of one or more ImmutableByteArrays, typically a mapped file,
+ * into lines.
+ * 
+ * Unlike LinePartialReader.Factory no characters are decoded and nothing is copied,
+ * the raw bytes are scanned eight at a time for \n and each line is returned as a
+ * slice of the underlying content. A line which spans two segments is returned as a
+ * composite of the two slices.
+ * 
+ * An end of line is treated in the same way as by LinePartialReader, it is zero or
+ * more \r followed by one \n, and the \r characters are not part of the line. Any
+ * \r characters at the end of the content are also discarded and trailing content
+ * which consists only of \r characters does not form a line.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@NotThreadSafe
+public class LineSplitter
+{
+  /** The segment size used to map files by map(Path). */
+  public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+  
+  private final List<? extends ImmutableByteArray> segments_;
+  private int                                      segmentIndex_ = -1;
+  private ImmutableByteArray                       segment_;
+  private ByteBuffer                               buffer_;
+  private int                                      index_;
+  private long                                     segmentBase_;
+  private long                                     position_;
+  
+  /**
+   * Construct a splitter over the given content.
+   * 
+   * @param content The content to be split into lines.
+   */
+  public LineSplitter(ImmutableByteArray content)
+  {
+    this(Collections.singletonList(content));
+  }
+  
+  /**
+   * Construct a splitter over the concatenation of the given segments, as
+   * returned by ImmutableByteArray.mapSegments() for example.
+   * 
+   * @param segments The content to be split into lines.
+   */
+  public LineSplitter(List<? extends ImmutableByteArray> segments)
+  {
+    segments_ = segments;
+    nextSegment();
+  }
+  
+  /**
+   * Return a splitter over the contents of the given file, which is mapped into memory.
+   * 
+   * The caller must ensure that the file is not modified or truncated while the splitter,
+   * or any line returned by it, is in use.
+   * 
+   * @param path The file to be split into lines.
+   * 
+   * @return A splitter over the contents of the given file.
+   * 
+   * @throws IOException If the file cannot be mapped.
+   */
+  public static LineSplitter map(Path path) throws IOException
+  {
+    return new LineSplitter(ImmutableByteArray.mapSegments(path, DEFAULT_SEGMENT_SIZE));
+  }
+  
+  private boolean nextSegment()
+  {
+    if(segment_ != null)
+      segmentBase_ += segment_.length();
+    
+    while(++segmentIndex_ < segments_.size())
+    {
+      segment_ = segments_.get(segmentIndex_);
+      
+      if(segment_.length() > 0)
+      {
+        buffer_ = segment_.asReadOnlyByteBuffer().slice();
+        index_ = 0;
+        return true;
+      }
+    }
+    
+    segment_ = null;
+    buffer_ = null;
+    return false;
+  }
+  
+  /**
+   * 
+   * @return The offset from the start of the content of the start of the next line.
+   */
+  public long getPosition()
+  {
+    return position_;
+  }
+  
+  /**
+   * Return the next line.
+   * 
+   * @return The next line, without its line terminator, or null if there are no more lines.
+   */
+  public @Nullable ImmutableByteArray nextLine()
+  {
+    ImmutableByteArray carry = null;
+    
+    while(buffer_ != null)
+    {
+      int start = index_;
+      int end   = ImmutableByteArray.indexOf(buffer_, (byte) '\n', start, buffer_.limit());
+      
+      if(end != -1)
+      {
+        index_ = end + 1;
+        position_ = segmentBase_ + index_;
+        
+        if(carry == null)
+        {
+          while(end > start && buffer_.get(end - 1) == '\r')
+            end--;
+          
+          return segment_.slice(start, end - start);
+        }
+        
+        return stripCRs(ImmutableByteArray.newInstance(carry, segment_.slice(start, end - start)));
+      }
+      
+      ImmutableByteArray tail = segment_.slice(start, buffer_.limit() - start);
+      
+      carry = carry == null ? tail : ImmutableByteArray.newInstance(carry, tail);
+      
+      nextSegment();
+    }
+    
+    position_ = segmentBase_;
+    
+    if(carry == null)
+      return null;
+    
+    carry = stripCRs(carry);
+    
+    return carry.length() == 0 ? null : carry;
+  }
+  
+  /**
+   * Return the next line as a CharSequence.
+   * 
+   * The returned value is a view of the UTF-8 encoded line, which is decoded lazily.
+   * 
+   * @return The next line, without its line terminator, or null if there are no more lines.
+   */
+  public @Nullable CharSequence nextCharSequence()
+  {
+    ImmutableByteArray line = nextLine();
+    
+    return line == null ? null : line.asCharSequence();
+  }
+  
+  /* package */ static ImmutableByteArray stripCRs(ImmutableByteArray line)
+  {
+    int end = line.length();
+    
+    while(end > 0 && line.byteAt(end - 1) == '\r')
+      end--;
+    
+    return line.slice(0, end);
+  }
+}
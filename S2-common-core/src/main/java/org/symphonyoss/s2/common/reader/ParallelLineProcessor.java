@@ -0,0 +1,369 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.symphonyoss.s2.common.fault.FaultAccumulator;
+import org.symphonyoss.s2.common.fluent.BaseAbstractBuilder;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+/**
+ * Processes the lines of large files, or other large content, in parallel.
+ * 
+ * The content is divided into ranges of approximately the configured size, each of
+ * which ends immediately after a \n, so that every line lies entirely within one range.
+ * Each range is processed by a ForkJoin task with its own LineSplitter, so lines are
+ * treated exactly as they would be by a single LineSplitter over the whole content.
+ * 
+ * Callbacks are made concurrently from the threads of the pool and must be thread safe.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@ThreadSafe
+public class ParallelLineProcessor
+{
+  /** The default approximate size of each range. */
+  public static final int DEFAULT_RANGE_SIZE = 4 * 1024 * 1024;
+  
+  private final ForkJoinPool pool_;
+  private final int          rangeSize_;
+  
+  private ParallelLineProcessor(Builder builder)
+  {
+    pool_      = builder.pool_;
+    rangeSize_ = builder.rangeSize_;
+  }
+  
+  /**
+   * Builder for ParallelLineProcessor.
+   * 
+   * @author Bruce Skingle
+   *
+   */
+  public static class Builder extends BaseAbstractBuilder<Builder, ParallelLineProcessor>
+  {
+    private ForkJoinPool pool_      = ForkJoinPool.commonPool();
+    private int          rangeSize_ = DEFAULT_RANGE_SIZE;
+    
+    /**
+     * Constructor.
+     */
+    public Builder()
+    {
+      super(Builder.class);
+    }
+    
+    /**
+     * Set the pool in which ranges are processed, by default the common pool is used.
+     * 
+     * @param pool A ForkJoinPool.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withForkJoinPool(ForkJoinPool pool)
+    {
+      pool_ = pool;
+      
+      return self();
+    }
+    
+    /**
+     * Set the approximate size of each range, a range is extended to the end of the
+     * line which contains its last byte.
+     * 
+     * @param rangeSize The approximate size of each range in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withRangeSize(int rangeSize)
+    {
+      rangeSize_ = rangeSize;
+      
+      return self();
+    }
+
+    @Override
+    protected void validate(FaultAccumulator faultAccumulator)
+    {
+      super.validate(faultAccumulator);
+      
+      faultAccumulator.checkNotNull(pool_, "ForkJoinPool");
+      
+      if(rangeSize_ < 1)
+        faultAccumulator.error("Range size must be at least 1");
+    }
+
+    @Override
+    protected ParallelLineProcessor construct()
+    {
+      return new ParallelLineProcessor(this);
+    }
+  }
+  
+  /**
+   * Divide the concatenation of the given segments into ranges which end on line boundaries.
+   * 
+   * Each range is returned as a list of slices of the given segments, a range which spans
+   * the end of a segment has more than one slice. A LineSplitter constructed from one range
+   * returns the lines in that range.
+   * 
+   * @param segments The content to be divided, as returned by ImmutableByteArray.mapSegments() for example.
+   * 
+   * @return A list of ranges, in order.
+   */
+  public List<List<ImmutableByteArray>> split(List<? extends ImmutableByteArray> segments)
+  {
+    List<List<ImmutableByteArray>> ranges        = new ArrayList<>();
+    List<ImmutableByteArray>       current       = new ArrayList<>();
+    int                            currentLength = 0;
+    
+    for(ImmutableByteArray segment : segments)
+    {
+      int start = 0;
+      int limit = segment.length();
+      
+      while(start < limit)
+      {
+        int want = Math.max(rangeSize_ - currentLength, 1);
+        int end  = limit - start <= want ? -1 : segment.indexOf((byte) '\n', start + want - 1);
+        
+        if(end == -1)
+        {
+          current.add(segment.slice(start, limit - start));
+          currentLength = (int) Math.min(Integer.MAX_VALUE, (long) currentLength + limit - start);
+          break;
+        }
+        
+        current.add(segment.slice(start, end + 1 - start));
+        ranges.add(current);
+        current = new ArrayList<>();
+        currentLength = 0;
+        start = end + 1;
+      }
+    }
+    
+    if(!current.isEmpty())
+      ranges.add(current);
+    
+    return ranges;
+  }
+  
+  /**
+   * Call the given consumer with a LineSplitter for each range of the given file.
+   * 
+   * @param path      A file, which is mapped into memory.
+   * @param consumer  A consumer which is called once for each range, concurrently.
+   * 
+   * @throws IOException If the file cannot be mapped.
+   */
+  public void forEachRange(Path path, Consumer<LineSplitter> consumer) throws IOException
+  {
+    forEachRange(ImmutableByteArray.mapSegments(path, LineSplitter.DEFAULT_SEGMENT_SIZE), consumer);
+  }
+  
+  /**
+   * Call the given consumer with a LineSplitter for each range of the given content.
+   * 
+   * @param segments  The content to be processed.
+   * @param consumer  A consumer which is called once for each range, concurrently.
+   */
+  public void forEachRange(List<? extends ImmutableByteArray> segments, Consumer<LineSplitter> consumer)
+  {
+    List<List<ImmutableByteArray>> ranges = split(segments);
+    List<RecursiveAction>          tasks  = new ArrayList<>(ranges.size());
+    
+    for(List<ImmutableByteArray> range : ranges)
+    {
+      tasks.add(new RecursiveAction()
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute()
+        {
+          consumer.accept(new LineSplitter(range));
+        }
+      });
+    }
+    
+    invoke(tasks);
+  }
+  
+  /**
+   * Call the given consumer for each line of the given file.
+   * 
+   * Lines are passed to the consumer concurrently and in no particular order.
+   * 
+   * @param path      A file, which is mapped into memory.
+   * @param consumer  A consumer which is called once for each line, concurrently.
+   * 
+   * @throws IOException If the file cannot be mapped.
+   */
+  public void forEachLine(Path path, Consumer<ImmutableByteArray> consumer) throws IOException
+  {
+    forEachLine(ImmutableByteArray.mapSegments(path, LineSplitter.DEFAULT_SEGMENT_SIZE), consumer);
+  }
+  
+  /**
+   * Call the given consumer for each line of the given content.
+   * 
+   * Lines are passed to the consumer concurrently and in no particular order.
+   * 
+   * @param segments  The content to be processed.
+   * @param consumer  A consumer which is called once for each line, concurrently.
+   */
+  public void forEachLine(List<? extends ImmutableByteArray> segments, Consumer<ImmutableByteArray> consumer)
+  {
+    forEachRange(segments, (splitter) ->
+    {
+      ImmutableByteArray line;
+      
+      while((line = splitter.nextLine()) != null)
+        consumer.accept(line);
+    });
+  }
+  
+  /**
+   * Apply the given function to each line of the given file and return the results.
+   * 
+   * @param <T>       The type of the results.
+   * @param path      A file, which is mapped into memory.
+   * @param function  A function which is called once for each line, concurrently. Null results are discarded.
+   * @param ordered   If true the results are in the order of the lines from which they were produced,
+   *                  otherwise they are in no particular order, which avoids the need to retain the results
+   *                  of each range until all earlier ranges are complete.
+   * 
+   * @return The non-null results of the function.
+   * 
+   * @throws IOException If the file cannot be mapped.
+   */
+  public <T> List<T> map(Path path, Function<ImmutableByteArray, T> function, boolean ordered) throws IOException
+  {
+    return map(ImmutableByteArray.mapSegments(path, LineSplitter.DEFAULT_SEGMENT_SIZE), function, ordered);
+  }
+  
+  /**
+   * Apply the given function to each line of the given content and return the results.
+   * 
+   * @param <T>       The type of the results.
+   * @param segments  The content to be processed.
+   * @param function  A function which is called once for each line, concurrently. Null results are discarded.
+   * @param ordered   If true the results are in the order of the lines from which they were produced,
+   *                  otherwise they are in no particular order.
+   * 
+   * @return The non-null results of the function.
+   */
+  public <T> List<T> map(List<? extends ImmutableByteArray> segments, Function<ImmutableByteArray, T> function, boolean ordered)
+  {
+    if(!ordered)
+    {
+      Collection<T> results = new ConcurrentLinkedQueue<>();
+      
+      forEachLine(segments, (line) ->
+      {
+        T result = function.apply(line);
+        
+        if(result != null)
+          results.add(result);
+      });
+      
+      return new ArrayList<>(results);
+    }
+    
+    List<List<ImmutableByteArray>> ranges       = split(segments);
+    List<List<T>>                  rangeResults = new ArrayList<>(Collections.nCopies(ranges.size(), (List<T>) null));
+    List<RecursiveAction>          tasks        = new ArrayList<>(ranges.size());
+    
+    for(int i=0 ; i<ranges.size() ; i++)
+    {
+      int                      index = i;
+      List<ImmutableByteArray> range = ranges.get(i);
+      
+      tasks.add(new RecursiveAction()
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute()
+        {
+          List<T>            results  = new ArrayList<>();
+          LineSplitter       splitter = new LineSplitter(range);
+          ImmutableByteArray line;
+          
+          while((line = splitter.nextLine()) != null)
+          {
+            T result = function.apply(line);
+            
+            if(result != null)
+              results.add(result);
+          }
+          
+          rangeResults.set(index, results);
+        }
+      });
+    }
+    
+    invoke(tasks);
+    
+    int size = 0;
+    
+    for(List<T> results : rangeResults)
+      size += results.size();
+    
+    List<T> results = new ArrayList<>(size);
+    
+    for(List<T> rangeResult : rangeResults)
+      results.addAll(rangeResult);
+    
+    return results;
+  }
+  
+  private void invoke(List<RecursiveAction> tasks)
+  {
+    pool_.invoke(new RecursiveAction()
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected void compute()
+      {
+        invokeAll(tasks);
+      }
+    });
+  }
+}
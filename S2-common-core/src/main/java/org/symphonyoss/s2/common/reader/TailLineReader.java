@@ -0,0 +1,560 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.symphonyoss.s2.common.fault.FaultAccumulator;
+import org.symphonyoss.s2.common.fault.TransactionFault;
+import org.symphonyoss.s2.common.fluent.BaseAbstractBuilder;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+/**
+ * Follows a growing file, such as a log, returning each line as it is completed.
+ * 
+ * Lines are treated as by LineSplitter, except that a final line without a \n is never
+ * returned, it is held in the buffer until its \n arrives and the part which has already
+ * been scanned is not scanned again. Each line is returned as a slice of the buffer into
+ * which it was read, buffers are never refilled so lines remain valid.
+ * 
+ * When no more input is available the reader waits on a WatchService registered for the
+ * directory containing the file, so that appends are seen as soon as they are notified.
+ * The wait has a timeout which starts at the minimum poll interval and doubles while the
+ * file is idle up to the maximum poll interval, so that the file is still polled if the
+ * WatchService is slow or does not report changes, as is the case for some network file
+ * systems.
+ * 
+ * If the file becomes shorter than the current position it is assumed to have been
+ * truncated, for example by copytruncate log rotation, and is read again from the start.
+ * If the path refers to a different file, for example after the file has been renamed and
+ * a new one created, the remainder of the old file is read and the new file is then read
+ * from the start. In both cases any incomplete final line is discarded.
+ * 
+ * Only one thread may read lines, close() may be called from any thread and causes a
+ * blocked call to nextLine() to return null.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+@NotThreadSafe
+public class TailLineReader implements Closeable
+{
+  /** The default size of the buffers into which input is read. */
+  public static final int  DEFAULT_BUFFER_SIZE       = 64 * 1024;
+
+  /** The default maximum length of a line. */
+  public static final int  DEFAULT_MAX_LINE_LENGTH   = 16 * 1024 * 1024;
+
+  /** The default minimum poll interval in milliseconds. */
+  public static final long DEFAULT_MIN_POLL_INTERVAL = 1;
+
+  /** The default maximum poll interval in milliseconds. */
+  public static final long DEFAULT_MAX_POLL_INTERVAL = 100;
+  
+  private final Path           path_;
+  private final int            bufferSize_;
+  private final int            maxLineLength_;
+  private final long           minPollInterval_;
+  private final long           maxPollInterval_;
+  private final WatchService   watchService_;
+  
+  private FileChannel          channel_;
+  private Object               fileKey_;
+  private long                 filePosition_;
+  private ByteBuffer           buffer_;
+  private ImmutableByteArray   bufferArray_;
+  private int                  start_;
+  private int                  searchFrom_;
+  private long                 pollInterval_;
+  private volatile boolean     closed_;
+  
+  private TailLineReader(Builder builder) throws IOException
+  {
+    path_            = builder.path_;
+    bufferSize_      = builder.bufferSize_;
+    maxLineLength_   = builder.maxLineLength_;
+    minPollInterval_ = builder.minPollInterval_;
+    maxPollInterval_ = builder.maxPollInterval_;
+    pollInterval_    = minPollInterval_;
+    
+    channel_ = FileChannel.open(path_, StandardOpenOption.READ);
+    fileKey_ = fileKey();
+    filePosition_ = builder.startAtEnd_ ? channel_.size() : builder.position_;
+    
+    allocate(bufferSize_);
+    
+    WatchService watchService = null;
+    
+    if(builder.watch_)
+    {
+      Path dir = path_.toAbsolutePath().getParent();
+      
+      try
+      {
+        watchService = dir.getFileSystem().newWatchService();
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+      }
+      catch(IOException | UnsupportedOperationException e)
+      {
+        // Fall back to polling.
+        if(watchService != null)
+          watchService.close();
+        
+        watchService = null;
+      }
+    }
+    
+    watchService_ = watchService;
+  }
+  
+  /**
+   * Builder for TailLineReader.
+   * 
+   * @author Bruce Skingle
+   *
+   */
+  public static class Builder extends BaseAbstractBuilder<Builder, TailLineReader>
+  {
+    private Path    path_;
+    private long    position_;
+    private boolean startAtEnd_;
+    private boolean watch_           = true;
+    private int     bufferSize_      = DEFAULT_BUFFER_SIZE;
+    private int     maxLineLength_   = DEFAULT_MAX_LINE_LENGTH;
+    private long    minPollInterval_ = DEFAULT_MIN_POLL_INTERVAL;
+    private long    maxPollInterval_ = DEFAULT_MAX_POLL_INTERVAL;
+    
+    /**
+     * Constructor.
+     */
+    public Builder()
+    {
+      super(Builder.class);
+    }
+    
+    /**
+     * Set the file to be followed.
+     * 
+     * @param path The path of the file to be followed.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withPath(Path path)
+    {
+      path_ = path;
+      
+      return self();
+    }
+    
+    /**
+     * Set the position from which reading starts, by default this is the start of the file.
+     * 
+     * This would typically be a value previously returned by getPosition().
+     * 
+     * @param position The position in the file of the start of a line.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withPosition(long position)
+    {
+      position_ = position;
+      
+      return self();
+    }
+    
+    /**
+     * Set whether reading starts at the end of the file, so that only lines appended after
+     * the reader is built are returned.
+     * 
+     * @param startAtEnd true if reading should start at the end of the file.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withStartAtEnd(boolean startAtEnd)
+    {
+      startAtEnd_ = startAtEnd;
+      
+      return self();
+    }
+    
+    /**
+     * Set whether a WatchService is used to detect changes to the file, by default it is.
+     * If not, or if no WatchService is available, the file is polled.
+     * 
+     * @param watch true if a WatchService should be used.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withWatchService(boolean watch)
+    {
+      watch_ = watch;
+      
+      return self();
+    }
+    
+    /**
+     * Set the minimum and maximum intervals between checks of the file for changes.
+     * 
+     * @param minPollInterval The interval after new input has been read.
+     * @param maxPollInterval The interval after the file has been idle for some time.
+     * @param unit            The unit of both intervals.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withPollInterval(long minPollInterval, long maxPollInterval, TimeUnit unit)
+    {
+      minPollInterval_ = unit.toMillis(minPollInterval);
+      maxPollInterval_ = unit.toMillis(maxPollInterval);
+      
+      return self();
+    }
+    
+    /**
+     * Set the size of the buffers into which input is read.
+     * 
+     * @param bufferSize The size of each buffer in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withBufferSize(int bufferSize)
+    {
+      bufferSize_ = bufferSize;
+      
+      return self();
+    }
+    
+    /**
+     * Set the maximum length of a line.
+     * 
+     * @param maxLineLength The maximum length of a line in bytes.
+     * 
+     * @return this (fluent method)
+     */
+    public Builder withMaxLineLength(int maxLineLength)
+    {
+      maxLineLength_ = maxLineLength;
+      
+      return self();
+    }
+
+    @Override
+    protected void validate(FaultAccumulator faultAccumulator)
+    {
+      super.validate(faultAccumulator);
+      
+      faultAccumulator.checkNotNull(path_, "Path");
+      
+      if(position_ < 0)
+        faultAccumulator.error("Position must not be negative");
+      
+      if(startAtEnd_ && position_ != 0)
+        faultAccumulator.error("A position may not be given if reading starts at the end of the file");
+      
+      if(minPollInterval_ < 1)
+        faultAccumulator.error("Minimum poll interval must be at least 1ms");
+      
+      if(maxPollInterval_ < minPollInterval_)
+        faultAccumulator.error("Maximum poll interval must be at least the minimum poll interval");
+      
+      if(bufferSize_ < 1)
+        faultAccumulator.error("Buffer size must be at least 1");
+      
+      if(maxLineLength_ < 0)
+        faultAccumulator.error("Maximum line length must not be negative");
+    }
+
+    @Override
+    protected TailLineReader construct()
+    {
+      try
+      {
+        return new TailLineReader(this);
+      }
+      catch(IOException e)
+      {
+        throw new TransactionFault("Unable to open " + path_, e);
+      }
+    }
+  }
+  
+  private void allocate(int capacity)
+  {
+    buffer_ = ByteBuffer.allocate(capacity);
+    
+    // The content of the buffer is only ever exposed as slices of this array which have already been filled.
+    bufferArray_ = ImmutableByteArray.newInstance(buffer_);
+  }
+  
+  private @Nullable Object fileKey() throws IOException
+  {
+    return Files.readAttributes(path_, BasicFileAttributes.class).fileKey();
+  }
+  
+  /**
+   * 
+   * @return The position in the file of the start of the next line to be returned.
+   */
+  public long getPosition()
+  {
+    return filePosition_ - (buffer_.position() - start_);
+  }
+  
+  /**
+   * Return the next line, waiting until one is available or the reader is closed.
+   * 
+   * @return The next line, without its line terminator, or null if the reader has been closed.
+   * 
+   * @throws IOException          If there is an IO error or a line is longer than the maximum line length.
+   * @throws InterruptedException If the thread is interrupted.
+   */
+  public @Nullable ImmutableByteArray nextLine() throws IOException, InterruptedException
+  {
+    return nextLine(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+  
+  /**
+   * Return the next line, waiting until one is available, the given timeout expires or
+   * the reader is closed.
+   * 
+   * @param timeout The maximum time to wait.
+   * @param unit    The unit of the timeout.
+   * 
+   * @return The next line, without its line terminator, or null if the timeout expired or the reader has been closed.
+   * 
+   * @throws IOException          If there is an IO error or a line is longer than the maximum line length.
+   * @throws InterruptedException If the thread is interrupted.
+   */
+  public @Nullable ImmutableByteArray nextLine(long timeout, TimeUnit unit) throws IOException, InterruptedException
+  {
+    long now      = System.nanoTime();
+    long nanos    = unit.toNanos(timeout);
+    long deadline = now + nanos < now ? Long.MAX_VALUE : now + nanos;
+    
+    try
+    {
+      while(!closed_)
+      {
+        ImmutableByteArray line = scan();
+        
+        if(line != null)
+          return line;
+        
+        if(read() > 0)
+        {
+          pollInterval_ = minPollInterval_;
+          continue;
+        }
+        
+        if(checkFile())
+          continue;
+        
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        
+        if(remaining <= 0)
+          return null;
+        
+        await(Math.min(pollInterval_, remaining));
+        pollInterval_ = Math.min(pollInterval_ * 2, maxPollInterval_);
+      }
+    }
+    catch(ClosedChannelException e)
+    {
+      // closed by another thread, unless we were interrupted
+      if(!closed_)
+        throw e;
+    }
+    
+    return null;
+  }
+  
+  /*
+   * Return the next complete line in the buffer, or null.
+   */
+  private @Nullable ImmutableByteArray scan()
+  {
+    int end = ImmutableByteArray.indexOf(buffer_, (byte) '\n', searchFrom_, buffer_.position());
+    
+    if(end == -1)
+    {
+      searchFrom_ = buffer_.position();
+      return null;
+    }
+    
+    ImmutableByteArray line = LineSplitter.stripCRs(bufferArray_.slice(start_, end - start_));
+    
+    start_ = searchFrom_ = end + 1;
+    
+    return line;
+  }
+  
+  /*
+   * Read any available input, returning the number of bytes read.
+   */
+  private int read() throws IOException
+  {
+    int partial = buffer_.position() - start_;
+    
+    if(partial > maxLineLength_)
+      throw new IOException("Line at position " + getPosition() + " exceeds the maximum line length of " + maxLineLength_ + " bytes");
+    
+    if(!buffer_.hasRemaining())
+    {
+      ByteBuffer old = buffer_;
+      
+      allocate(partial < bufferSize_ / 2 ? bufferSize_ : (int) Math.min(Integer.MAX_VALUE, 2L * partial));
+      
+      old.limit(old.position()).position(start_);
+      buffer_.put(old);
+      searchFrom_ -= start_;
+      start_ = 0;
+    }
+    
+    int nbytes = channel_.read(buffer_, filePosition_);
+    
+    if(nbytes <= 0)
+      return 0;
+    
+    filePosition_ += nbytes;
+    
+    return nbytes;
+  }
+  
+  /*
+   * Check for truncation or replacement of the file, returning true if it has been reopened.
+   */
+  private boolean checkFile() throws IOException
+  {
+    if(channel_.size() < filePosition_)
+    {
+      // truncated
+      restart();
+      return true;
+    }
+    
+    Object fileKey;
+    
+    try
+    {
+      fileKey = fileKey();
+    }
+    catch(NoSuchFileException e)
+    {
+      // The file has been moved or deleted and not yet replaced, keep reading the old one.
+      return false;
+    }
+    
+    if(fileKey != null && !Objects.equals(fileKey, fileKey_))
+    {
+      FileChannel channel;
+      
+      try
+      {
+        channel = FileChannel.open(path_, StandardOpenOption.READ);
+      }
+      catch(NoSuchFileException e)
+      {
+        return false;
+      }
+      
+      // Check again in case anything was appended to the old file since we last read it.
+      if(read() > 0)
+      {
+        channel.close();
+        return true;
+      }
+      
+      channel_.close();
+      channel_ = channel;
+      fileKey_ = fileKey;
+      restart();
+      return true;
+    }
+    
+    return false;
+  }
+  
+  private void restart()
+  {
+    filePosition_ = 0;
+    pollInterval_ = minPollInterval_;
+    
+    // Discard any incomplete line, the rest of the buffer is retained by returned lines.
+    buffer_.position(start_);
+    searchFrom_ = start_;
+  }
+  
+  private void await(long millis) throws InterruptedException
+  {
+    if(watchService_ == null)
+    {
+      Thread.sleep(millis);
+      return;
+    }
+    
+    try
+    {
+      WatchKey key = watchService_.poll(millis, TimeUnit.MILLISECONDS);
+      
+      if(key != null)
+      {
+        key.pollEvents();
+        key.reset();
+      }
+    }
+    catch(ClosedWatchServiceException e)
+    {
+      // closed
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    closed_ = true;
+    
+    if(watchService_ != null)
+      watchService_.close();
+    
+    channel_.close();
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A Reader which decodes UTF-8 incrementally from one or more ByteBuffers.
+ * 
+ * Unlike wrapping the result of new String(bytes, UTF_8) in a StringReader,
+ * the content is never decoded as a whole, only the characters requested by
+ * each read are produced. Runs of ASCII are copied directly. Malformed input
+ * is replaced with U+FFFD in the same way as the String constructor.
+ * 
+ * A multi byte sequence may span the boundary between two buffers. The
+ * buffers are read from duplicates, so their positions are unaffected.
+ * 
+ * @author Bruce Skingle
+ *
+ */
+public class Utf8Reader extends Reader
+{
+  private static final char  REPLACEMENT = '\ufffd';
+  
+  private final Iterator<ByteBuffer> buffers_;
+  private ByteBuffer                 buffer_;
+  private char                       pendingLowSurrogate_;
+  private boolean                    closed_;
+
+  /**
+   * Constructor.
+   * 
+   * @param input The buffer to be read, from its position to its limit.
+   */
+  public Utf8Reader(ByteBuffer input)
+  {
+    this(Collections.singletonList(input));
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param input The buffers to be read in order, each from its position to its limit.
+   */
+  public Utf8Reader(List<ByteBuffer> input)
+  {
+    buffers_ = input.iterator();
+  }
+  
+  /*
+   * Make buffer_ a buffer with remaining content, returning false at end of input.
+   */
+  private boolean nextBuffer()
+  {
+    while(buffer_ == null || !buffer_.hasRemaining())
+    {
+      if(!buffers_.hasNext())
+        return false;
+      
+      buffer_ = buffers_.next().duplicate();
+    }
+    
+    return true;
+  }
+  
+  /*
+   * Return the next byte without consuming it, or -1 at end of input.
+   */
+  private int peek()
+  {
+    if(!nextBuffer())
+      return -1;
+    
+    return buffer_.get(buffer_.position()) & 0xff;
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException
+  {
+    if(closed_)
+      throw new IOException("Reader is closed");
+    
+    if(off < 0 || len < 0 || off > cbuf.length - len)
+      throw new IndexOutOfBoundsException();
+    
+    if(len == 0)
+      return 0;
+    
+    int end = off + len;
+    int n   = off;
+    
+    if(pendingLowSurrogate_ != 0)
+    {
+      cbuf[n++] = pendingLowSurrogate_;
+      pendingLowSurrogate_ = 0;
+    }
+    
+    while(n < end && nextBuffer())
+    {
+      ByteBuffer buffer = buffer_;
+      int        pos    = buffer.position();
+      int        limit  = Math.min(buffer.limit(), pos + end - n);
+      byte       b;
+      
+      // ASCII fast path
+      while(pos < limit && (b = buffer.get(pos)) >= 0)
+      {
+        cbuf[n++] = (char) b;
+        pos++;
+      }
+      
+      buffer.position(pos);
+      
+      if(n < end && buffer.hasRemaining())
+        n = decode(cbuf, n, end);
+    }
+    
+    return n == off ? -1 : n - off;
+  }
+  
+  /*
+   * Decode one multi byte sequence, the current byte is not ASCII.
+   */
+  private int decode(char[] cbuf, int n, int end)
+  {
+    int lead = buffer_.get() & 0xff;
+    int count;
+    int min  = 0x80;
+    int max  = 0xbf;
+    int codePoint;
+    
+    if(lead >= 0xc2 && lead <= 0xdf)
+    {
+      count = 1;
+      codePoint = lead & 0x1f;
+    }
+    else if(lead >= 0xe0 && lead <= 0xef)
+    {
+      count = 2;
+      codePoint = lead & 0x0f;
+      
+      if(lead == 0xe0)
+        min = 0xa0;  // overlong
+      else if(lead == 0xed)
+        max = 0x9f;  // surrogate
+    }
+    else if(lead >= 0xf0 && lead <= 0xf4)
+    {
+      count = 3;
+      codePoint = lead & 0x07;
+      
+      if(lead == 0xf0)
+        min = 0x90;  // overlong
+      else if(lead == 0xf4)
+        max = 0x8f;  // above U+10FFFF
+    }
+    else
+    {
+      cbuf[n++] = REPLACEMENT;
+      return n;
+    }
+    
+    for(int i=0 ; i<count ; i++)
+    {
+      int b = peek();
+      
+      if(lead == 0xed && i == 0 && b >= 0xa0 && b <= 0xbf)
+      {
+        // An encoded surrogate is replaced as a single unit, as the String constructor does.
+        buffer_.get();
+        
+        b = peek();
+        
+        if(b >= 0x80 && b <= 0xbf)
+          buffer_.get();
+        
+        cbuf[n++] = REPLACEMENT;
+        return n;
+      }
+      
+      if(b < min || b > max)
+      {
+        // Truncated sequence, the offending byte is not consumed.
+        cbuf[n++] = REPLACEMENT;
+        return n;
+      }
+      
+      buffer_.get();
+      codePoint = (codePoint << 6) | (b & 0x3f);
+      min = 0x80;
+      max = 0xbf;
+    }
+    
+    if(codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+    {
+      cbuf[n++] = (char) codePoint;
+    }
+    else
+    {
+      cbuf[n++] = Character.highSurrogate(codePoint);
+      
+      if(n < end)
+        cbuf[n++] = Character.lowSurrogate(codePoint);
+      else
+        pendingLowSurrogate_ = Character.lowSurrogate(codePoint);
+    }
+    
+    return n;
+  }
+
+  @Override
+  public boolean ready() throws IOException
+  {
+    if(closed_)
+      throw new IOException("Reader is closed");
+    
+    return pendingLowSurrogate_ != 0 || nextBuffer();
+  }
+
+  @Override
+  public void close()
+  {
+    closed_ = true;
+  }
+}
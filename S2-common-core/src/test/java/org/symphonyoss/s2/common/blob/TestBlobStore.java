@@ -0,0 +1,203 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.blob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.symphonyoss.s2.common.exception.StorageException;
+import org.symphonyoss.s2.common.fault.TransactionFault;
+import org.symphonyoss.s2.common.hash.Hash;
+import org.symphonyoss.s2.common.hash.HashProvider;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+public class TestBlobStore
+{
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder();
+  
+  private BlobStore open(Path directory)
+  {
+    return new BlobStore.Builder()
+        .withDirectory(directory)
+        .withMaxSegmentSize(4096)
+        .build();
+  }
+  
+  private static ImmutableByteArray blob(int i)
+  {
+    StringBuilder s = new StringBuilder();
+    
+    for(int j=0 ; j<20 ; j++)
+      s.append("Blob number ").append(i).append('\n');
+    
+    return ImmutableByteArray.newInstance(s.toString());
+  }
+  
+  @Test
+  public void testPutGet() throws IOException, StorageException
+  {
+    try(BlobStore store = open(folder_.getRoot().toPath()))
+    {
+      Hash hash = store.put(blob(1));
+      
+      assertEquals(blob(1), store.get(hash));
+      assertTrue(store.contains(hash));
+      assertEquals(hash, store.put(blob(1)));
+      assertEquals(1, store.size());
+      
+      assertNull(store.get(HashProvider.getHashOf(blob(2))));
+    }
+  }
+  
+  @Test
+  public void testReopen() throws IOException, StorageException
+  {
+    Path       directory = folder_.getRoot().toPath();
+    List<Hash> hashes    = new ArrayList<>();
+    
+    try(BlobStore store = open(directory))
+    {
+      for(int i=0 ; i<50 ; i++)
+        hashes.add(store.put(blob(i)));
+      
+      store.delete(hashes.get(0));
+      
+      assertTrue(store.getSegmentCount() > 1);
+    }
+    
+    try(BlobStore store = open(directory))
+    {
+      assertNull(store.get(hashes.get(0)));
+      
+      for(int i=1 ; i<50 ; i++)
+        assertEquals(blob(i), store.get(hashes.get(i)));
+    }
+    
+    // Losing the index forces a rebuild from the segments.
+    Files.delete(directory.resolve(BlobIndex.FILE_NAME));
+    
+    try(BlobStore store = open(directory))
+    {
+      assertEquals(49, store.size());
+      assertNull(store.get(hashes.get(0)));
+      
+      for(int i=1 ; i<50 ; i++)
+        assertEquals(blob(i), store.get(hashes.get(i)));
+    }
+  }
+  
+  @Test
+  public void testCompact() throws IOException, StorageException
+  {
+    Path       directory = folder_.getRoot().toPath();
+    List<Hash> hashes    = new ArrayList<>();
+    
+    try(BlobStore store = open(directory))
+    {
+      for(int i=0 ; i<100 ; i++)
+        hashes.add(store.put(blob(i)));
+      
+      ImmutableByteArray before = store.get(hashes.get(99));
+      int                segments = store.getSegmentCount();
+      
+      for(int i=0 ; i<90 ; i++)
+        assertTrue(store.delete(hashes.get(i)));
+      
+      assertFalse(store.delete(hashes.get(0)));
+      
+      assertTrue(store.compact(0.5) > 0);
+      assertTrue(store.getSegmentCount() < segments);
+      
+      for(int i=90 ; i<100 ; i++)
+        assertEquals(blob(i), store.get(hashes.get(i)));
+      
+      // Values read before compaction are still readable.
+      assertEquals(blob(99), before);
+    }
+    
+    Files.delete(directory.resolve(BlobIndex.FILE_NAME));
+    
+    try(BlobStore store = open(directory))
+    {
+      assertEquals(10, store.size());
+      
+      for(int i=0 ; i<90 ; i++)
+        assertNull(store.get(hashes.get(i)));
+    }
+  }
+  
+  @Test
+  public void testManyReads() throws IOException, StorageException
+  {
+    try(BlobStore store = new BlobStore.Builder()
+        .withDirectory(folder_.getRoot().toPath())
+        .build())
+    {
+      // Interleaved writes and reads of the active segment must not remap on every read.
+      for(int i=0 ; i<2000 ; i++)
+        assertEquals(blob(i), store.get(store.put(blob(i))));
+    }
+  }
+  
+  @Test(expected=TransactionFault.class)
+  public void testCorruptSealedSegment() throws IOException, StorageException
+  {
+    Path directory = folder_.getRoot().toPath();
+    
+    try(BlobStore store = open(directory))
+    {
+      for(int i=0 ; i<50 ; i++)
+        store.put(blob(i));
+      
+      assertTrue(store.getSegmentCount() > 1);
+    }
+    
+    Files.delete(directory.resolve(BlobIndex.FILE_NAME));
+    
+    // Give the first record of the first segment an impossible data length.
+    try(FileChannel channel = FileChannel.open(BlobSegment.pathOf(directory, 0), StandardOpenOption.WRITE))
+    {
+      ByteBuffer length = ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE);
+      
+      channel.write(length, BlobSegment.FILE_HEADER + 2);
+    }
+    
+    open(directory).close();
+  }
+}
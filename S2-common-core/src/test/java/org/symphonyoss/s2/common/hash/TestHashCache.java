@@ -0,0 +1,171 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.symphonyoss.s2.common.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+public class TestHashCache
+{
+  private static Hash hashOf(String s)
+  {
+    return HashProvider.getHashOf(s.getBytes(StandardCharsets.UTF_8));
+  }
+  
+  @Test
+  public void testPutGet()
+  {
+    HashCache<String> cache = new HashCache.Builder<String>()
+        .withMaximumWeight(10)
+        .build();
+    
+    Hash key = hashOf("Hello");
+    
+    assertNull(cache.getIfPresent(key));
+    
+    cache.put(key, "Hello");
+    
+    assertEquals("Hello", cache.getIfPresent(key));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0.5, cache.getHitRatio(), 0.001);
+    
+    cache.invalidate(key);
+    
+    assertNull(cache.getIfPresent(key));
+    assertEquals(0, cache.getWeightedSize());
+  }
+  
+  @Test
+  public void testWeight()
+  {
+    HashCache<ImmutableByteArray> cache = new HashCache.Builder<ImmutableByteArray>()
+        .withMaximumWeight(1000)
+        .withWeigher(ImmutableByteArray::length)
+        .build();
+    
+    for(int i=0 ; i<100 ; i++)
+    {
+      ImmutableByteArray value = ImmutableByteArray.newInstance(new byte[50]);
+      
+      cache.put(hashOf("Value" + i), value);
+      
+      assertTrue(cache.getWeightedSize() <= 1000);
+    }
+    
+    assertTrue(cache.size() <= 20);
+    assertEquals(100 - cache.size(), cache.getEvictionCount());
+    assertEquals(50 * cache.getEvictionCount(), cache.getEvictionWeight());
+    
+    cache.put(hashOf("TooBig"), ImmutableByteArray.newInstance(new byte[1001]));
+    
+    assertNull(cache.getIfPresent(hashOf("TooBig")));
+  }
+  
+  @Test
+  public void testFrequentEntrySurvivesScan()
+  {
+    HashCache<String> cache = new HashCache.Builder<String>()
+        .withMaximumWeight(100)
+        .build();
+    
+    Hash hot = hashOf("Hot");
+    
+    cache.put(hot, "Hot");
+    
+    for(int i=0 ; i<1000 ; i++)
+    {
+      cache.getIfPresent(hot);
+      cache.put(hashOf("Cold" + i), "Cold" + i);
+    }
+    
+    assertNotNull(cache.getIfPresent(hot));
+    assertTrue(cache.size() <= 100);
+  }
+  
+  @Test
+  public void testLoaderCollapsesConcurrentMisses() throws Exception
+  {
+    AtomicInteger     loads = new AtomicInteger();
+    CountDownLatch    start = new CountDownLatch(1);
+    HashCache<String> cache = new HashCache.Builder<String>()
+        .withMaximumWeight(100)
+        .withLoader((hash) ->
+        {
+          loads.incrementAndGet();
+          
+          try
+          {
+            Thread.sleep(100);
+          }
+          catch (InterruptedException e)
+          {
+            Thread.currentThread().interrupt();
+          }
+          return hash.toStringHex();
+        })
+        .build();
+    
+    Hash            key      = hashOf("Hello");
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    
+    try
+    {
+      List<Future<String>> futures = new ArrayList<>();
+      
+      for(int i=0 ; i<8 ; i++)
+        futures.add(executor.submit(() ->
+        {
+          start.await();
+          return cache.get(key);
+        }));
+      
+      start.countDown();
+      
+      for(Future<String> future : futures)
+        assertEquals(key.toStringHex(), future.get(10, TimeUnit.SECONDS));
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+    
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getLoadCount());
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.symphonyoss.s2.common.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+public class TestHashInternPool
+{
+  @Test
+  public void testIntern()
+  {
+    HashInternPool pool = new HashInternPool();
+    Hash           hash = HashProvider.getHashOf("Hello".getBytes(StandardCharsets.UTF_8));
+    
+    Hash a = pool.intern(hash.toByteString());
+    Hash b = pool.intern(new Hash(hash.toImmutableByteArray().toByteArray()).toImmutableByteArray());
+    Hash c = pool.intern(Hash.ofBase64String(hash.toStringBase64()));
+    
+    assertEquals(hash, a);
+    assertSame(a, b);
+    assertSame(a, c);
+    assertEquals(1, pool.getMissCount());
+    assertEquals(2, pool.getHitCount());
+    assertEquals(1, pool.size());
+  }
+  
+  @Test
+  public void testInternSlice()
+  {
+    HashInternPool     pool    = new HashInternPool();
+    Hash               hash    = HashProvider.getHashOf("Hello".getBytes(StandardCharsets.UTF_8));
+    ImmutableByteArray bytes   = hash.toImmutableByteArray();
+    ImmutableByteArray message = ImmutableByteArray.newInstance(new byte[100], bytes.toByteArray(), new byte[1000]);
+    ImmutableByteArray slice   = message.slice(100, bytes.length());
+    
+    Hash interned = pool.intern(slice);
+    
+    assertEquals(hash, interned);
+    assertNotSame(slice, interned.toImmutableByteArray());
+    
+    // The canonical value holds only its own bytes, not the message it was sliced from.
+    assertSame(interned.toImmutableByteArray(), interned.toImmutableByteArray().compact());
+  }
+  
+  @Test
+  public void testBypass()
+  {
+    HashInternPool pool = new HashInternPool();
+    Hash           hash = HashProvider.getHashOf("Hello".getBytes(StandardCharsets.UTF_8));
+    
+    pool.setBypass(true);
+    
+    Hash a = pool.intern(hash.toByteString());
+    Hash b = pool.intern(hash.toByteString());
+    
+    assertEquals(a, b);
+    assertNotSame(a, b);
+    assertEquals(0, pool.size());
+    assertEquals(0, pool.getMissCount() + pool.getHitCount());
+  }
+  
+  @Test
+  public void testMaxSize()
+  {
+    HashInternPool pool = new HashInternPool(8, 2);
+    
+    for(int i=0 ; i<100 ; i++)
+      pool.intern(HashProvider.getHashOf(("Hello" + i).getBytes(StandardCharsets.UTF_8)));
+    
+    assertTrue(pool.size() <= 8);
+    assertEquals(100, pool.getMissCount());
+  }
+  
+  @Test
+  public void testStaticFactory()
+  {
+    Hash hash = HashProvider.getHashOf("Hello".getBytes(StandardCharsets.UTF_8));
+    
+    try
+    {
+      Hash.setInternPool(new HashInternPool());
+      
+      assertSame(Hash.newInstance(hash.toByteString()), Hash.newInstance(hash.toStringBase64()));
+      assertSame(Hash.build(hash.toByteString()), Hash.build(hash.toImmutableByteArray()));
+    }
+    finally
+    {
+      Hash.setInternPool(null);
+    }
+    
+    assertNotSame(Hash.newInstance(hash.toByteString()), Hash.newInstance(hash.toByteString()));
+  }
+}
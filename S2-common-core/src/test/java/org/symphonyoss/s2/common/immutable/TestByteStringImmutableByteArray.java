@@ -24,13 +24,18 @@
 package org.symphonyoss.s2.common.immutable;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 
 import org.apache.commons.codec.binary.Base64;
 import org.junit.Test;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 
 public class TestByteStringImmutableByteArray
 {
@@ -64,4 +69,34 @@ public class TestByteStringImmutableByteArray
     assertEquals("qgYis5r3xcj61QjW477JEaZQx-pC4AEbFEmgWiFUE5wUje4BAbAGAcIGGUeYaEZe0YYgrUqsihl1X09___6vUPLxZnTYBsgB4AaACA", urlSafe);
   }
 
+  @Test
+  public void testCopyAndWrite() throws IOException
+  {
+    // A rope, for which the content is not contiguous. Parts shorter than 128 bytes would be copied flat by concat().
+    String left  = "Hello" + String.join("", Collections.nCopies(40, "left "));
+    String right = "World" + String.join("", Collections.nCopies(40, "right"));
+    String text  = left + right;
+    
+    ByteString input = ByteString.copyFromUtf8(left).concat(ByteString.copyFromUtf8(right));
+    
+    assertTrue(input.asReadOnlyByteBufferList().size() > 1);
+    
+    ImmutableByteArray a = ImmutableByteArray.newInstance(input);
+    byte[] dest = new byte[7];
+    
+    assertTrue(a.asReadOnlyByteBufferList().size() > 1);
+    
+    a.arraycopy(left.length() - 3, dest, 1, 6);
+    assertEquals("\0ft Wor", new String(dest, StandardCharsets.UTF_8));
+    assertEquals(text, a.toString());
+    assertEquals(Base64.encodeBase64String(text.getBytes(StandardCharsets.UTF_8)), a.toBase64String());
+    
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    CodedOutputStream     out  = CodedOutputStream.newInstance(bout);
+    
+    a.write(out);
+    out.flush();
+    
+    assertEquals(text, bout.toString("UTF-8"));
+  }
 }
@@ -0,0 +1,135 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+public class TestCompositeImmutableByteArray
+{
+  private static final String TEXT = "HeaderBodySignature";
+  
+  private ImmutableByteArray newComposite()
+  {
+    return ImmutableByteArray.newInstance(
+        ImmutableByteArray.newInstance("Header"),
+        ImmutableByteArray.newInstance(ByteString.copyFromUtf8("Body")),
+        ImmutableByteArray.EMPTY,
+        ImmutableByteArray.newInstance(ByteBuffer.wrap("Signature".getBytes(StandardCharsets.UTF_8)))
+        );
+  }
+  
+  @Test
+  public void testContent() throws IOException
+  {
+    ImmutableByteArray expected = ImmutableByteArray.newInstance(TEXT);
+    ImmutableByteArray a = newComposite();
+    
+    assertEquals(TEXT.length(), a.length());
+    assertEquals(TEXT, a.toString());
+    assertEquals(expected, a);
+    assertEquals(a, expected);
+    assertEquals(expected.hashCode(), a.hashCode());
+    assertEquals(expected.toBase64String(), a.toBase64String());
+    assertEquals(TEXT, a.toByteString().toStringUtf8());
+    assertEquals(TEXT, new String(a.toByteArray(), StandardCharsets.UTF_8));
+    
+    for(int i=0 ; i<TEXT.length() ; i++)
+      assertEquals(TEXT.charAt(i), a.byteAt(i));
+    
+    StringBuilder s = new StringBuilder();
+    
+    for(Byte b : a)
+      s.append((char) b.byteValue());
+    
+    assertEquals(TEXT, s.toString());
+    
+    byte[] dest = new byte[8];
+    
+    a.arraycopy(4, dest, 0, 8);
+    assertEquals("erBodySi", new String(dest, StandardCharsets.UTF_8));
+    
+    // The rope does not retain a flattened copy of its content.
+    assertEquals(expected, a.compact());
+    assertNotSame(a.compact(), a.compact());
+    
+    try(InputStream in = a.getInputStream())
+    {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      int                   c;
+      
+      while((c = in.read()) != -1)
+        bout.write(c);
+      
+      assertEquals(TEXT, bout.toString("UTF-8"));
+    }
+  }
+  
+  @Test
+  public void testWrite() throws IOException
+  {
+    ImmutableByteArray    a    = newComposite();
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    
+    a.write(bout);
+    assertEquals(TEXT, bout.toString("UTF-8"));
+    
+    bout.reset();
+    a.write(Channels.newChannel(bout));
+    assertEquals(TEXT, bout.toString("UTF-8"));
+    
+    assertEquals(3, a.asReadOnlyByteBufferList().size());
+    assertEquals(TEXT.length(), a.asReadOnlyByteBuffer().remaining());
+  }
+  
+  @Test
+  public void testSlice()
+  {
+    ImmutableByteArray a = newComposite();
+    
+    assertEquals("Body", a.slice(6, 4).toString());
+    assertEquals("derBodySig", a.slice(3, 10).toString());
+    assertEquals(ImmutableByteArray.newInstance("derBodySig"), a.slice(3, 10));
+    assertEquals(0, a.slice(6, 0).length());
+    assertEquals(a, a.compact());
+    assertTrue(a.compact() instanceof ArrayBackedImmutableByteArray);
+    
+    ImmutableByteArray nested = ImmutableByteArray.newInstance(a, ImmutableByteArray.newInstance("!"));
+    
+    assertEquals(TEXT + "!", nested.toString());
+    assertEquals(4, nested.asReadOnlyByteBufferList().size());
+  }
+}
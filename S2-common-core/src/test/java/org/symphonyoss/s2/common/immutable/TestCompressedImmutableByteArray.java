@@ -0,0 +1,114 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestCompressedImmutableByteArray
+{
+  private static String json(int records)
+  {
+    StringBuilder s = new StringBuilder("[");
+    
+    for(int i=0 ; i<records ; i++)
+      s.append("{\"_type\":\"com.symphony.s2.model.Example\",\"id\":").append(i).append(",\"text\":\"Hello World\"},");
+    
+    return s.append("{}]").toString();
+  }
+  
+  @Test
+  public void testCompression() throws IOException
+  {
+    String             text  = json(1000);
+    ImmutableByteArray input = ImmutableByteArray.newInstance(text);
+    ImmutableByteArray a     = CompressedImmutableByteArray.newInstance(input);
+    
+    assertTrue(a instanceof CompressedImmutableByteArray);
+    
+    CompressedImmutableByteArray c = (CompressedImmutableByteArray) a;
+    
+    assertEquals(input.length(), c.length());
+    assertTrue(c.getCompressedLength() * 5 < c.length());
+    
+    // streaming access
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    
+    c.write(bout);
+    assertEquals(text, bout.toString("UTF-8"));
+    
+    try(InputStream in = c.getInputStream())
+    {
+      assertEquals(input, ImmutableByteArray.newInstance(in));
+    }
+    
+    try(Reader in = c.getReader())
+    {
+      char[] buf = new char[10];
+      
+      assertEquals(10, in.read(buf));
+      assertEquals(text.substring(0, 10), new String(buf));
+    }
+    
+    // random access
+    assertEquals(text, c.toString());
+    assertEquals(input, c);
+    assertEquals(input.hashCode(), c.hashCode());
+    assertEquals(input.toBase64String(), c.toBase64String());
+    assertEquals(text.charAt(5000), (char) c.byteAt(5000));
+    assertEquals(input.slice(100, 50), c.slice(100, 50));
+    assertSame(c, c.compact());
+    assertSame(c, CompressedImmutableByteArray.newInstance(c));
+  }
+  
+  @Test
+  public void testHeuristic()
+  {
+    ImmutableByteArray small = ImmutableByteArray.newInstance(json(1));
+    
+    assertSame(small, CompressedImmutableByteArray.newInstance(small));
+    
+    byte[] random = new byte[100000];
+    
+    new Random(1).nextBytes(random);
+    
+    ImmutableByteArray incompressible = ImmutableByteArray.newInstance(random);
+    
+    assertSame(incompressible, CompressedImmutableByteArray.newInstance(incompressible));
+    
+    CompressedImmutableByteArray forced = CompressedImmutableByteArray.compress(incompressible);
+    
+    assertEquals(incompressible, forced);
+    assertEquals(ImmutableByteArray.EMPTY, CompressedImmutableByteArray.compress(ImmutableByteArray.EMPTY));
+  }
+}
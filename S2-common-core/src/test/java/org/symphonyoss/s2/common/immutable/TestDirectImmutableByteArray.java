@@ -0,0 +1,151 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestDirectImmutableByteArray
+{
+  @Test
+  public void testContent() throws IOException
+  {
+    DirectByteArrayArena     arena = new DirectByteArrayArena.Builder().build();
+    ImmutableByteArray       input = ImmutableByteArray.newInstance("HelloWorld");
+    DirectImmutableByteArray a     = arena.copyOf(input);
+    
+    assertEquals(input, a);
+    assertEquals("HelloWorld", a.toString());
+    assertEquals(input.toBase64String(), a.toBase64String());
+    assertEquals("HelloWorld", a.toByteString().toStringUtf8());
+    assertTrue(a.asReadOnlyByteBuffer().isDirect());
+    
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    
+    a.write(Channels.newChannel(bout));
+    assertEquals("HelloWorld", bout.toString("UTF-8"));
+    
+    ImmutableByteArray compact = a.compact();
+    
+    assertTrue(a.release());
+    assertEquals("HelloWorld", compact.toString());
+    
+    try
+    {
+      a.byteAt(0);
+      throw new AssertionError("Expected IllegalStateException");
+    }
+    catch(IllegalStateException e)
+    {
+      // expected
+    }
+    
+    try
+    {
+      a.release();
+      throw new AssertionError("Expected IllegalStateException");
+    }
+    catch(IllegalStateException e)
+    {
+      // expected
+    }
+  }
+  
+  @Test
+  public void testReferenceCount()
+  {
+    DirectByteArrayArena     arena = new DirectByteArrayArena.Builder().build();
+    DirectImmutableByteArray a     = arena.copyOf(ImmutableByteArray.newInstance("HelloWorld"));
+    DirectImmutableByteArray world = a.slice(5, 5);
+    
+    assertEquals("World", world.toString());
+    
+    world.retain();
+    assertEquals(2, a.getReferenceCount());
+    assertFalse(a.release());
+    assertEquals("World", world.toString());
+    assertTrue(world.release());
+    assertEquals(0, arena.getAllocatedSize());
+  }
+  
+  @Test
+  public void testPooling()
+  {
+    DirectByteArrayArena arena = new DirectByteArrayArena.Builder()
+        .withMinChunkSize(64)
+        .withMaxChunkSize(1024)
+        .build();
+    
+    DirectImmutableByteArray a = arena.copyOf(new byte[100], 0, 100);
+    
+    assertEquals(128, arena.getAllocatedSize());
+    a.release();
+    assertEquals(0, arena.getAllocatedSize());
+    assertEquals(128, arena.getPooledSize());
+    
+    a = arena.copyOf(new byte[120], 0, 120);
+    assertEquals(0, arena.getPooledSize());
+    assertEquals(120, a.length());
+    a.release();
+    
+    // Too large to be pooled
+    a = arena.copyOf(new byte[2000], 0, 2000);
+    a.release();
+    assertEquals(128, arena.getPooledSize());
+    
+    arena.trim();
+    assertEquals(0, arena.getPooledSize());
+  }
+  
+  @Test
+  public void testLeakDetection() throws InterruptedException
+  {
+    AtomicInteger        leaks = new AtomicInteger();
+    DirectByteArrayArena arena = new DirectByteArrayArena.Builder()
+        .withLeakDetection(true)
+        .withLeakHandler((allocation) -> leaks.incrementAndGet())
+        .build();
+    
+    arena.copyOf(new byte[10], 0, 10).release();
+    arena.copyOf(new byte[10], 0, 10);
+    
+    for(int i=0 ; i<50 && leaks.get() == 0 ; i++)
+    {
+      System.gc();
+      Thread.sleep(20);
+      arena.reportLeaks();
+    }
+    
+    assertEquals(1, leaks.get());
+    assertEquals(1, arena.getLeakCount());
+  }
+}
@@ -24,9 +24,37 @@
 package org.symphonyoss.s2.common.immutable;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.protobuf.ByteString;
 
 /**
  * Unit test for ImmutableByteArray
@@ -36,6 +64,10 @@ import org.junit.Test;
  */
 public class TestImmutableByteArray
 {
+  /** Temporary folder for file based tests */
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder();
+  
   /**
    * Test implementation of Comparable
    */
@@ -71,5 +103,412 @@ public class TestImmutableByteArray
     
   }
   
+  /**
+   * Test equals, hashCode and mismatch across implementations and lengths which
+   * do and do not fall on a long boundary.
+   */
+  @Test
+  public void testEquals()
+  {
+    for(int length=0 ; length<40 ; length++)
+    {
+      byte[] bytes = new byte[length];
+      
+      for(int i=0 ; i<length ; i++)
+        bytes[i] = (byte) (i * 37);
+      
+      ImmutableByteArray a = ImmutableByteArray.newInstance(bytes);
+      ImmutableByteArray b = ImmutableByteArray.newInstance(ByteString.copyFrom(bytes));
+      ImmutableByteArray c = ImmutableByteArray.newInstance(ByteBuffer.wrap(bytes.clone()));
+      
+      assertEquals(a, b);
+      assertEquals(b, c);
+      assertEquals(a.hashCode(), b.hashCode());
+      assertEquals(a.hashCode(), c.hashCode());
+      assertEquals(-1, a.mismatch(c));
+      
+      for(int i=0 ; i<length ; i++)
+      {
+        byte[] other = bytes.clone();
+        
+        other[i]++;
+        
+        ImmutableByteArray d = ImmutableByteArray.newInstance(ByteBuffer.wrap(other));
+        
+        assertFalse(a.equals(d));
+        assertEquals(i, a.mismatch(d));
+        assertEquals(i, d.mismatch(b));
+      }
+      
+      if(length > 0)
+        assertEquals(length - 1, a.mismatch(a.slice(0, length - 1)));
+    }
+  }
+  
+  /**
+   * Test unsigned lexicographic ordering.
+   */
+  @Test
+  public void testCompareUnsigned()
+  {
+    ImmutableByteArray low  = ImmutableByteArray.newInstance(new byte[] { 0x01, 0x7f });
+    ImmutableByteArray high = ImmutableByteArray.newInstance(new byte[] { 0x01, (byte) 0x80 });
+    ImmutableByteArray long1 = ImmutableByteArray.newInstance(new byte[] { 0x01, (byte) 0x80, 0x00 });
+    
+    // signed comparison is retained for compareTo
+    assertTrue(low.compareTo(high) > 0);
+    
+    assertTrue(low.compareUnsigned(high) < 0);
+    assertTrue(high.compareUnsigned(low) > 0);
+    assertTrue(high.compareUnsigned(long1) < 0);
+    assertEquals(0, high.compareUnsigned(ImmutableByteArray.newInstance(ByteString.copyFrom(new byte[] { 0x01, (byte) 0x80 }))));
+    
+    List<ImmutableByteArray> list = new ArrayList<>(Arrays.asList(long1, high, ImmutableByteArray.EMPTY, low));
+    
+    Collections.sort(list, ImmutableByteArray.UNSIGNED_COMPARATOR);
+    
+    assertEquals(Arrays.asList(ImmutableByteArray.EMPTY, low, high, long1), list);
+  }
   
+  /**
+   * Test reading streams of known and unknown length.
+   * 
+   * @throws IOException If there is an IO error.
+   */
+  @Test
+  public void testReadStream() throws IOException
+  {
+    for(int length : new int[] { 0, 1, 255, 256, 257, 5000 })
+    {
+      byte[] data = new byte[length];
+      
+      for(int i=0 ; i<length ; i++)
+        data[i] = (byte) i;
+      
+      ImmutableByteArray expected = ImmutableByteArray.newInstance(data);
+      
+      assertEquals(expected, ImmutableByteArray.newInstance(new ByteArrayInputStream(data)));
+      assertEquals(expected, ImmutableByteArray.newInstance(new TrickleInputStream(data)));
+      assertEquals(expected, ImmutableByteArray.newInstance(Channels.newChannel(new TrickleInputStream(data))));
+      assertEquals(expected, ImmutableByteArray.readFrom(new TrickleInputStream(data), length));
+      assertEquals(expected, ImmutableByteArray.readFrom(Channels.newChannel(new TrickleInputStream(data)), length));
+      assertEquals(expected, ImmutableByteArray.newInstance(new TrickleInputStream(data), length));
+      
+      if(length > 0)
+      {
+        try
+        {
+          ImmutableByteArray.readFrom(new TrickleInputStream(data), length - 1);
+          throw new AssertionError("Expected IOException");
+        }
+        catch(IOException e)
+        {
+          // expected
+        }
+      }
+      
+      try
+      {
+        ImmutableByteArray.newInstance(new TrickleInputStream(data), length + 1);
+        throw new AssertionError("Expected EOFException");
+      }
+      catch(EOFException e)
+      {
+        // expected
+      }
+    }
+  }
+  
+  /**
+   * Test reading a FileChannel using its size hint.
+   * 
+   * @throws IOException If there is an IO error.
+   */
+  @Test
+  public void testReadFileChannel() throws IOException
+  {
+    Path   path = folder_.newFile().toPath();
+    byte[] data = new byte[100000];
+    
+    for(int i=0 ; i<data.length ; i++)
+      data[i] = (byte) (i * 7);
+    
+    Files.write(path, data);
+    
+    try(FileChannel channel = FileChannel.open(path))
+    {
+      ImmutableByteArray result = ImmutableByteArray.newInstance(channel);
+      
+      assertEquals(ImmutableByteArray.newInstance(data), result);
+      assertTrue(result instanceof ArrayBackedImmutableByteArray);
+    }
+    
+    try(FileChannel channel = FileChannel.open(path))
+    {
+      ImmutableByteArray.readFrom(channel, data.length - 1);
+      throw new AssertionError("Expected IOException");
+    }
+    catch(IOException e)
+    {
+      // expected
+    }
+    
+    try(RecordingChannel channel = new RecordingChannel(FileChannel.open(path)))
+    {
+      ImmutableByteArray result = ImmutableByteArray.newInstance(channel);
+      
+      assertEquals(ImmutableByteArray.newInstance(data), result);
+      assertTrue(result instanceof ArrayBackedImmutableByteArray);
+      assertTrue(channel.maxRead_ < data.length);
+    }
+  }
+  
+  /*
+   * A SeekableByteChannel which records the largest read requested from it.
+   */
+  private static class RecordingChannel implements SeekableByteChannel
+  {
+    private final FileChannel channel_;
+    private int               maxRead_;
+    
+    RecordingChannel(FileChannel channel)
+    {
+      channel_ = channel;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+      maxRead_ = Math.max(maxRead_, dst.remaining());
+      
+      return channel_.read(dst);
+    }
+
+    @Override
+    public int write(ByteBuffer src)
+    {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException
+    {
+      return channel_.position();
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException
+    {
+      channel_.position(newPosition);
+      
+      return this;
+    }
+
+    @Override
+    public long size() throws IOException
+    {
+      return channel_.size();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size)
+    {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+      return channel_.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      channel_.close();
+    }
+  }
+  
+  /*
+   * An InputStream which returns at most 7 bytes per read and reports nothing available.
+   */
+  private static class TrickleInputStream extends FilterInputStream
+  {
+    TrickleInputStream(byte[] data)
+    {
+      super(new ByteArrayInputStream(data));
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      return super.read(b, off, Math.min(len, 7));
+    }
+
+    @Override
+    public int available()
+    {
+      return 0;
+    }
+  }
+  
+  /**
+   * Test that getReader() decodes incrementally and that only small String values are cached.
+   * 
+   * @throws IOException If there is an IO error.
+   */
+  @Test
+  public void testReaderAndStringCache() throws IOException
+  {
+    ImmutableByteArray composite = ImmutableByteArray.newInstance(
+        ImmutableByteArray.newInstance(new byte[] { 'a', (byte) 0xc3 }),
+        ImmutableByteArray.newInstance(new byte[] { (byte) 0xa9, 'b' }));
+    
+    try(Reader reader = composite.getReader())
+    {
+      char[] buf = new char[10];
+      
+      assertEquals(3, reader.read(buf));
+      assertEquals("a\u00e9b", new String(buf, 0, 3));
+    }
+    
+    int threshold = ImmutableByteArray.getStringCacheThreshold();
+    
+    try
+    {
+      ImmutableByteArray.setStringCacheThreshold(4);
+      
+      ImmutableByteArray small = ImmutableByteArray.newInstance(ByteString.copyFromUtf8("1234"));
+      ImmutableByteArray large = ImmutableByteArray.newInstance(ByteString.copyFromUtf8("12345"));
+      
+      assertSame(small.toString(), small.toString());
+      assertNotSame(large.toString(), large.toString());
+      assertEquals("12345", large.toString());
+    }
+    finally
+    {
+      ImmutableByteArray.setStringCacheThreshold(threshold);
+    }
+  }
+  
+  /**
+   * Test primitive iteration and search, comparing the results with String.indexOf().
+   */
+  @Test
+  public void testSearch()
+  {
+    String             text      = "abcdefghij0123456789abcdefghij0123456789 the quick brown fox, the lazy dog";
+    ImmutableByteArray array     = ImmutableByteArray.newInstance(text);
+    ImmutableByteArray composite = ImmutableByteArray.newInstance(array.slice(0, 13), array.slice(13, 30), array.slice(43, text.length() - 43));
+    
+    for(ImmutableByteArray a : new ImmutableByteArray[] { array, composite, ImmutableByteArray.newInstance(ByteString.copyFromUtf8(text)) })
+    {
+      for(char c : "a9 ,gxZ".toCharArray())
+      {
+        for(int from=0 ; from<text.length() ; from += 7)
+          assertEquals(text.indexOf(c, from), a.indexOf((byte) c, from));
+      }
+      
+      for(String pattern : new String[] { "", "a", "j0", "the", "the lazy", "0123456789 the", "dog", "cat", "lazy dogs" })
+      {
+        for(int from=0 ; from<text.length() ; from += 5)
+          assertEquals(pattern + " from " + from, text.indexOf(pattern, from), a.indexOf(ImmutableByteArray.newInstance(pattern), from));
+      }
+      
+      StringBuilder s = new StringBuilder();
+      
+      assertEquals(-1, a.forEachByte((b) -> s.append((char) b) != null));
+      assertEquals(text, s.toString());
+      assertEquals(text.indexOf(','), a.forEachByte((b) -> b != ','));
+      
+      assertTrue(a.startsWith(ImmutableByteArray.newInstance("abcdefghij0123456789abc")));
+      assertFalse(a.startsWith(ImmutableByteArray.newInstance("abd")));
+      assertTrue(a.endsWith(ImmutableByteArray.newInstance("lazy dog")));
+      assertTrue(a.endsWith(ImmutableByteArray.EMPTY));
+      assertFalse(a.endsWith(ImmutableByteArray.newInstance("x" + text)));
+    }
+    
+    byte[] random = new byte[1000];
+    
+    new Random(1).nextBytes(random);
+    
+    ImmutableByteArray r = ImmutableByteArray.newInstance(random);
+    
+    for(int v=-128 ; v<128 ; v++)
+    {
+      int expected = -1;
+      
+      for(int i=0 ; i<random.length && expected == -1 ; i++)
+        if(random[i] == v)
+          expected = i;
+      
+      assertEquals(expected, r.indexOf((byte) v));
+      
+      for(ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN })
+        assertEquals(expected, ImmutableByteArray.indexOf(ByteBuffer.wrap(random).order(order), (byte) v, 0, random.length));
+    }
+  }
+  
+  /**
+   * Test slice views and compact() for each implementation.
+   */
+  @Test
+  public void testSlice()
+  {
+    byte[] bytes = "Hello World".getBytes(StandardCharsets.UTF_8);
+    
+    doSlice(ImmutableByteArray.newInstance(bytes));
+    doSlice(ImmutableByteArray.newInstance(ByteString.copyFrom(bytes)));
+    doSlice(ImmutableByteArray.newInstance(ByteBuffer.wrap(bytes.clone())));
+  }
+
+  private void doSlice(ImmutableByteArray array)
+  {
+    ImmutableByteArray world = array.slice(6, 5);
+    
+    assertEquals(5, world.length());
+    assertEquals("World", world.toString());
+    assertEquals(ImmutableByteArray.newInstance("World"), world);
+    assertEquals(ImmutableByteArray.newInstance("World").hashCode(), world.hashCode());
+    assertEquals(ImmutableByteArray.newInstance("World").toBase64String(), world.toBase64String());
+    assertEquals("or", world.slice(1, 2).toString());
+    assertEquals("World", new String(world.toByteArray(), StandardCharsets.UTF_8));
+    assertEquals("World", world.toByteString().toStringUtf8());
+    
+    byte[] dest = new byte[3];
+    
+    world.arraycopy(1, dest, 0, 3);
+    assertEquals("orl", new String(dest, StandardCharsets.UTF_8));
+    
+    assertSame(array, array.slice(0, array.length()));
+    assertSame(array, array.compact());
+    
+    ImmutableByteArray compact = world.compact();
+    
+    assertNotSame(world, compact);
+    assertEquals(world, compact);
+    assertSame(compact, compact.compact());
+    
+    assertEquals(0, array.slice(3, 0).length());
+    
+    try
+    {
+      array.slice(6, 6);
+      throw new AssertionError("Expected IndexOutOfBoundsException");
+    }
+    catch(IndexOutOfBoundsException e)
+    {
+      // expected
+    }
+    
+    try
+    {
+      world.byteAt(5);
+      throw new AssertionError("Expected IndexOutOfBoundsException");
+    }
+    catch(IndexOutOfBoundsException e)
+    {
+      // expected
+    }
+  }
 }
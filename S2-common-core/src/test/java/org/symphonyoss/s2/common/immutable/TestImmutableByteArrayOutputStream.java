@@ -0,0 +1,171 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class TestImmutableByteArrayOutputStream
+{
+  @Test
+  public void testChunks() throws IOException
+  {
+    byte[] data = new byte[1000];
+    
+    for(int i=0 ; i<data.length ; i++)
+      data[i] = (byte) i;
+    
+    try(ImmutableByteArrayOutputStream out = new ImmutableByteArrayOutputStream(16))
+    {
+      assertEquals(0, out.build().length());
+      
+      out.write(data, 0, 10);
+      
+      ImmutableByteArray first = out.build();
+      
+      assertTrue(first instanceof ArrayBackedImmutableByteArray);
+      
+      for(int i=10 ; i<500 ; i++)
+        out.write(data[i]);
+      
+      out.write(ByteBuffer.wrap(data, 500, 300));
+      out.write(ImmutableByteArray.newInstance(data).slice(800, 200));
+      
+      ImmutableByteArray all = out.build();
+      
+      assertEquals(1000, out.size());
+      assertEquals(ImmutableByteArray.newInstance(data), all);
+      assertTrue(all instanceof CompositeImmutableByteArray);
+      
+      // earlier results are unaffected by later writes
+      assertEquals(ImmutableByteArray.newInstance(data).slice(0, 10), first);
+      
+      out.reset();
+      out.write(1);
+      assertEquals(1, out.build().length());
+      assertEquals(1000, all.length());
+    }
+  }
+  
+  @Test
+  public void testAppend() throws IOException
+  {
+    String text = "ASCII \u00e9\u20ac \ud83d\ude00 end";
+    
+    ImmutableByteArrayOutputStream out = new ImmutableByteArrayOutputStream(4);
+    
+    out.append(text, 0, 10).append(text.substring(10)).append('!');
+    
+    assertEquals(text + "!", out.build().toString());
+    assertEquals(ImmutableByteArray.newInstance(text + "!"), out.build());
+    
+    out.reset();
+    out.append('\ud83d').append('x').append('\ude00');
+    assertEquals(ImmutableByteArray.newInstance(new String("\ud83dx\ude00".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8)), out.build());
+    
+    out.reset();
+    out.append('\ud83d');
+    out.close();
+    assertFalse(out.isOpen());
+    assertEquals("?", out.build().toString());
+    
+    try
+    {
+      out.write(1);
+      throw new AssertionError("Expected ClosedChannelException");
+    }
+    catch(ClosedChannelException e)
+    {
+      // expected
+    }
+  }
+  
+  @Test
+  public void testBase64() throws IOException
+  {
+    for(int length : new int[] { 0, 1, 2, 3, 4, 3071, 3072, 3073, 3074, 10000 })
+    {
+      byte[] data = new byte[length];
+      
+      for(int i=0 ; i<length ; i++)
+        data[i] = (byte) (i * 31);
+      
+      ImmutableByteArray    array = ImmutableByteArray.newInstance(data);
+      StringBuilder         s     = new StringBuilder();
+      StringWriter          w     = new StringWriter();
+      ByteArrayOutputStream bout  = new ByteArrayOutputStream();
+      
+      array.writeBase64To(s);
+      array.writeBase64UrlSafeTo(w);
+      array.writeBase64To(bout);
+      
+      assertEquals(array.toBase64String(), s.toString());
+      assertEquals(array.toBase64UrlSafeString(), w.toString());
+      assertEquals(array.toBase64String(), bout.toString("US-ASCII"));
+      
+      bout.reset();
+      array.writeBase64UrlSafeTo(bout);
+      assertEquals(array.toBase64UrlSafeString(), bout.toString("US-ASCII"));
+      
+      assertEquals(array, new ImmutableByteArrayOutputStream().decodeBase64(s).build());
+      assertEquals(array, new ImmutableByteArrayOutputStream().decodeBase64(new StringReader(w.toString())).build());
+      
+      // whitespace, as produced by MIME encoders, is ignored
+      String wrapped = s.toString().replaceAll("(.{76})", "$1\r\n");
+      
+      assertEquals(array, new ImmutableByteArrayOutputStream().decodeBase64(new StringReader(wrapped)).build());
+    }
+    
+    try
+    {
+      new ImmutableByteArrayOutputStream().decodeBase64("SGVs*G8=");
+      throw new AssertionError("Expected IllegalArgumentException");
+    }
+    catch(IllegalArgumentException e)
+    {
+      // expected
+    }
+    
+    try
+    {
+      new ImmutableByteArrayOutputStream().decodeBase64("SGVsb");
+      throw new AssertionError("Expected IllegalArgumentException");
+    }
+    catch(IllegalArgumentException e)
+    {
+      // expected
+    }
+  }
+}
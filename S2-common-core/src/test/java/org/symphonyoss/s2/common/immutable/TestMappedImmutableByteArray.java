@@ -0,0 +1,180 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.symphonyoss.s2.common.hash.HashProvider;
+
+public class TestMappedImmutableByteArray
+{
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder();
+  
+  private Path createFile(byte[] data) throws IOException
+  {
+    Path path = folder_.newFile().toPath();
+    
+    Files.write(path, data);
+    
+    return path;
+  }
+  
+  private byte[] randomBytes(int length)
+  {
+    byte[] data = new byte[length];
+    
+    new Random(length).nextBytes(data);
+    
+    return data;
+  }
+  
+  @Test
+  public void testMap() throws IOException
+  {
+    byte[]             data     = randomBytes(10000);
+    ImmutableByteArray expected = ImmutableByteArray.newInstance(data);
+    ImmutableByteArray mapped   = ImmutableByteArray.map(createFile(data));
+    
+    assertEquals(expected, mapped);
+    assertEquals(data[9999], mapped.byteAt(9999));
+    assertEquals(expected.toBase64String(), mapped.toBase64String());
+    assertEquals(expected.toBase64UrlSafeString(), mapped.toBase64UrlSafeString());
+    assertEquals(HashProvider.getHashOf(data), HashProvider.getHashOf(mapped));
+    
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    
+    mapped.write(bout);
+    assertEquals(expected, ImmutableByteArray.newInstance(bout.toByteArray()));
+    
+    try(InputStream in = mapped.getInputStream())
+    {
+      assertEquals(expected, ImmutableByteArray.newInstance(in, data.length));
+    }
+  }
+  
+  @Test
+  public void testMapRange() throws IOException
+  {
+    byte[] data = randomBytes(1000);
+    
+    try(FileChannel channel = FileChannel.open(createFile(data), StandardOpenOption.READ))
+    {
+      ImmutableByteArray mapped = ImmutableByteArray.map(channel, 100, 50);
+      
+      assertEquals(ImmutableByteArray.newInstance(data).slice(100, 50), mapped);
+    }
+  }
+  
+  @Test
+  public void testMapSegments() throws IOException
+  {
+    byte[]                   data     = randomBytes(10000);
+    List<ImmutableByteArray> segments = ImmutableByteArray.mapSegments(createFile(data), 4096);
+    
+    assertEquals(3, segments.size());
+    assertEquals(1808, segments.get(2).length());
+    assertEquals(HashProvider.getHashOf(data), HashProvider.getHashOf(segments));
+    assertEquals(ImmutableByteArray.newInstance(data),
+        ImmutableByteArray.newInstance(segments.toArray(new ImmutableByteArray[segments.size()])));
+  }
+  
+  @Test
+  public void testWriteAll() throws IOException
+  {
+    byte[] data   = randomBytes(10000);
+    Path   source = createFile(data);
+    Path   target = folder_.newFile().toPath();
+    
+    ImmutableByteArray head  = ImmutableByteArray.newInstance("Head");
+    ImmutableByteArray tail  = ImmutableByteArray.newInstance(head, ImmutableByteArray.newInstance("Tail"));
+    
+    try(FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE))
+    {
+      ImmutableByteArray mapped = ImmutableByteArray.map(in, 0, data.length);
+      
+      assertEquals(head.length() + 5000 + tail.length(),
+          ImmutableByteArray.writeAll(out, head, mapped.slice(2000, 5000), tail));
+    }
+    
+    assertEquals(ImmutableByteArray.newInstance(head, ImmutableByteArray.newInstance(data).slice(2000, 5000), tail),
+        ImmutableByteArray.newInstance(Files.readAllBytes(target)));
+  }
+  
+  @Test
+  public void testWriteAllClosedChannel() throws IOException
+  {
+    byte[]             data   = randomBytes(1000);
+    Path               target = folder_.newFile().toPath();
+    ImmutableByteArray mapped;
+    
+    try(FileChannel in = FileChannel.open(createFile(data), StandardOpenOption.READ))
+    {
+      mapped = ImmutableByteArray.map(in, 0, data.length);
+    }
+    
+    try(FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE))
+    {
+      assertEquals(2000, ImmutableByteArray.writeAll(out, Arrays.asList(mapped, mapped)));
+    }
+    
+    assertEquals(ImmutableByteArray.newInstance(data, data), ImmutableByteArray.newInstance(Files.readAllBytes(target)));
+  }
+  
+  @Test(expected=IOException.class)
+  public void testWriteAllTruncatedFile() throws IOException
+  {
+    byte[] data   = randomBytes(10000);
+    Path   source = createFile(data);
+    Path   target = folder_.newFile().toPath();
+    
+    try(FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE))
+    {
+      ImmutableByteArray mapped = ImmutableByteArray.map(in, 0, data.length);
+      
+      try(FileChannel truncate = FileChannel.open(source, StandardOpenOption.WRITE))
+      {
+        truncate.truncate(100);
+      }
+      
+      ImmutableByteArray.writeAll(out, mapped);
+    }
+  }
+}
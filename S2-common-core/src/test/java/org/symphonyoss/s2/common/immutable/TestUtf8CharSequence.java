@@ -0,0 +1,113 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.immutable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+public class TestUtf8CharSequence
+{
+  private static final String ASCII     = "The quick brown fox jumps over the lazy dog";
+  private static final String NON_ASCII = "The quick brown \u00e9 fox \ud83e\udd8a jumps";
+  
+  @Test
+  public void testAscii()
+  {
+    Utf8CharSequence s = ImmutableByteArray.newInstance(ASCII).asCharSequence();
+    
+    assertTrue(s.isAscii());
+    check(ASCII, s);
+    
+    // a non ASCII byte in each position relative to a long boundary
+    for(int i=0 ; i<20 ; i++)
+    {
+      String text = ASCII.substring(0, i) + "\u00e9" + ASCII.substring(i);
+      
+      assertFalse(Utf8CharSequence.isAscii(ImmutableByteArray.newInstance(ByteString.copyFromUtf8(text))));
+    }
+  }
+  
+  @Test
+  public void testNonAscii()
+  {
+    Utf8CharSequence s = new Utf8CharSequence(ImmutableByteArray.newInstance(NON_ASCII));
+    
+    assertFalse(s.isAscii());
+    check(NON_ASCII, s);
+  }
+  
+  @Test
+  public void testContentEqualsUndecoded()
+  {
+    // Long enough to be compared in several chunks, with surrogate pairs at varying offsets.
+    String text = NON_ASCII + " \ud83d\ude00" + NON_ASCII + "\ud83d\ude00 " + NON_ASCII;
+    
+    assertTrue(undecoded(text).contentEquals(text));
+    assertFalse(undecoded(text).contentEquals(text + "x"));
+    assertFalse(undecoded(text).contentEquals(text.substring(0, text.length() - 1)));
+    assertFalse(undecoded(text).contentEquals(""));
+    
+    for(int i=0 ; i<text.length() ; i += 13)
+    {
+      StringBuilder other = new StringBuilder(text);
+      
+      other.setCharAt(i, (char) (text.charAt(i) + 1));
+      assertFalse(undecoded(text).contentEquals(other));
+    }
+  }
+  
+  private Utf8CharSequence undecoded(String text)
+  {
+    return new Utf8CharSequence(ImmutableByteArray.newInstance(text));
+  }
+  
+  private void check(String expected, Utf8CharSequence s)
+  {
+    assertEquals(expected.length(), s.length());
+    assertEquals(expected, s.toString());
+    assertEquals(expected.hashCode(), s.hashCode());
+    assertTrue(s.contentEquals(expected));
+    assertFalse(s.contentEquals(expected + "x"));
+    assertFalse(s.contentEquals(expected.substring(1) + "x"));
+    assertTrue(s.startsWith("The quick"));
+    assertFalse(s.startsWith("The slow"));
+    
+    for(int i=0 ; i<expected.length() ; i++)
+      assertEquals(expected.charAt(i), s.charAt(i));
+    
+    Utf8CharSequence sub = s.subSequence(4, 15);
+    
+    assertEquals(expected.substring(4, 15), sub.toString());
+    assertEquals(expected.substring(4, 15).hashCode(), sub.hashCode());
+    assertTrue(sub.contentEquals("quick brown"));
+    assertEquals(new Utf8CharSequence(ImmutableByteArray.newInstance("quick brown")), sub);
+    assertEquals(sub, new Utf8CharSequence(ImmutableByteArray.newInstance("quick brown")));
+    assertEquals(expected.substring(6, 9), sub.subSequence(2, 5).toString());
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+public class TestAsyncRecordReader
+{
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder();
+  
+  private Path createFile(String content) throws IOException
+  {
+    Path path = folder_.newFile().toPath();
+    
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    
+    return path;
+  }
+  
+  @Test
+  public void testLines() throws Exception
+  {
+    StringBuilder s        = new StringBuilder();
+    List<String>  expected = new ArrayList<>();
+    
+    for(int i=0 ; i<1000 ; i++)
+    {
+      s.append("Line ").append(i).append(i % 2 == 0 ? "\r\n" : "\n");
+      expected.add("Line " + i);
+    }
+    
+    s.append("\r\r");
+    
+    for(int chunkSize : new int[] { 1, 7, 100, 65536 })
+    {
+      List<String> lines = new ArrayList<>();
+      
+      try(AsyncRecordReader reader = new AsyncRecordReader.Builder()
+          .withChannel(AsynchronousFileChannel.open(createFile(s.toString()), StandardOpenOption.READ))
+          .withChunkSize(chunkSize)
+          .build())
+      {
+        reader.forEachRecord((line) -> lines.add(line.toString())).get();
+      }
+      
+      assertEquals(expected, lines);
+    }
+  }
+  
+  @Test
+  public void testNextRecord() throws Exception
+  {
+    try(AsyncRecordReader reader = new AsyncRecordReader.Builder()
+        .withChannel(AsynchronousFileChannel.open(createFile("xxOne\r\nTwo\r\n\r\nThree"), StandardOpenOption.READ))
+        .withPosition(2)
+        .withDelimiter((byte) '\r', (byte) '\n')
+        .withChunkSize(3)
+        .withDirectBuffers(false)
+        .build())
+    {
+      assertEquals("One", reader.nextRecord().get().toString());
+      assertEquals("Two", reader.nextRecord().get().toString());
+      assertEquals("", reader.nextRecord().get().toString());
+      assertEquals("Three", reader.nextRecord().get().toString());
+      assertNull(reader.nextRecord().get());
+    }
+  }
+  
+  @Test
+  public void testByteChannel() throws Exception
+  {
+    List<String> records = new ArrayList<>();
+    
+    try(AsyncRecordReader reader = new AsyncRecordReader.Builder()
+        .withChannel(new ArrayByteChannel("One\0Two\0\0Three\0".getBytes(StandardCharsets.UTF_8)))
+        .withDelimiter((byte) 0)
+        .withChunkSize(5)
+        .build())
+    {
+      reader.forEachRecord((record) -> records.add(record.toString())).get();
+    }
+    
+    assertEquals(Arrays.asList("One", "Two", "", "Three"), records);
+  }
+  
+  @Test
+  public void testShortReads() throws Exception
+  {
+    List<ImmutableByteArray> records = new ArrayList<>();
+    
+    // Each read returns at most 3 bytes, which should fill one buffer rather than allocate one each.
+    try(AsyncRecordReader reader = new AsyncRecordReader.Builder()
+        .withChannel(new ArrayByteChannel("Hello World\r\nSecond line\n".getBytes(StandardCharsets.UTF_8)))
+        .withChunkSize(1024)
+        .build())
+    {
+      reader.forEachRecord(records::add).get();
+    }
+    
+    assertEquals(2, records.size());
+    assertEquals("Hello World", records.get(0).toString());
+    assertEquals("Second line", records.get(1).toString());
+    
+    for(ImmutableByteArray record : records)
+      assertEquals(1, record.asReadOnlyByteBufferList().size());
+  }
+  
+  @Test
+  public void testMaxRecordSize() throws Exception
+  {
+    try(AsyncRecordReader reader = new AsyncRecordReader.Builder()
+        .withChannel(AsynchronousFileChannel.open(createFile("short\nmuch too long\n"), StandardOpenOption.READ))
+        .withMaxRecordSize(8)
+        .withChunkSize(4)
+        .build())
+    {
+      List<ImmutableByteArray> records = new ArrayList<>();
+      
+      reader.forEachRecord(records::add).get();
+    }
+    catch(ExecutionException e)
+    {
+      assertTrue(e.getCause() instanceof IOException);
+      return;
+    }
+    
+    throw new AssertionError("Expected exception");
+  }
+  
+  /**
+   * An AsynchronousByteChannel which completes each read synchronously with at most 3 bytes.
+   */
+  private static class ArrayByteChannel implements AsynchronousByteChannel
+  {
+    private final ByteBuffer input_;
+    
+    ArrayByteChannel(byte[] input)
+    {
+      input_ = ByteBuffer.wrap(input);
+    }
+
+    @Override
+    public <A> void read(ByteBuffer dst, A attachment, CompletionHandler<Integer, ? super A> handler)
+    {
+      if(!input_.hasRemaining())
+      {
+        handler.completed(-1, attachment);
+        return;
+      }
+      
+      int        nbytes = Math.min(3, Math.min(dst.remaining(), input_.remaining()));
+      ByteBuffer src    = input_.duplicate();
+      
+      src.limit(src.position() + nbytes);
+      dst.put(src);
+      input_.position(input_.position() + nbytes);
+      
+      handler.completed(nbytes, attachment);
+    }
+
+    @Override
+    public Future<Integer> read(ByteBuffer dst)
+    {
+      CompletableFuture<Integer> future = new CompletableFuture<>();
+      
+      read(dst, null, new CompletionHandler<Integer, Void>()
+      {
+        @Override
+        public void completed(Integer result, Void attachment)
+        {
+          future.complete(result);
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment)
+        {
+          future.completeExceptionally(exc);
+        }
+      });
+      
+      return future;
+    }
+
+    @Override
+    public <A> void write(ByteBuffer src, A attachment, CompletionHandler<Integer, ? super A> handler)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<Integer> write(ByteBuffer src)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+      return true;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+public class TestByteStringInputStream
+{
+  private static final String TEXT = "Hello \u00e9\u4e16\u754c \ud83d\ude00 World";
+  
+  private ByteString rope()
+  {
+    byte[]     bytes = TEXT.getBytes(StandardCharsets.UTF_8);
+    ByteString rope  = ByteString.EMPTY;
+    
+    for(int i=0 ; i<bytes.length ; i += 3)
+      rope = rope.concat(ByteString.copyFrom(bytes, i, Math.min(3, bytes.length - i)));
+    
+    return rope;
+  }
+  
+  @Test
+  public void testRead() throws IOException
+  {
+    byte[] expected = TEXT.getBytes(StandardCharsets.UTF_8);
+    
+    try(ByteStringInputStream in = new ByteStringInputStream(rope()))
+    {
+      assertEquals(expected.length, in.available());
+      assertEquals('H', in.read());
+      assertEquals(2, in.skip(2));
+      
+      in.mark(0);
+      
+      byte[] buf = new byte[expected.length];
+      
+      assertEquals(expected.length - 3, in.read(buf, 3, buf.length - 3));
+      assertEquals(-1, in.read(buf, 0, 1));
+      assertEquals(-1, in.read());
+      
+      in.reset();
+      assertEquals(3, in.read(buf, 3, 3));
+      buf[0] = 'H';
+      buf[1] = 'e';
+      buf[2] = 'l';
+      
+      assertArrayEquals(expected, buf);
+      
+      // bytes are returned unsigned
+      assertEquals(0xc3, in.read());
+    }
+  }
+  
+  @Test
+  public void testTransferTo() throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    
+    try(ByteStringInputStream in = new ByteStringInputStream(rope()))
+    {
+      in.skip(6);
+      
+      assertEquals(TEXT.getBytes(StandardCharsets.UTF_8).length - 6, in.transferTo(out));
+      assertEquals(0, in.available());
+    }
+    
+    assertEquals(TEXT.substring(6), new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+  
+  @Test
+  public void testReaders() throws IOException
+  {
+    assertEquals(TEXT, read(new ByteStringReader(rope(), StandardCharsets.UTF_8)));
+    assertEquals(TEXT, read(new ByteStringReader(ByteString.copyFrom(TEXT, StandardCharsets.UTF_16), StandardCharsets.UTF_16)));
+    
+    byte[] bytes = ("xx" + TEXT + "yy").getBytes(StandardCharsets.UTF_8);
+    
+    assertEquals(TEXT, read(new ByteArrayReader(bytes, 2, bytes.length - 4, StandardCharsets.UTF_8)));
+    assertEquals(TEXT, read(new ByteArrayReader(TEXT.getBytes(StandardCharsets.UTF_16BE), StandardCharsets.UTF_16BE)));
+  }
+  
+  private String read(InputStreamReader reader) throws IOException
+  {
+    StringBuilder s   = new StringBuilder();
+    char[]        buf = new char[5];
+    int           nbytes;
+    
+    try(Reader in = reader)
+    {
+      while((nbytes = in.read(buf)) != -1)
+        s.append(buf, 0, nbytes);
+    }
+    
+    return s.toString();
+  }
+}
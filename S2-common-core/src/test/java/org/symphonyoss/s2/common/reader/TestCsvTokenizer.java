@@ -0,0 +1,191 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+public class TestCsvTokenizer
+{
+  private CsvTokenizer.Builder builder(String input, int bufferSize)
+  {
+    return new CsvTokenizer.Builder()
+        .withInputStream(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)))
+        .withBufferSize(bufferSize);
+  }
+  
+  private List<List<String>> tokenize(CsvTokenizer tokenizer) throws IOException
+  {
+    List<List<String>> records = new ArrayList<>();
+    
+    try(CsvTokenizer t = tokenizer)
+    {
+      while(t.next())
+      {
+        List<String> fields = new ArrayList<>();
+        
+        for(int i=0 ; i<t.getFieldCount() ; i++)
+          fields.add(t.getField(i).toString());
+        
+        records.add(fields);
+      }
+    }
+    
+    return records;
+  }
+  
+  private void check(String input, List<?> ...expected) throws IOException
+  {
+    for(int bufferSize = 1 ; bufferSize < 40 ; bufferSize++)
+      assertEquals(Arrays.asList(expected), tokenize(builder(input, bufferSize).build()));
+  }
+  
+  @Test
+  public void testSimple() throws IOException
+  {
+    check("");
+    check("a,b,c\n1,2,3", Arrays.asList("a", "b", "c"), Arrays.asList("1", "2", "3"));
+    check("a,,c,\r\n\r\n,x\r\n", Arrays.asList("a", "", "c", ""), Arrays.asList("", "x"));
+    check("caf\u00e9,\u4e16\u754c\n", Arrays.asList("caf\u00e9", "\u4e16\u754c"));
+  }
+  
+  @Test
+  public void testQuoted() throws IOException
+  {
+    check("\"a,b\",\"say \"\"hi\"\"\"\r\n\"line\none\",\"\"\n",
+        Arrays.asList("a,b", "say \"hi\""), Arrays.asList("line\none", ""));
+    check("\"x\"", Arrays.asList("x"));
+    check("\"x\"\"\"", Arrays.asList("x\""));
+  }
+  
+  @Test
+  public void testTsv() throws IOException
+  {
+    assertEquals(Arrays.asList(Arrays.asList("a", "\"b", "c")),
+        tokenize(builder("a\t\"b\tc\n", 8).withSeparator((byte) '\t').withQuoting(false).build()));
+  }
+  
+  @Test
+  public void testColumnLimit() throws IOException
+  {
+    assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("1", "2")),
+        tokenize(builder("a,b,\"c\nd\",e\n1,2,3\n", 4).withColumnLimit(2).build()));
+  }
+  
+  @Test
+  public void testMalformed() throws IOException
+  {
+    for(String input : new String[] { "\"abc", "\"abc\"x,y" })
+    {
+      try
+      {
+        tokenize(builder(input, 4).build());
+        fail("Expected exception for " + input);
+      }
+      catch(IOException e)
+      {
+        // expected
+      }
+    }
+  }
+  
+  @Test
+  public void testNumbers() throws IOException
+  {
+    String[] values = new String[] { "0", "-0", "42", "+7", "-9223372036854775808", "9223372036854775807",
+        "3.14159", "-0.001", ".5", "1.", "123456789012345678", "1e10", "2.5E-3", "0.1000000000000000055511151231257827" };
+    
+    try(CsvTokenizer t = builder(String.join(",", values) + "\n", 16).build())
+    {
+      assertTrue(t.next());
+      
+      for(int i=0 ; i<values.length ; i++)
+      {
+        assertEquals(values[i], Double.valueOf(Double.parseDouble(values[i])), Double.valueOf(t.getDouble(i)));
+        
+        try
+        {
+          assertEquals(values[i], Long.parseLong(values[i]), t.getLong(i));
+        }
+        catch(NumberFormatException e)
+        {
+          try
+          {
+            t.getLong(i);
+            fail("Expected NumberFormatException for " + values[i]);
+          }
+          catch(NumberFormatException e2)
+          {
+            // expected
+          }
+        }
+      }
+      
+      assertFalse(t.next());
+    }
+    
+    for(String value : new String[] { "", "-", "9223372036854775808", "-9223372036854775809", "1x" })
+    {
+      try(CsvTokenizer t = builder(value + ",x\n", 16).build())
+      {
+        assertTrue(t.next());
+        t.getLong(0);
+        fail("Expected NumberFormatException for " + value);
+      }
+      catch(NumberFormatException e)
+      {
+        // expected
+      }
+    }
+  }
+  
+  @Test
+  public void testGetBytes() throws IOException
+  {
+    ImmutableByteArray first;
+    
+    try(CsvTokenizer t = builder("\"a\"\"b\",c\nd,e\n", 4).build())
+    {
+      assertTrue(t.next());
+      first = t.getBytes(0);
+      assertEquals("c", t.getString(1));
+      assertTrue(t.next());
+      assertFalse(t.isEmpty(0));
+    }
+    
+    assertEquals("a\"b", first.toString());
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+public class TestDelimitedRecordReader
+{
+  private List<String> read(String input, String delimiter, int bufferSize, boolean direct) throws IOException
+  {
+    List<String> records = new ArrayList<>();
+    
+    try(DelimitedRecordReader reader = new DelimitedRecordReader.Builder()
+        .withInputStream(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)))
+        .withDelimiter(delimiter.getBytes(StandardCharsets.UTF_8))
+        .withBufferSize(bufferSize)
+        .withDirectBuffers(direct)
+        .build())
+    {
+      ImmutableByteArray record;
+      
+      while((record = reader.nextRecord()) != null)
+        records.add(record.toString());
+    }
+    
+    return records;
+  }
+  
+  private void check(String input, String delimiter, String ...expected) throws IOException
+  {
+    for(int bufferSize = 1 ; bufferSize < 20 ; bufferSize++)
+    {
+      assertEquals(Arrays.asList(expected), read(input, delimiter, bufferSize, true));
+      assertEquals(Arrays.asList(expected), read(input, delimiter, bufferSize, false));
+    }
+  }
+  
+  @Test
+  public void testSingleByte() throws IOException
+  {
+    check("", "\0");
+    check("Hello\0World\0", "\0", "Hello", "World");
+    check("Hello\0\0World", "\0", "Hello", "", "World");
+    check("\u001eRecord One\u001eRecord Two", "\u001e", "", "Record One", "Record Two");
+  }
+  
+  @Test
+  public void testMultiByte() throws IOException
+  {
+    check("Hello\r\nWorld\r\n", "\r\n", "Hello", "World");
+    check("Hel\rlo\n\r\r\nWorld\r", "\r\n", "Hel\rlo\n\r", "World\r");
+    check("a--b---c", "--", "a", "b", "-c");
+  }
+  
+  @Test
+  public void testRecordsAreStable() throws IOException
+  {
+    StringBuilder            s       = new StringBuilder();
+    List<ImmutableByteArray> records = new ArrayList<>();
+    
+    for(int i=0 ; i<1000 ; i++)
+      s.append("Record ").append(i).append('\0');
+    
+    try(DelimitedRecordReader reader = new DelimitedRecordReader.Builder()
+        .withInputStream(new ByteArrayInputStream(s.toString().getBytes(StandardCharsets.UTF_8)))
+        .withDelimiter((byte) 0)
+        .withBufferSize(100)
+        .build())
+    {
+      ImmutableByteArray record;
+      
+      while((record = reader.nextRecord()) != null)
+        records.add(record);
+    }
+    
+    for(int i=0 ; i<1000 ; i++)
+      assertEquals("Record " + i, records.get(i).toString());
+  }
+  
+  @Test(expected=IOException.class)
+  public void testMaxRecordSize() throws IOException
+  {
+    try(DelimitedRecordReader reader = new DelimitedRecordReader.Builder()
+        .withInputStream(new ByteArrayInputStream("short\nmuch too long\n".getBytes(StandardCharsets.UTF_8)))
+        .withMaxRecordSize(8)
+        .withBufferSize(4)
+        .build())
+    {
+      assertEquals("short", reader.nextRecord().toString());
+      
+      reader.nextRecord();
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+import org.symphonyoss.s2.common.type.TypeHelper;
+
+import com.google.protobuf.CodedOutputStream;
+
+public class TestFrameReader
+{
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder();
+  
+  private List<ImmutableByteArray> frames()
+  {
+    List<ImmutableByteArray> frames = new ArrayList<>();
+    
+    for(int length : new int[] { 0, 1, 127, 128, 300, 20000 })
+    {
+      byte[] data = new byte[length];
+      
+      for(int i=0 ; i<length ; i++)
+        data[i] = (byte) (i * 31 + length);
+      
+      frames.add(ImmutableByteArray.newInstance(data));
+    }
+    
+    return frames;
+  }
+  
+  private List<ImmutableByteArray> read(byte[] data, FrameLengthEncoding encoding, int bufferSize) throws IOException
+  {
+    List<ImmutableByteArray> frames = new ArrayList<>();
+    
+    try(FrameReader reader = new FrameReader.Builder()
+        .withInputStream(new ByteArrayInputStream(data))
+        .withLengthEncoding(encoding)
+        .withBufferSize(bufferSize)
+        .build())
+    {
+      ImmutableByteArray frame;
+      
+      while((frame = reader.nextFrame()) != null)
+        frames.add(frame);
+    }
+    
+    return frames;
+  }
+  
+  @Test
+  public void testRoundTrip() throws IOException
+  {
+    for(FrameLengthEncoding encoding : FrameLengthEncoding.values())
+    {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      
+      try(FrameWriter writer = new FrameWriter.Builder()
+          .withOutputStream(bout)
+          .withLengthEncoding(encoding)
+          .build())
+      {
+        for(ImmutableByteArray frame : frames())
+          writer.writeFrame(frame);
+      }
+      
+      for(int bufferSize : new int[] { 1, 3, 100, 65536 })
+        assertEquals(frames(), read(bout.toByteArray(), encoding, bufferSize));
+    }
+  }
+  
+  @Test
+  public void testBatchWrite() throws IOException
+  {
+    Path path = folder_.newFile().toPath();
+    
+    try(FrameWriter writer = new FrameWriter.Builder()
+        .withChannel(FileChannel.open(path, StandardOpenOption.WRITE))
+        .withLengthEncoding(FrameLengthEncoding.VARINT)
+        .build())
+    {
+      writer.writeFrames(frames());
+    }
+    
+    assertEquals(frames(), read(Files.readAllBytes(path), FrameLengthEncoding.VARINT, 1024));
+  }
+  
+  @Test
+  public void testFormats() throws IOException
+  {
+    ByteArrayOutputStream bout  = new ByteArrayOutputStream();
+    ImmutableByteArray    frame = frames().get(4);
+    
+    try(FrameWriter writer = new FrameWriter.Builder()
+        .withOutputStream(bout)
+        .withLengthEncoding(FrameLengthEncoding.VARINT)
+        .build())
+    {
+      writer.writeFrame(frame);
+    }
+    
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    CodedOutputStream     coded    = CodedOutputStream.newInstance(expected);
+    
+    coded.writeBytesNoTag(frame.toByteString());
+    coded.flush();
+    
+    assertArrayEquals(expected.toByteArray(), bout.toByteArray());
+    
+    bout.reset();
+    
+    try(FrameWriter writer = new FrameWriter.Builder()
+        .withOutputStream(bout)
+        .build())
+    {
+      writer.writeFrame(frame);
+    }
+    
+    assertEquals(frame.length(), TypeHelper.getInt(bout.toByteArray(), 0));
+  }
+  
+  @Test(expected=EOFException.class)
+  public void testTruncated() throws IOException
+  {
+    read(new byte[] { 0, 0, 0, 5, 1, 2 }, FrameLengthEncoding.FIXED_32, 16);
+  }
+  
+  @Test(expected=IOException.class)
+  public void testMaxFrameSize() throws IOException
+  {
+    try(FrameReader reader = new FrameReader.Builder()
+        .withInputStream(new ByteArrayInputStream(new byte[] { 0, 0, 0, 5, 1, 2, 3, 4, 5 }))
+        .withMaxFrameSize(4)
+        .build())
+    {
+      reader.nextFrame();
+    }
+  }
+  
+  @Test
+  public void testEmpty() throws IOException
+  {
+    assertEquals(Arrays.asList(), read(new byte[0], FrameLengthEncoding.VARINT, 16));
+    
+    try(FrameReader reader = new FrameReader.Builder()
+        .withInputStream(new ByteArrayInputStream(new byte[0]))
+        .build())
+    {
+      assertNull(reader.nextFrame());
+    }
+  }
+  
+  @Test
+  public void testMalformedVarint() throws IOException
+  {
+    // A 5th byte may only hold the top 4 bits of the length.
+    byte[][] inputs = new byte[][] {
+      { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10 },
+      { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x00 }
+    };
+    
+    for(byte[] input : inputs)
+    {
+      try
+      {
+        read(input, FrameLengthEncoding.VARINT, 16);
+        fail("Malformed length accepted");
+      }
+      catch(IOException e)
+      {
+        assertTrue(e.getMessage(), e.getMessage().startsWith("Malformed"));
+      }
+    }
+  }
+  
+  @Test
+  public void testLargeFrameLength() throws IOException
+  {
+    try(FrameReader reader = new FrameReader.Builder()
+        .withInputStream(new ByteArrayInputStream(new byte[] { 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1, 2 }))
+        .withMaxFrameSize(Integer.MAX_VALUE)
+        .build())
+    {
+      reader.nextFrame();
+      fail("Unbufferable frame accepted");
+    }
+    catch(IOException e)
+    {
+      assertTrue(e.getMessage(), e.getMessage().endsWith("too large to buffer"));
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+public class TestLineSplitter
+{
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder();
+  
+  private List<String> split(LineSplitter splitter)
+  {
+    List<String>       lines = new ArrayList<>();
+    ImmutableByteArray line;
+    
+    while((line = splitter.nextLine()) != null)
+      lines.add(line.toString());
+    
+    return lines;
+  }
+  
+  private void check(String input, String ...expected)
+  {
+    List<String> expectedList = new ArrayList<>();
+    
+    for(String s : expected)
+      expectedList.add(s);
+    
+    assertEquals(expectedList, split(new LineSplitter(ImmutableByteArray.newInstance(input))));
+    
+    // Split the input at every possible point into segments
+    for(int i=0 ; i<=input.length() ; i++)
+    {
+      for(int j=i ; j<=input.length() ; j++)
+      {
+        List<ImmutableByteArray> segments = new ArrayList<>();
+        
+        segments.add(ImmutableByteArray.newInstance(input.substring(0, i)));
+        segments.add(ImmutableByteArray.newInstance(input.substring(i, j)));
+        segments.add(ImmutableByteArray.newInstance(input.substring(j)));
+        
+        assertEquals(input + " split at " + i + ", " + j, expectedList, split(new LineSplitter(segments)));
+      }
+    }
+  }
+  
+  @Test
+  public void testCRs()
+  {
+    check("\r\r\r\r\r\r\r\r\r\r");
+    check("\r\r\r\r\r\r\r\r\r\rHello", "\r\r\r\r\r\r\r\r\r\rHello");
+    check("Hello\r\rWorld\n", "Hello\r\rWorld");
+    check("Hello\r\r\nWorld\r", "Hello", "World");
+    check("\r\n\n", "", "");
+  }
+  
+  @Test
+  public void testNewLine()
+  {
+    check("");
+    check("Hello\nThis is a test\nWith 3 lines\n", "Hello", "This is a test", "With 3 lines");
+    check("A much longer line than the others\nX\n\nNo newline", "A much longer line than the others", "X", "", "No newline");
+  }
+  
+  @Test
+  public void testMap() throws IOException
+  {
+    StringBuilder s = new StringBuilder();
+    
+    for(int i=0 ; i<1000 ; i++)
+      s.append("Line ").append(i).append(i % 2 == 0 ? "\r\n" : "\n");
+    
+    Path path = folder_.newFile().toPath();
+    
+    Files.write(path, s.toString().getBytes("UTF-8"));
+    
+    LineSplitter splitter = LineSplitter.map(path);
+    
+    for(int i=0 ; i<1000 ; i++)
+      assertEquals("Line " + i, splitter.nextCharSequence().toString());
+    
+    assertNull(splitter.nextCharSequence());
+    assertEquals(Files.size(path), splitter.getPosition());
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+public class TestParallelLineProcessor
+{
+  private static final int LINE_COUNT = 10000;
+  
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder();
+  
+  private Path createFile() throws IOException
+  {
+    StringBuilder s = new StringBuilder();
+    
+    for(int i=0 ; i<LINE_COUNT ; i++)
+      s.append(i).append(i % 3 == 0 ? "\r\n" : "\n");
+    
+    Path path = folder_.newFile().toPath();
+    
+    Files.write(path, s.toString().getBytes(StandardCharsets.UTF_8));
+    
+    return path;
+  }
+  
+  private List<String> expected()
+  {
+    List<String> expected = new ArrayList<>();
+    
+    for(int i=0 ; i<LINE_COUNT ; i++)
+      expected.add(String.valueOf(i));
+    
+    return expected;
+  }
+  
+  @Test
+  public void testSplit() throws IOException
+  {
+    List<ImmutableByteArray> segments = ImmutableByteArray.mapSegments(createFile(), 1000);
+    ParallelLineProcessor    processor = new ParallelLineProcessor.Builder()
+        .withRangeSize(777)
+        .build();
+    
+    List<String> lines = new ArrayList<>();
+    
+    for(List<ImmutableByteArray> range : processor.split(segments))
+    {
+      LineSplitter       splitter = new LineSplitter(range);
+      ImmutableByteArray line;
+      
+      while((line = splitter.nextLine()) != null)
+        lines.add(line.toString());
+    }
+    
+    assertEquals(expected(), lines);
+  }
+  
+  @Test
+  public void testMap() throws IOException
+  {
+    Path                  path      = createFile();
+    ParallelLineProcessor processor = new ParallelLineProcessor.Builder()
+        .withRangeSize(1000)
+        .build();
+    
+    assertEquals(expected(), processor.map(path, ImmutableByteArray::toString, true));
+    
+    List<Integer> unordered = processor.map(path, (line) -> Integer.parseInt(line.toString()), false);
+    
+    Collections.sort(unordered);
+    
+    for(int i=0 ; i<LINE_COUNT ; i++)
+      assertEquals(i, unordered.get(i).intValue());
+    
+    AtomicLong total = new AtomicLong();
+    
+    processor.forEachLine(path, (line) -> total.addAndGet(Integer.parseInt(line.toString())));
+    
+    assertEquals((long) LINE_COUNT * (LINE_COUNT - 1) / 2, total.get());
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.symphonyoss.s2.common.immutable.ImmutableByteArray;
+
+public class TestTailLineReader
+{
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder();
+  
+  private void append(Path path, String s) throws IOException
+  {
+    Files.write(path, s.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+  }
+  
+  private String next(TailLineReader reader) throws IOException, InterruptedException
+  {
+    ImmutableByteArray line = reader.nextLine(5, TimeUnit.SECONDS);
+    
+    return line == null ? null : line.toString();
+  }
+  
+  @Test
+  public void testFollow() throws Exception
+  {
+    testFollow(true);
+    testFollow(false);
+  }
+  
+  private void testFollow(boolean watch) throws Exception
+  {
+    Path path = folder_.newFile().toPath();
+    
+    append(path, "One\r\nTwo\nThr");
+    
+    try(TailLineReader reader = new TailLineReader.Builder()
+        .withPath(path)
+        .withWatchService(watch)
+        .withBufferSize(4)
+        .build())
+    {
+      assertEquals("One", next(reader));
+      assertEquals("Two", next(reader));
+      assertEquals(9, reader.getPosition());
+      assertNull(reader.nextLine(20, TimeUnit.MILLISECONDS));
+      
+      append(path, "ee\n");
+      assertEquals("Three", next(reader));
+      
+      // Truncation
+      Files.write(path, "A\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
+      assertEquals("A", next(reader));
+      
+      // Rotation
+      Path rotated = folder_.getRoot().toPath().resolve("rotated-" + watch);
+      
+      append(path, "B\n");
+      Files.move(path, rotated);
+      append(rotated, "C\n");
+      Files.write(path, "D\n".getBytes(StandardCharsets.UTF_8));
+      
+      assertEquals("B", next(reader));
+      assertEquals("C", next(reader));
+      assertEquals("D", next(reader));
+      assertEquals(2, reader.getPosition());
+    }
+  }
+  
+  @Test
+  public void testStartAtEnd() throws Exception
+  {
+    Path path = folder_.newFile().toPath();
+    
+    append(path, "Old\n");
+    
+    try(TailLineReader reader = new TailLineReader.Builder()
+        .withPath(path)
+        .withStartAtEnd(true)
+        .build())
+    {
+      Thread writer = new Thread(() ->
+      {
+        try
+        {
+          Thread.sleep(50);
+          append(path, "New\n");
+        }
+        catch(IOException | InterruptedException e)
+        {
+          throw new IllegalStateException(e);
+        }
+      });
+      
+      writer.start();
+      assertEquals("New", next(reader));
+      writer.join();
+    }
+  }
+  
+  @Test
+  public void testClose() throws Exception
+  {
+    Path           path   = folder_.newFile().toPath();
+    TailLineReader reader = new TailLineReader.Builder()
+        .withPath(path)
+        .build();
+    
+    Thread closer = new Thread(() ->
+    {
+      try
+      {
+        Thread.sleep(50);
+        reader.close();
+      }
+      catch(IOException | InterruptedException e)
+      {
+        throw new IllegalStateException(e);
+      }
+    });
+    
+    closer.start();
+    assertNull(reader.nextLine());
+    closer.join();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ *
+ *
+ * Copyright 2018 Symphony Communication Services, LLC.
+ *
+ * Licensed to The Symphony Software Foundation (SSF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The SSF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.symphonyoss.s2.common.reader;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestUtf8Reader
+{
+  private static final String TEXT = "ASCII \u00e9\u00e8 \u20ac\u4e2d\u6587 \ud83d\ude00\ud83c\udf89 end";
+  
+  private static String readAll(Reader reader, int bufferSize) throws IOException
+  {
+    StringBuilder s   = new StringBuilder();
+    char[]        buf = new char[bufferSize];
+    int           nchars;
+    
+    while((nchars = reader.read(buf)) != -1)
+      s.append(buf, 0, nchars);
+    
+    return s.toString();
+  }
+  
+  @Test
+  public void testSplitBuffers() throws IOException
+  {
+    byte[] bytes = TEXT.getBytes(StandardCharsets.UTF_8);
+    
+    for(int split=0 ; split<=bytes.length ; split++)
+    {
+      ByteBuffer first  = ByteBuffer.wrap(bytes, 0, split);
+      ByteBuffer second = ByteBuffer.wrap(bytes, split, bytes.length - split);
+      
+      for(int bufferSize : new int[] { 1, 2, 3, 100 })
+      {
+        try(Reader reader = new Utf8Reader(Arrays.asList(first, second)))
+        {
+          assertEquals(TEXT, readAll(reader, bufferSize));
+        }
+      }
+      
+      assertEquals(0, first.position());
+    }
+  }
+  
+  @Test
+  public void testMalformed() throws IOException
+  {
+    byte[][] inputs = new byte[][]
+    {
+      { 'a', (byte) 0x80, 'b' },
+      { 'a', (byte) 0xc0, (byte) 0xaf, 'b' },
+      { 'a', (byte) 0xe0, (byte) 0x80, (byte) 0x80, 'b' },
+      { 'a', (byte) 0xed, (byte) 0xa0, (byte) 0x80, 'b' },
+      { 'a', (byte) 0xed, (byte) 0xa0, 'b' },
+      { 'a', (byte) 0xed, (byte) 0xa0 },
+      { 'a', (byte) 0xe2, (byte) 0x82, 'b' },
+      { 'a', (byte) 0xf0, (byte) 0x9f, (byte) 0x98 },
+      { 'a', (byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80 },
+      { (byte) 0xff, (byte) 0xfe },
+    };
+    
+    for(byte[] input : inputs)
+    {
+      try(Reader reader = new Utf8Reader(ByteBuffer.wrap(input)))
+      {
+        assertEquals(new String(input, StandardCharsets.UTF_8), readAll(reader, 10));
+      }
+    }
+  }
+}